@@ -35,10 +35,14 @@ import com.hnu.mail.model.User;
 import com.hnu.mail.security.UserPrincipal;
 import com.hnu.mail.model.SystemConfig;
 import com.hnu.mail.service.AdminService;
+import com.hnu.mail.service.DeliveryQueue;
 import com.hnu.mail.service.MailService;
+import com.hnu.mail.service.OutboundMailQueue;
 import com.hnu.mail.service.LogService;
 import com.hnu.mail.service.ServiceManager;
 import com.hnu.mail.service.SystemConfigService;
+import com.hnu.mail.service.TlsService;
+import com.hnu.mail.service.VirtualThreadPinningMonitor;
 
 import jakarta.validation.Valid;
 import lombok.RequiredArgsConstructor;
@@ -53,6 +57,10 @@ public class AdminController {
   private final MailService mailService;
   private final LogService logService;
   private final SystemConfigService systemConfigService;
+  private final VirtualThreadPinningMonitor pinningMonitor;
+  private final DeliveryQueue deliveryQueue;
+  private final OutboundMailQueue outboundQueue;
+  private final TlsService tlsService;
 
   @GetMapping("/users")
   public ResponseEntity<?> getAllUsers(
@@ -379,6 +387,26 @@ public class AdminController {
     return ResponseEntity.ok(statusMap);
   }
 
+  @GetMapping("/servers/pinning")
+  public ResponseEntity<?> getVirtualThreadPinningReport() {
+    return ResponseEntity.ok(pinningMonitor.report());
+  }
+
+  @GetMapping("/servers/delivery-queue")
+  public ResponseEntity<?> getDeliveryQueueReport() {
+    return ResponseEntity.ok(deliveryQueue.report());
+  }
+
+  @GetMapping("/servers/outbound-queue")
+  public ResponseEntity<?> getOutboundQueueReport() {
+    return ResponseEntity.ok(outboundQueue.report());
+  }
+
+  @GetMapping("/servers/tls")
+  public ResponseEntity<?> getTlsReport() {
+    return ResponseEntity.ok(tlsService.report());
+  }
+
   @PostMapping("/services/smtp/start")
   public ResponseEntity<?> startSmtpService() {
     try {
@@ -26,9 +26,10 @@ public class Mail {
   @Size(max = 200)
   private String subject;
 
-  @Lob
-  @Column(columnDefinition = "TEXT")
-  private String content;
+  // 正文单独存储，多封邮件可共用同一正文
+  @ManyToOne(fetch = FetchType.LAZY)
+  @JoinColumn(name = "body_id")
+  private MailBody body;
 
   @ManyToOne(fetch = FetchType.LAZY)
   @JoinColumn(name = "sender_id")
@@ -43,6 +44,10 @@ public class Mail {
 
   @Size(max = 100)
   private String receiverEmail;
+
+  // SMTP接收时解析出的邮件头，网页发送的邮件为空
+  @Embedded
+  private MailHeaders headers;
   
   // 为了兼容POP3和SMTP服务器代码的方法别名
   public User getRecipient() {
@@ -53,6 +58,11 @@ public class Mail {
     this.receiver = recipient;
   }
   
+  // 读取正文内容，需在事务内调用以便延迟加载
+  public String getContent() {
+    return body != null ? body.getContent() : null;
+  }
+  
   public LocalDateTime getSentDate() {
     return sentAt;
   }
@@ -81,6 +91,11 @@ public class Mail {
 
   private Integer size; // 邮件大小(KB)
 
+  private Long octets; // POP3 RETR发送的字节数，投递时计算
+
+  @Size(max = 100)
+  private String rawFile; // 邮件原文文件，相对于原文存储目录；为空时POP3由数据库字段生成邮件
+
   @OneToMany(mappedBy = "mail", cascade = CascadeType.ALL, orphanRemoval = true)
   private Set<Attachment> attachments = new HashSet<>();
 
@@ -0,0 +1,43 @@
+// MailBody.java
+package com.hnu.mail.model;
+
+import jakarta.persistence.*;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.AllArgsConstructor;
+import lombok.ToString;
+import org.hibernate.annotations.BatchSize;
+
+import java.time.LocalDateTime;
+
+/**
+ * 邮件正文，按内容哈希单实例存储。
+ * 同一正文的所有收件人副本和发件箱副本共用一行，refCount记录引用它的邮件数。
+ */
+@Entity
+@Table(name = "mail_bodies")
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@BatchSize(size = 50)
+public class MailBody {
+
+  @Id
+  @GeneratedValue(strategy = GenerationType.IDENTITY)
+  private Long id;
+
+  // 正文UTF-8字节的SHA-256十六进制摘要
+  @Column(length = 64, unique = true, nullable = false)
+  private String hash;
+
+  @Lob
+  @Column(columnDefinition = "LONGTEXT")
+  @ToString.Exclude
+  private String content;
+
+  private Long size; // 正文大小(字节)
+
+  private Integer refCount = 0;
+
+  private LocalDateTime createdAt = LocalDateTime.now();
+}
@@ -0,0 +1,36 @@
+package com.hnu.mail.model;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Embeddable;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+/**
+ * 接收邮件时解析出的邮件头，与邮件记录存在同一行中。
+ * 列表、会话归并和去重直接读取这些列，不需要重新扫描正文。
+ */
+@Embeddable
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class MailHeaders {
+
+  // From头（已解码），可能与SMTP信封发件人不同
+  @Column(name = "header_from", length = 255)
+  private String from;
+
+  // Date头，转换为服务器本地时间
+  @Column(name = "header_date")
+  private LocalDateTime date;
+
+  // Message-ID头，不含尖括号
+  @Column(name = "message_id", length = 255)
+  private String messageId;
+
+  // In-Reply-To头中的第一个消息ID，不含尖括号
+  @Column(name = "in_reply_to", length = 255)
+  private String inReplyTo;
+}
@@ -0,0 +1,26 @@
+// MailboxStats.java
+package com.hnu.mail.model;
+
+import jakarta.persistence.*;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.AllArgsConstructor;
+
+/**
+ * 每个用户POP3邮箱（收件箱中未删除的邮件）的邮件数和总字节数。
+ * 随投递、删除和移动增量维护，POP3 STAT只需读取这一行；只通过MailboxStatsRepository.adjust更新，避免覆盖并发的增量
+ */
+@Entity
+@Table(name = "mailbox_stats")
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class MailboxStats {
+
+  @Id
+  private Long userId;
+
+  private Long messageCount = 0L;
+
+  private Long totalOctets = 0L; // 邮件大小之和(字节)，见Mail.octets
+}
@@ -0,0 +1,89 @@
+// OutboundMail.java
+package com.hnu.mail.model;
+
+import jakarta.persistence.*;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.AllArgsConstructor;
+import lombok.ToString;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 待外发的邮件（发件箱）。记录在发件事务中写入，发送成功后删除；
+ * 发送失败时记录重试次数和下次重试时间，超过重试上限后保留为FAILED供管理员查看。
+ */
+@Entity
+@Table(name = "outbound_mails")
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class OutboundMail {
+
+  @Id
+  @GeneratedValue(strategy = GenerationType.IDENTITY)
+  private Long id;
+
+  @Enumerated(EnumType.STRING)
+  @Column(length = 20, nullable = false)
+  private Lane lane = Lane.INTERACTIVE;
+
+  @Enumerated(EnumType.STRING)
+  @Column(length = 20, nullable = false)
+  private Status status = Status.PENDING;
+
+  @Column(length = 100)
+  private String fromAddress;
+
+  @Column(length = 100, nullable = false)
+  private String toAddress;
+
+  @Column(length = 200)
+  private String subject;
+
+  @Lob
+  @Column(columnDefinition = "LONGTEXT")
+  @ToString.Exclude
+  private String content;
+
+  // 附件引用已经保存在本地的文件，发件箱不再复制一份
+  @ElementCollection(fetch = FetchType.EAGER)
+  @CollectionTable(name = "outbound_mail_attachments", joinColumns = @JoinColumn(name = "outbound_mail_id"))
+  private List<Part> attachments = new ArrayList<>();
+
+  private Integer attempts = 0;
+
+  private LocalDateTime nextAttemptAt = LocalDateTime.now();
+
+  @Column(length = 500)
+  private String lastError;
+
+  private LocalDateTime createdAt = LocalDateTime.now();
+
+  public enum Lane {
+    INTERACTIVE, // 用户在页面上发出的邮件，优先发送
+    BULK         // 群发邮件，不占满全部发送线程
+  }
+
+  public enum Status {
+    PENDING, FAILED
+  }
+
+  @Embeddable
+  @Data
+  @NoArgsConstructor
+  @AllArgsConstructor
+  public static class Part {
+
+    @Column(length = 255)
+    private String filename;
+
+    @Column(length = 100)
+    private String fileType;
+
+    @Column(length = 500)
+    private String filePath;
+  }
+}
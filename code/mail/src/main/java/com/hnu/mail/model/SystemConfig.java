@@ -68,10 +68,35 @@ public class SystemConfig {
   public static final String POP3_SERVER_ENABLED = "server.pop3.enabled";
   public static final String POP3_SERVER_PORT = "server.pop3.port";
   public static final String POP3_SERVER_MAX_CONNECTIONS = "server.pop3.max.connections";
+  public static final String POP3_SERVER_MAX_CONNECTIONS_PER_IP = "server.pop3.max.connections.per.ip";
+  public static final String POP3_SERVER_IO_MODE = "server.pop3.io.mode";
+  public static final String POP3_SERVER_TIMEOUT_IDLE = "server.pop3.timeout.idle";
 
   // SMTP服务器配置
   public static final String SMTP_SERVER_ENABLED = "server.smtp.enabled";
   public static final String SMTP_SERVER_PORT = "server.smtp.port";
   public static final String SMTP_SERVER_DOMAIN = "server.smtp.domain";
   public static final String SMTP_SERVER_MAX_CONNECTIONS = "server.smtp.max.connections";
+  public static final String SMTP_SERVER_MAX_CONNECTIONS_PER_IP = "server.smtp.max.connections.per.ip";
+  public static final String SMTP_SERVER_IO_MODE = "server.smtp.io.mode";
+  public static final String SMTP_SERVER_NIO_THREADS = "server.smtp.nio.threads";
+  public static final String SMTP_SERVER_NIO_WORKERS = "server.smtp.nio.workers";
+  public static final String SMTP_SERVER_SPOOL_DIR = "server.smtp.spool.dir";
+  public static final String SMTP_SERVER_TIMEOUT_GREETING = "server.smtp.timeout.greeting";
+  public static final String SMTP_SERVER_TIMEOUT_COMMAND = "server.smtp.timeout.command";
+  public static final String SMTP_SERVER_TIMEOUT_DATA = "server.smtp.timeout.data";
+  public static final String SMTP_SERVER_STARTTLS_ENABLED = "server.smtp.starttls.enabled";
+  public static final String POP3_SERVER_STLS_ENABLED = "server.pop3.stls.enabled";
+
+  // LMTP监听配置，供上游MTA向本地邮箱投递，其余参数与SMTP服务器共用
+  public static final String LMTP_SERVER_ENABLED = "server.lmtp.enabled";
+  public static final String LMTP_SERVER_PORT = "server.lmtp.port";
+  public static final String LMTP_SERVER_MAX_CONNECTIONS = "server.lmtp.max.connections";
+
+  // TLS配置，SMTP的STARTTLS和POP3的STLS共用
+  public static final String TLS_KEYSTORE_PATH = "server.tls.keystore.path";
+  public static final String TLS_KEYSTORE_PASSWORD = "server.tls.keystore.password";
+  public static final String TLS_KEYSTORE_TYPE = "server.tls.keystore.type";
+  public static final String TLS_SESSION_CACHE_SIZE = "server.tls.session.cache.size";
+  public static final String TLS_SESSION_TIMEOUT = "server.tls.session.timeout";
 }
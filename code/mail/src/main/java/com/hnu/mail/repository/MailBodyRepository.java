@@ -0,0 +1,52 @@
+// MailBodyRepository.java
+package com.hnu.mail.repository;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import com.hnu.mail.model.MailBody;
+
+@Repository
+public interface MailBodyRepository extends JpaRepository<MailBody, Long> {
+
+  // 只查询主键，避免为了去重读出整段正文
+  @Query("SELECT b.id FROM MailBody b WHERE b.hash = :hash")
+  Optional<Long> findIdByHash(@Param("hash") String hash);
+
+  @Modifying
+  @Query(value = "INSERT INTO mail_bodies (hash, content, size, ref_count, created_at) " +
+      "VALUES (:hash, :content, :size, :refs, NOW()) " +
+      "ON DUPLICATE KEY UPDATE ref_count = ref_count + :refs", nativeQuery = true)
+  int upsert(@Param("hash") String hash, @Param("content") String content,
+             @Param("size") long size, @Param("refs") int refs);
+
+  @Modifying
+  @Query("UPDATE MailBody b SET b.refCount = b.refCount + :delta WHERE b.id = :id")
+  int adjustRefCount(@Param("id") Long id, @Param("delta") int delta);
+
+  // 与purgeUnreferenced相同，仍有邮件指向的正文即使计数归零也不删除
+  @Modifying
+  @Query(value = "DELETE b FROM mail_bodies b WHERE b.id IN (:ids) AND b.ref_count <= 0 " +
+      "AND NOT EXISTS (SELECT 1 FROM mails m WHERE m.body_id = b.id)", nativeQuery = true)
+  int deleteUnreferenced(@Param("ids") Collection<Long> ids);
+
+  // 删除用户前释放其收发邮件对正文的引用（邮件随用户级联删除）
+  @Modifying
+  @Query(value = "UPDATE mail_bodies b JOIN (SELECT body_id, COUNT(*) AS refs FROM mails " +
+      "WHERE sender_id = :userId OR receiver_id = :userId GROUP BY body_id) m ON b.id = m.body_id " +
+      "SET b.ref_count = b.ref_count - m.refs", nativeQuery = true)
+  int releaseByUser(@Param("userId") Long userId);
+
+  // 只删除已经没有邮件指向的正文，与邮件的删除顺序无关
+  @Modifying
+  @Query(value = "DELETE b FROM mail_bodies b WHERE b.ref_count <= 0 " +
+      "AND NOT EXISTS (SELECT 1 FROM mails m WHERE m.body_id = b.id)", nativeQuery = true)
+  int purgeUnreferenced();
+}
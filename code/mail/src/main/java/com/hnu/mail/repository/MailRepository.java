@@ -2,6 +2,7 @@
 package com.hnu.mail.repository;
 
 import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
 
 import org.springframework.data.domain.Page;
@@ -15,7 +16,7 @@ import com.hnu.mail.model.Mail;
 import com.hnu.mail.model.User;
 
 @Repository
-public interface MailRepository extends JpaRepository<Mail, Long> {
+public interface MailRepository extends JpaRepository<Mail, Long>, MailRepositoryCustom {
 
   Page<Mail> findByReceiverAndFolderAndIsDeletedFalse(
       User receiver, Mail.MailFolder folder, Pageable pageable);
@@ -42,7 +43,66 @@ public interface MailRepository extends JpaRepository<Mail, Long> {
 
   Long countBySentAtAfter(LocalDateTime time);
   
-  // 为POP3服务器添加的方法，根据收件人用户名查找邮件
-  @Query("SELECT m FROM Mail m WHERE m.receiver.username = :username AND m.folder = 'INBOX' AND m.isDeleted = false")
-  List<Mail> findByRecipient(@Param("username") String username);
+  // POP3邮件列表只查询索引idx_maildrop覆盖的字段，不加载邮件实体和正文，按ID排序保证邮件编号稳定
+  @Query("SELECT m.id AS id, m.body.id AS bodyId, m.octets AS size FROM Mail m " +
+      "WHERE m.receiver.id = :userId AND m.folder = 'INBOX' AND m.isDeleted = false ORDER BY m.id")
+  List<MaildropEntry> findMaildrop(@Param("userId") Long userId);
+
+  // 按收件人汇总指定邮件中属于POP3邮箱的部分，用于物理删除后调整计数器
+  @Query("SELECT m.receiver.id AS userId, COUNT(m) AS messages, COALESCE(SUM(m.octets), 0) AS octets " +
+      "FROM Mail m WHERE m.id IN :ids AND m.folder = 'INBOX' AND m.isDeleted = false " +
+      "GROUP BY m.receiver.id ORDER BY m.receiver.id")
+  List<MaildropTotals> sumMaildropByIds(@Param("ids") Collection<Long> ids);
+
+  // POP3 RETR/TOP时查询邮件的信封字段，一批流水线命令只查询一次
+  @Query("SELECT m.id AS id, m.senderEmail AS senderEmail, m.receiverEmail AS receiverEmail, " +
+      "m.subject AS subject, m.sentAt AS sentAt, m.rawFile AS rawFile FROM Mail m WHERE m.id IN :ids")
+  List<MessageEnvelope> findEnvelopes(@Param("ids") Collection<Long> ids);
+
+  // 按ID查询正文引用，用于物理删除前释放正文
+  @Query("SELECT m.body.id FROM Mail m WHERE m.id IN :ids AND m.body IS NOT NULL")
+  List<Long> findBodyIds(@Param("ids") Collection<Long> ids);
+
+  // 按ID查询邮件原文文件，用于物理删除后回收文件
+  @Query("SELECT DISTINCT m.rawFile FROM Mail m WHERE m.id IN :ids AND m.rawFile IS NOT NULL")
+  List<String> findRawFiles(@Param("ids") Collection<Long> ids);
+
+  // 用户作为收件人或发件人的邮件引用的原文文件，用户被删除时邮件随之级联删除
+  @Query("SELECT DISTINCT m.rawFile FROM Mail m WHERE (m.sender.id = :userId OR m.receiver.id = :userId) " +
+      "AND m.rawFile IS NOT NULL")
+  List<String> findRawFilesByUser(@Param("userId") Long userId);
+
+  // 仍被邮件引用的原文文件，多个收件人共用同一文件
+  @Query("SELECT DISTINCT m.rawFile FROM Mail m WHERE m.rawFile IN :files")
+  List<String> findReferencedRawFiles(@Param("files") Collection<String> files);
+
+  interface MaildropEntry {
+    Long getId();
+
+    Long getBodyId();
+
+    Long getSize();
+  }
+
+  interface MaildropTotals {
+    Long getUserId();
+
+    Long getMessages();
+
+    Long getOctets();
+  }
+
+  interface MessageEnvelope {
+    Long getId();
+
+    String getSenderEmail();
+
+    String getReceiverEmail();
+
+    String getSubject();
+
+    LocalDateTime getSentAt();
+
+    String getRawFile();
+  }
 } 
\ No newline at end of file
@@ -0,0 +1,18 @@
+package com.hnu.mail.repository;
+
+import java.util.List;
+
+import com.hnu.mail.model.Mail;
+
+/**
+ * MailRepository的自定义批量操作
+ */
+public interface MailRepositoryCustom {
+
+  /**
+   * 使用JDBC批量插入邮件记录。
+   * Mail的主键采用IDENTITY策略，Hibernate不会对其插入做JDBC批处理，因此批量投递走这里；
+   * 插入后回填实体的id，并一起插入邮件上挂载的附件记录。
+   */
+  void batchInsert(List<Mail> mails);
+}
@@ -0,0 +1,103 @@
+package com.hnu.mail.repository;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import com.hnu.mail.model.Attachment;
+import com.hnu.mail.model.Mail;
+import com.hnu.mail.model.MailHeaders;
+
+import lombok.RequiredArgsConstructor;
+
+@RequiredArgsConstructor
+public class MailRepositoryCustomImpl implements MailRepositoryCustom {
+
+  // 每批插入的行数，避免单个批次超过MySQL的max_allowed_packet
+  private static final int BATCH_SIZE = 100;
+
+  private static final String INSERT_SQL = "INSERT INTO mails " +
+      "(subject, body_id, sender_id, receiver_id, sender_email, receiver_email, " +
+      "is_read, is_starred, is_deleted, is_draft, sent_at, received_at, size, octets, raw_file, folder, " +
+      "header_from, header_date, message_id, in_reply_to) " +
+      "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+  private static final String INSERT_ATTACHMENT_SQL = "INSERT INTO attachments " +
+      "(filename, file_type, file_size, file_path, mail_id, uploaded_at) VALUES (?, ?, ?, ?, ?, ?)";
+
+  private final JdbcTemplate jdbcTemplate;
+
+  @Override
+  public void batchInsert(List<Mail> mails) {
+    // 需要取回自增主键以便插入附件记录，因此直接使用JDBC批处理
+    jdbcTemplate.execute((ConnectionCallback<Void>) connection -> {
+      try (PreparedStatement ps = connection.prepareStatement(INSERT_SQL, Statement.RETURN_GENERATED_KEYS)) {
+        for (int from = 0; from < mails.size(); from += BATCH_SIZE) {
+          List<Mail> chunk = mails.subList(from, Math.min(mails.size(), from + BATCH_SIZE));
+          for (Mail mail : chunk) {
+            setMail(ps, mail);
+            ps.addBatch();
+          }
+          ps.executeBatch();
+          try (ResultSet keys = ps.getGeneratedKeys()) {
+            for (Mail mail : chunk) {
+              if (keys.next()) {
+                mail.setId(keys.getLong(1));
+              }
+            }
+          }
+        }
+      }
+      return null;
+    });
+
+    List<Attachment> attachments = new ArrayList<>();
+    for (Mail mail : mails) {
+      if (mail.getId() != null && mail.getAttachments() != null) {
+        attachments.addAll(mail.getAttachments());
+      }
+    }
+    if (!attachments.isEmpty()) {
+      jdbcTemplate.batchUpdate(INSERT_ATTACHMENT_SQL, attachments, BATCH_SIZE, (ps, attachment) -> {
+        ps.setString(1, attachment.getFilename());
+        ps.setString(2, attachment.getFileType());
+        ps.setObject(3, attachment.getFileSize(), Types.BIGINT);
+        ps.setString(4, attachment.getFilePath());
+        ps.setLong(5, attachment.getMail().getId());
+        ps.setTimestamp(6, attachment.getUploadedAt() != null ? Timestamp.valueOf(attachment.getUploadedAt()) : null);
+      });
+    }
+  }
+
+  private static void setMail(PreparedStatement ps, Mail mail) throws SQLException {
+    ps.setString(1, mail.getSubject());
+    ps.setObject(2, mail.getBody() != null ? mail.getBody().getId() : null, Types.BIGINT);
+    ps.setObject(3, mail.getSender() != null ? mail.getSender().getId() : null, Types.BIGINT);
+    ps.setObject(4, mail.getReceiver() != null ? mail.getReceiver().getId() : null, Types.BIGINT);
+    ps.setString(5, mail.getSenderEmail());
+    ps.setString(6, mail.getReceiverEmail());
+    ps.setBoolean(7, Boolean.TRUE.equals(mail.getIsRead()));
+    ps.setBoolean(8, Boolean.TRUE.equals(mail.getIsStarred()));
+    ps.setBoolean(9, Boolean.TRUE.equals(mail.getIsDeleted()));
+    ps.setBoolean(10, Boolean.TRUE.equals(mail.getIsDraft()));
+    ps.setTimestamp(11, mail.getSentAt() != null ? Timestamp.valueOf(mail.getSentAt()) : null);
+    ps.setTimestamp(12, mail.getReceivedAt() != null ? Timestamp.valueOf(mail.getReceivedAt()) : null);
+    ps.setObject(13, mail.getSize(), Types.INTEGER);
+    ps.setObject(14, mail.getOctets(), Types.BIGINT);
+    ps.setString(15, mail.getRawFile());
+    ps.setString(16, mail.getFolder() != null ? mail.getFolder().name() : null);
+    MailHeaders headers = mail.getHeaders();
+    ps.setString(17, headers != null ? headers.getFrom() : null);
+    ps.setTimestamp(18, headers != null && headers.getDate() != null ? Timestamp.valueOf(headers.getDate()) : null);
+    ps.setString(19, headers != null ? headers.getMessageId() : null);
+    ps.setString(20, headers != null ? headers.getInReplyTo() : null);
+  }
+}
@@ -0,0 +1,22 @@
+// MailboxStatsRepository.java
+package com.hnu.mail.repository;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import com.hnu.mail.model.MailboxStats;
+
+@Repository
+public interface MailboxStatsRepository extends JpaRepository<MailboxStats, Long> {
+
+  // 增量更新计数器，用户的第一封邮件时插入计数行
+  @Modifying
+  @Query(value = "INSERT INTO mailbox_stats (user_id, message_count, total_octets) " +
+      "VALUES (:userId, :messages, :octets) " +
+      "ON DUPLICATE KEY UPDATE message_count = message_count + :messages, total_octets = total_octets + :octets",
+      nativeQuery = true)
+  int adjust(@Param("userId") Long userId, @Param("messages") long messages, @Param("octets") long octets);
+}
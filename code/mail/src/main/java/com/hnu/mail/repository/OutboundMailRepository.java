@@ -0,0 +1,18 @@
+// OutboundMailRepository.java
+package com.hnu.mail.repository;
+
+import java.util.List;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+import com.hnu.mail.model.OutboundMail;
+
+@Repository
+public interface OutboundMailRepository extends JpaRepository<OutboundMail, Long> {
+
+  // 启动时恢复尚未发送的邮件，按下次重试时间排序
+  List<OutboundMail> findByStatusOrderByNextAttemptAtAsc(OutboundMail.Status status);
+
+  long countByStatus(OutboundMail.Status status);
+}
@@ -0,0 +1,133 @@
+package com.hnu.mail.server;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 连接准入控制：限制全局连接数和单个客户端IP的连接数。
+ * 计数器基于CAS实现，接受连接的线程不需要加锁；每个连接同一时刻最多只有一个会话任务，
+ * 因此连接数上限同时也限制了在途的处理任务数和它们占用的数据库连接。
+ */
+public class AdmissionController {
+
+    private final int maxConnections;
+    private final int maxConnectionsPerClient;
+    private final String busyReply;
+
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong rejected = new AtomicLong();
+    private final ConcurrentMap<InetAddress, AtomicInteger> perClient = new ConcurrentHashMap<>();
+
+    /**
+     * @param maxConnections 全局最大连接数，小于等于0表示不限制
+     * @param maxConnectionsPerClient 单个IP最大连接数，小于等于0表示不限制
+     * @param busyReply 拒绝连接时发送给客户端的响应行
+     */
+    public AdmissionController(int maxConnections, int maxConnectionsPerClient, String busyReply) {
+        this.maxConnections = maxConnections;
+        this.maxConnectionsPerClient = maxConnectionsPerClient;
+        this.busyReply = busyReply;
+    }
+
+    /**
+     * 不做任何限制的准入控制
+     */
+    public static AdmissionController unlimited() {
+        return new AdmissionController(0, 0, null);
+    }
+
+    /**
+     * 尝试为新连接占用名额
+     * @return 连接关闭时需要释放的许可，超过限制时返回null
+     */
+    public Permit tryAcquire(InetAddress client) {
+        if (!acquireGlobal()) {
+            rejected.incrementAndGet();
+            return null;
+        }
+        AtomicInteger counter = acquireClient(client);
+        if (counter == null && maxConnectionsPerClient > 0 && client != null) {
+            active.decrementAndGet();
+            rejected.incrementAndGet();
+            return null;
+        }
+        return new Permit(client, counter);
+    }
+
+    public String busyReply() {
+        return busyReply;
+    }
+
+    public int activeConnections() {
+        return active.get();
+    }
+
+    public long rejectedConnections() {
+        return rejected.get();
+    }
+
+    private boolean acquireGlobal() {
+        while (true) {
+            int current = active.get();
+            if (maxConnections > 0 && current >= maxConnections) {
+                return false;
+            }
+            if (active.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private AtomicInteger acquireClient(InetAddress client) {
+        if (maxConnectionsPerClient <= 0 || client == null) {
+            return null;
+        }
+        while (true) {
+            AtomicInteger counter = perClient.computeIfAbsent(client, k -> new AtomicInteger());
+            int current = counter.get();
+            if (current < 0) {
+                // 计数器正在被回收，重新获取
+                continue;
+            }
+            if (current >= maxConnectionsPerClient) {
+                return null;
+            }
+            if (counter.compareAndSet(current, current + 1)) {
+                return counter;
+            }
+        }
+    }
+
+    private void release(InetAddress client, AtomicInteger counter) {
+        if (counter != null && counter.decrementAndGet() == 0 && counter.compareAndSet(0, -1)) {
+            // 该IP已没有连接，回收计数器，避免表随客户端数量无限增长
+            perClient.remove(client, counter);
+        }
+        active.decrementAndGet();
+    }
+
+    /**
+     * 单个连接占用的名额，只能释放一次
+     */
+    public final class Permit {
+
+        private final InetAddress client;
+        private final AtomicInteger counter;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Permit(InetAddress client, AtomicInteger counter) {
+            this.client = client;
+            this.counter = counter;
+        }
+
+        public void release() {
+            if (released.compareAndSet(false, true)) {
+                AdmissionController.this.release(client, counter);
+            }
+        }
+    }
+}
@@ -0,0 +1,365 @@
+package com.hnu.mail.server;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 阻塞I/O服务器引擎：每个连接占用执行器中的一个线程。
+ * 连接通过ServerSocketChannel接受，明文连接上发送文件时可以直接用transferTo写入套接字通道
+ */
+@Slf4j
+public class BlockingServerEngine implements ServerEngine {
+
+    private static final int MAX_LINE_LENGTH = 1024 * 1024;
+    private static final int OUTPUT_BUFFER_SIZE = 2048;
+    // 接收原始数据块时的读取缓冲大小
+    private static final int BINARY_READ_SIZE = 64 * 1024;
+    // TLS连接上发送文件时每次读取的块大小
+    private static final int FILE_CHUNK_SIZE = 16 * 1024;
+
+    private final String name;
+    private final int port;
+    private final ExecutorService executorService;
+    private final SessionFactory sessionFactory;
+    private final AdmissionController admission;
+    private final TlsContext tls;
+
+    private ServerSocketChannel serverChannel;
+    private volatile boolean running = false;
+
+    public BlockingServerEngine(String name, int port, ExecutorService executorService,
+                                SessionFactory sessionFactory) {
+        this(name, port, executorService, sessionFactory, AdmissionController.unlimited());
+    }
+
+    public BlockingServerEngine(String name, int port, ExecutorService executorService,
+                                SessionFactory sessionFactory, AdmissionController admission) {
+        this(name, port, executorService, sessionFactory, admission, null);
+    }
+
+    /**
+     * @param tls 为null时不支持STARTTLS
+     */
+    public BlockingServerEngine(String name, int port, ExecutorService executorService,
+                                SessionFactory sessionFactory, AdmissionController admission, TlsContext tls) {
+        this.name = name;
+        this.port = port;
+        this.executorService = executorService;
+        this.sessionFactory = sessionFactory;
+        this.admission = admission;
+        this.tls = tls;
+    }
+
+    @Override
+    public void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        running = true;
+
+        // 启动线程监听客户端连接
+        new Thread(() -> {
+            while (running) {
+                try {
+                    Socket clientSocket = serverChannel.accept().socket();
+                    AdmissionController.Permit permit = admission.tryAcquire(clientSocket.getInetAddress());
+                    if (permit == null) {
+                        reject(clientSocket);
+                        continue;
+                    }
+                    log.info("新的{}客户端连接: {}", name, clientSocket.getInetAddress());
+                    try {
+                        executorService.submit(() -> {
+                            try {
+                                serve(clientSocket);
+                            } finally {
+                                permit.release();
+                            }
+                        });
+                    } catch (RejectedExecutionException e) {
+                        permit.release();
+                        clientSocket.close();
+                    }
+                } catch (IOException e) {
+                    if (running) {
+                        log.error("{}服务器接受连接失败: {}", name, e.getMessage());
+                    }
+                }
+            }
+        }, name + "-acceptor").start();
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            log.error("关闭{}服务器端口失败: {}", name, e.getMessage());
+        }
+        executorService.shutdownNow();
+    }
+
+    /**
+     * 超过连接限制时立即回复繁忙并关闭连接，不为其分配处理线程
+     */
+    private void reject(Socket socket) {
+        log.warn("{}连接数已达上限，拒绝客户端: {}", name, socket.getInetAddress());
+        try (socket) {
+            OutputStream out = socket.getOutputStream();
+            out.write((admission.busyReply() + "\r\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        } catch (IOException e) {
+            log.debug("拒绝{}客户端连接时出错: {}", name, e.getMessage());
+        }
+    }
+
+    /**
+     * 在当前线程中驱动一个连接直到会话结束
+     */
+    private void serve(Socket socket) {
+        SocketChannelAdapter channel = new SocketChannelAdapter(socket);
+        ProtocolSession session = null;
+        try {
+            channel.open();
+            session = sessionFactory.create(channel);
+            session.start();
+            channel.flush();
+
+            LineBuffer lines = channel.lines;
+            boolean progressed = true;
+            while (!session.isClosed() && !channel.closed) {
+                long binary = session.binaryBytesExpected();
+                if (binary > 0 ? !lines.isEmpty() : lines.nextLine()) {
+                    if (!progressed) {
+                        channel.cancelTimeout();
+                        progressed = true;
+                    }
+                    if (binary > 0) {
+                        // 原始数据块不做行切分，原样交给会话
+                        session.onBinary(lines.take(binary));
+                    } else {
+                        session.onLine(lines.array(), lines.lineStart(), lines.lineLength());
+                    }
+                    continue;
+                }
+                // 已到达的命令全部处理完毕，在阻塞读取之前一次性发送本批响应
+                session.onInputDrained();
+                channel.flush();
+                if (session.isClosed() || channel.closed) {
+                    break;
+                }
+                if (progressed) {
+                    // 只有收到完整的行才重新计时，逐字节拖延发送无法续期
+                    channel.armTimeout(session.readTimeoutMillis());
+                    progressed = false;
+                }
+                if (binary > 0) {
+                    lines.ensureCapacity(BINARY_READ_SIZE);
+                }
+                lines.compact();
+                if (lines.fill(channel.in) < 0) {
+                    break;
+                }
+            }
+            if (channel.timedOut) {
+                log.info("{}客户端等待输入超时: {}", name, channel.remoteAddress());
+                session.onTimeout();
+                channel.flush();
+            }
+        } catch (IOException e) {
+            if (channel.timedOut) {
+                log.info("{}客户端等待输入超时: {}", name, channel.remoteAddress());
+            } else {
+                log.error("处理{}客户端连接时出错: {}", name, e.getMessage());
+            }
+        } finally {
+            channel.cancelTimeout();
+            channel.closeNow();
+            if (session != null) {
+                session.onClose();
+            }
+        }
+    }
+
+    /**
+     * 基于阻塞Socket的会话输出通道
+     */
+    private class SocketChannelAdapter implements SessionChannel {
+
+        private final Socket socket;
+        private final LineBuffer lines = new LineBuffer(MAX_LINE_LENGTH);
+        private InputStream in;
+        private OutputStream out;
+        private TlsConnection tlsConnection;
+        private boolean closed = false;
+        private TimerWheel.Timeout timeout;
+        private volatile boolean timedOut = false;
+
+        SocketChannelAdapter(Socket socket) {
+            this.socket = socket;
+        }
+
+        void open() throws IOException {
+            in = socket.getInputStream();
+            out = new BufferedOutputStream(socket.getOutputStream(), OUTPUT_BUFFER_SIZE);
+        }
+
+        @Override
+        public void write(String line) {
+            log.debug("发送{}响应: {}", name, line);
+            try {
+                out.write(line.getBytes(StandardCharsets.UTF_8));
+                out.write('\r');
+                out.write('\n');
+            } catch (IOException e) {
+                log.error("发送{}响应失败: {}", name, e.getMessage());
+                closed = true;
+            }
+        }
+
+        @Override
+        public void writeFile(Path file, long count) {
+            try (FileChannel source = FileChannel.open(file, StandardOpenOption.READ)) {
+                long end = Math.min(count, source.size());
+                SocketChannel target = socket.getChannel();
+                if (tlsConnection == null && target != null) {
+                    // 先发出缓冲中的响应，再由内核直接发送文件内容
+                    out.flush();
+                    long position = 0;
+                    while (position < end) {
+                        position += source.transferTo(position, end - position, target);
+                    }
+                } else {
+                    ByteBuffer chunk = ByteBuffer.allocate(FILE_CHUNK_SIZE);
+                    long position = 0;
+                    while (position < end) {
+                        chunk.clear().limit((int) Math.min(chunk.capacity(), end - position));
+                        int n = source.read(chunk, position);
+                        if (n < 0) {
+                            break;
+                        }
+                        out.write(chunk.array(), 0, n);
+                        position += n;
+                    }
+                }
+                log.debug("发送{}文件: {} ({} 字节)", name, file, end);
+            } catch (IOException e) {
+                log.error("发送{}文件失败: {}", name, e.getMessage());
+                closed = true;
+            }
+        }
+
+        @Override
+        public void flush() {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                log.error("发送{}响应失败: {}", name, e.getMessage());
+                closed = true;
+            }
+        }
+
+        @Override
+        public void close() {
+            flush();
+            closed = true;
+        }
+
+        @Override
+        public String remoteAddress() {
+            return String.valueOf(socket.getInetAddress());
+        }
+
+        @Override
+        public boolean canStartTls() {
+            return tls != null && tlsConnection == null;
+        }
+
+        @Override
+        public boolean isSecure() {
+            return tlsConnection != null;
+        }
+
+        /**
+         * 在会话线程中调用：发送已缓冲的明文响应，之后的读写都经过TLS
+         */
+        @Override
+        public void startTls() {
+            if (!canStartTls()) {
+                throw new IllegalStateException("当前连接不能升级为TLS");
+            }
+            flush();
+            lines.clear();
+            try {
+                tlsConnection = tls.newConnection();
+                OutputStream rawOut = socket.getOutputStream();
+                in = tlsConnection.inputStream(socket.getInputStream(), rawOut);
+                out = new BufferedOutputStream(tlsConnection.outputStream(rawOut), OUTPUT_BUFFER_SIZE);
+                log.debug("{}客户端开始TLS握手: {}", name, remoteAddress());
+            } catch (IOException e) {
+                log.error("{}客户端升级TLS失败: {}", name, e.getMessage());
+                closed = true;
+            }
+        }
+
+        /**
+         * 在共享时间轮上登记读超时，到期时关闭输入端，使阻塞中的读取返回
+         */
+        void armTimeout(long millis) {
+            cancelTimeout();
+            if (millis > 0) {
+                timeout = TimerWheel.shared().schedule(this::expire, millis);
+            }
+        }
+
+        void cancelTimeout() {
+            if (timeout != null) {
+                timeout.cancel();
+                timeout = null;
+            }
+        }
+
+        private void expire() {
+            timedOut = true;
+            try {
+                socket.shutdownInput();
+            } catch (IOException e) {
+                log.debug("关闭{}客户端输入时出错: {}", name, e.getMessage());
+            }
+        }
+
+        void closeNow() {
+            if (tlsConnection != null && tlsConnection.isHandshakeDone() && !timedOut) {
+                try {
+                    // 发送完缓冲的响应和close_notify
+                    out.close();
+                } catch (IOException e) {
+                    log.debug("发送{}客户端TLS关闭通知时出错: {}", name, e.getMessage());
+                }
+            }
+            try {
+                socket.close();
+                log.info("{}客户端连接已关闭", name);
+            } catch (IOException e) {
+                log.error("关闭{}客户端连接时出错: {}", name, e.getMessage());
+            }
+        }
+    }
+}
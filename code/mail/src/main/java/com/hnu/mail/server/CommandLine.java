@@ -0,0 +1,280 @@
+package com.hnu.mail.server;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 协议命令行解析器，SMTP和POP3会话共用。
+ * 直接在引擎的输入缓冲上按ASCII字节解析，命令名编码为int后可直接用于switch，
+ * 参数、地址和扩展参数都以缓冲区中的位置表示，只有会话确实需要字符串时才创建对象。
+ * 每个会话持有一个实例并对每一行重复使用，解析结果只在下一次parse之前有效。
+ */
+public final class CommandLine {
+
+    private byte[] buf;
+    private int end;
+    private int verbStart;
+    private int verbEnd;
+    private int argStart;
+    private int pathStart;
+    private int pathEnd;
+    private int tokenStart;
+    private int tokenEnd;
+    private int cursor;
+
+    /**
+     * 解析一行命令（不含CRLF），去掉首尾空白
+     * @return 当前实例，便于链式调用
+     */
+    public CommandLine parse(byte[] buf, int off, int len) {
+        this.buf = buf;
+        int start = off;
+        int stop = off + len;
+        while (start < stop && isSpace(buf[start])) {
+            start++;
+        }
+        while (stop > start && isSpace(buf[stop - 1])) {
+            stop--;
+        }
+        this.end = stop;
+        this.verbStart = start;
+        int i = start;
+        while (i < stop && !isSpace(buf[i])) {
+            i++;
+        }
+        this.verbEnd = i;
+        while (i < stop && isSpace(buf[i])) {
+            i++;
+        }
+        this.argStart = i;
+        this.pathStart = -1;
+        this.pathEnd = -1;
+        this.cursor = i;
+        this.tokenStart = -1;
+        this.tokenEnd = -1;
+        return this;
+    }
+
+    /**
+     * 命令名编码：不超过4个字母的命令名按大写ASCII从高位到低位排列，
+     * 例如 "MAIL" 对应 'M' &lt;&lt; 24 | 'A' &lt;&lt; 16 | 'I' &lt;&lt; 8 | 'L'，不足4个字母时低位补0。
+     * 超过4个字符或含非字母字符时返回0
+     */
+    public int verb() {
+        int len = verbEnd - verbStart;
+        if (len == 0 || len > 4) {
+            return 0;
+        }
+        int code = 0;
+        for (int i = 0; i < 4; i++) {
+            code <<= 8;
+            if (i < len) {
+                int c = buf[verbStart + i] & 0xDF; // 小写字母转大写
+                if (c < 'A' || c > 'Z') {
+                    return 0;
+                }
+                code |= c;
+            }
+        }
+        return code;
+    }
+
+    /**
+     * 命令名是否为指定的名称（忽略大小写），用于超过4个字母的命令
+     */
+    public boolean verbIs(String upperName) {
+        return regionEqualsIgnoreCase(verbStart, verbEnd, upperName);
+    }
+
+    /**
+     * 命令名的字符串形式，只用于日志
+     */
+    public String verbText() {
+        return new String(buf, verbStart, verbEnd - verbStart, StandardCharsets.US_ASCII);
+    }
+
+    public boolean hasArg() {
+        return argStart < end;
+    }
+
+    /**
+     * 完整的参数字符串，没有参数时返回null
+     */
+    public String arg() {
+        return hasArg() ? new String(buf, argStart, end - argStart, StandardCharsets.UTF_8) : null;
+    }
+
+    /**
+     * 把整个参数解析为非负整数，参数不是合法数字时返回-1
+     */
+    public int argAsInt() {
+        long value = parseLong(argStart, end);
+        return value > Integer.MAX_VALUE ? -1 : (int) value;
+    }
+
+    /**
+     * 解析形如 "FROM:&lt;address&gt; PARAM=VALUE ..." 的参数。
+     * 关键字忽略大小写，冒号后允许空白，地址可以带或不带尖括号；
+     * 成功后可以通过path()取得地址，并用nextToken()依次读取其后的扩展参数
+     * @param keyword 关键字，包含冒号，例如 "FROM:"
+     * @return 格式不正确时返回false
+     */
+    public boolean parsePath(String keyword) {
+        int i = argStart;
+        if (end - i < keyword.length() || !regionEqualsIgnoreCase(i, i + keyword.length(), keyword)) {
+            return false;
+        }
+        i += keyword.length();
+        while (i < end && isSpace(buf[i])) {
+            i++;
+        }
+        if (i < end && buf[i] == '<') {
+            int close = indexOf((byte) '>', i + 1);
+            if (close < 0) {
+                return false;
+            }
+            pathStart = i + 1;
+            pathEnd = close;
+            i = close + 1;
+        } else {
+            pathStart = i;
+            while (i < end && !isSpace(buf[i])) {
+                i++;
+            }
+            pathEnd = i;
+        }
+        cursor = i;
+        return true;
+    }
+
+    /**
+     * parsePath解析出的地址，未解析时返回null
+     */
+    public String path() {
+        return pathStart < 0 ? null : new String(buf, pathStart, pathEnd - pathStart, StandardCharsets.UTF_8);
+    }
+
+    public int pathLength() {
+        return pathStart < 0 ? 0 : pathEnd - pathStart;
+    }
+
+    /**
+     * 读取下一个以空白分隔的参数。首次调用从参数开头读取，parsePath之后从地址之后读取
+     * @return 没有更多参数时返回false
+     */
+    public boolean nextToken() {
+        int i = cursor;
+        while (i < end && isSpace(buf[i])) {
+            i++;
+        }
+        if (i >= end) {
+            cursor = end;
+            return false;
+        }
+        tokenStart = i;
+        while (i < end && !isSpace(buf[i])) {
+            i++;
+        }
+        tokenEnd = i;
+        cursor = i;
+        return true;
+    }
+
+    /**
+     * 当前参数是否等于指定的值（忽略大小写）
+     */
+    public boolean tokenIs(String upperValue) {
+        return regionEqualsIgnoreCase(tokenStart, tokenEnd, upperValue);
+    }
+
+    /**
+     * 当前参数是否为 KEY=VALUE 形式且键等于指定的名称（忽略大小写）
+     */
+    public boolean tokenKeyIs(String upperKey) {
+        int keyEnd = tokenStart + upperKey.length();
+        return keyEnd < tokenEnd && buf[keyEnd] == '='
+                && regionEqualsIgnoreCase(tokenStart, keyEnd, upperKey);
+    }
+
+    /**
+     * 当前 KEY=VALUE 参数的值是否等于指定的值（忽略大小写）
+     */
+    public boolean tokenValueIs(String upperValue) {
+        int eq = valueStart();
+        return eq >= 0 && regionEqualsIgnoreCase(eq, tokenEnd, upperValue);
+    }
+
+    /**
+     * 把当前参数解析为非负整数，不是合法数字时返回-1
+     */
+    public long tokenAsLong() {
+        return parseLong(tokenStart, tokenEnd);
+    }
+
+    /**
+     * 把当前 KEY=VALUE 参数的值解析为非负整数，不是合法数字时返回-1
+     */
+    public long tokenValueAsLong() {
+        int eq = valueStart();
+        return eq < 0 ? -1 : parseLong(eq, tokenEnd);
+    }
+
+    /**
+     * 整行的字符串形式，只用于日志
+     */
+    @Override
+    public String toString() {
+        return buf == null ? "" : new String(buf, verbStart, end - verbStart, StandardCharsets.UTF_8);
+    }
+
+    private int valueStart() {
+        int i = indexOf((byte) '=', tokenStart);
+        return i < 0 || i >= tokenEnd ? -1 : i + 1;
+    }
+
+    private int indexOf(byte b, int from) {
+        for (int i = from; i < end; i++) {
+            if (buf[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean regionEqualsIgnoreCase(int from, int to, String upper) {
+        if (from < 0 || to - from != upper.length()) {
+            return false;
+        }
+        for (int i = 0; i < upper.length(); i++) {
+            int c = buf[from + i];
+            if (c >= 'a' && c <= 'z') {
+                c -= 'a' - 'A';
+            }
+            if (c != upper.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 解析不带符号的十进制数，最多18位，避免溢出
+     */
+    private long parseLong(int from, int to) {
+        if (from < 0 || from >= to || to - from > 18) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            int digit = buf[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+}
@@ -0,0 +1,179 @@
+package com.hnu.mail.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * 可复用的按行切分缓冲区，阻塞引擎和NIO引擎共用。
+ * 行以LF结束，行尾的CR会被去掉；缓冲区只在行超过当前容量时扩容。
+ * 会话接收原始数据时可以不经过行切分，直接按字节数取出缓冲区中的数据。
+ */
+public class LineBuffer {
+
+    // 初始容量保持较小，大量空闲连接时每个连接只占用很少内存
+    private static final int INITIAL_CAPACITY = 2048;
+
+    private final int maxLineLength;
+    private byte[] buf = new byte[INITIAL_CAPACITY];
+    private int start; // 未消费数据的起始位置
+    private int end;   // 有效数据的结束位置
+    private int scan;  // 下一次查找LF的位置
+    private int lineStart;
+    private int lineLength;
+
+    public LineBuffer(int maxLineLength) {
+        this.maxLineLength = maxLineLength;
+    }
+
+    /**
+     * 从输入流读取数据
+     * @return 读取的字节数，-1表示流已结束
+     */
+    public int fill(InputStream in) throws IOException {
+        ensureSpace();
+        int n = in.read(buf, end, buf.length - end);
+        if (n > 0) {
+            end += n;
+        }
+        return n;
+    }
+
+    /**
+     * 从非阻塞通道读取数据
+     * @return 读取的字节数，-1表示通道已关闭
+     */
+    public int fill(ReadableByteChannel channel) throws IOException {
+        ensureSpace();
+        int n = channel.read(ByteBuffer.wrap(buf, end, buf.length - end));
+        if (n > 0) {
+            end += n;
+        }
+        return n;
+    }
+
+    /**
+     * 尝试取出下一行
+     * @return 缓冲区中存在完整的一行时返回true
+     */
+    public boolean nextLine() {
+        for (int i = scan; i < end; i++) {
+            if (buf[i] == '\n') {
+                int len = i - start;
+                if (len > 0 && buf[i - 1] == '\r') {
+                    len--;
+                }
+                lineStart = start;
+                lineLength = len;
+                start = i + 1;
+                scan = start;
+                return true;
+            }
+        }
+        scan = end;
+        return false;
+    }
+
+    /**
+     * 缓冲区中是否已有完整的一行
+     */
+    public boolean hasLine() {
+        for (int i = scan; i < end; i++) {
+            if (buf[i] == '\n') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 不做行切分，直接取出最多max个未消费的字节
+     * @return 指向内部数组的视图，只在下一次读取或压缩之前有效
+     */
+    public ByteBuffer take(long max) {
+        int n = (int) Math.min(max, end - start);
+        ByteBuffer slice = ByteBuffer.wrap(buf, start, n);
+        start += n;
+        scan = Math.max(scan, start);
+        return slice;
+    }
+
+    /**
+     * 将缓冲区扩容到至少capacity字节（不超过最大行长度），用于接收大块原始数据时减少读取次数
+     */
+    public void ensureCapacity(int capacity) {
+        int target = Math.min(capacity, maxLineLength);
+        if (buf.length >= target) {
+            return;
+        }
+        byte[] grown = new byte[target];
+        System.arraycopy(buf, 0, grown, 0, end);
+        buf = grown;
+    }
+
+    /**
+     * 丢弃所有未消费的数据
+     */
+    public void clear() {
+        start = 0;
+        end = 0;
+        scan = 0;
+    }
+
+    /**
+     * 当前是否没有未消费的数据
+     */
+    public boolean isEmpty() {
+        return start == end;
+    }
+
+    /**
+     * 未完成的一行是否已超过最大行长度
+     */
+    public boolean isOverflowed() {
+        return end - start >= maxLineLength;
+    }
+
+    public byte[] array() {
+        return buf;
+    }
+
+    public int lineStart() {
+        return lineStart;
+    }
+
+    public int lineLength() {
+        return lineLength;
+    }
+
+    /**
+     * 将未消费的数据移动到缓冲区头部
+     */
+    public void compact() {
+        if (start == 0) {
+            return;
+        }
+        int remaining = end - start;
+        System.arraycopy(buf, start, buf, 0, remaining);
+        scan -= start;
+        end = remaining;
+        start = 0;
+    }
+
+    private void ensureSpace() throws IOException {
+        if (end < buf.length) {
+            return;
+        }
+        compact();
+        if (end < buf.length) {
+            return;
+        }
+        if (buf.length >= maxLineLength) {
+            throw new IOException("行长度超过限制: " + maxLineLength);
+        }
+        byte[] grown = new byte[Math.min(buf.length * 2, maxLineLength)];
+        System.arraycopy(buf, 0, grown, 0, end);
+        buf = grown;
+    }
+}
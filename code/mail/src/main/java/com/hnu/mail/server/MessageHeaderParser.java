@@ -0,0 +1,291 @@
+package com.hnu.mail.server;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Base64;
+
+/**
+ * 流式RFC 5322邮件头解析器：接收邮件数据时逐行输入，遇到分隔邮件头和正文的空行后停止。
+ * 只缓存需要建立索引的几个头字段（Subject、From、Date、Message-ID、In-Reply-To），
+ * 其余头字段连同折叠行直接跳过；折叠行会被展开，Subject和From中的RFC 2047编码字会被解码。
+ * 单个头字段超过长度上限时截断，因此占用的内存与邮件大小无关。
+ */
+public class MessageHeaderParser {
+
+    // 单个头字段保留的最大字节数（RFC 5322建议每行不超过998字节）
+    private static final int MAX_FIELD_LENGTH = 4096;
+
+    private final byte[] value = new byte[MAX_FIELD_LENGTH];
+    private int valueLength;
+    private Field field;
+    private boolean done;
+
+    private String subject;
+    private String from;
+    private LocalDateTime date;
+    private String messageId;
+    private String inReplyTo;
+
+    /**
+     * 输入一行邮件数据（不含CRLF，已去掉SMTP点转义）
+     * @return 邮件头已结束时返回false，之后的行不需要再输入
+     */
+    public boolean feed(byte[] buf, int off, int len) {
+        if (done) {
+            return false;
+        }
+        if (len > 0 && (buf[off] == ' ' || buf[off] == '\t')) {
+            // 折叠行：展开时只去掉换行，保留行首空白
+            if (field != null) {
+                append(buf, off, len);
+            }
+            return true;
+        }
+        completeField();
+        if (len == 0) {
+            done = true;
+            return false;
+        }
+        startField(buf, off, len);
+        return true;
+    }
+
+    /**
+     * 邮件数据已全部输入，没有空行结束的邮件头也在这里完成
+     */
+    public void finish() {
+        completeField();
+        done = true;
+    }
+
+    public String subject() {
+        return subject;
+    }
+
+    public String from() {
+        return from;
+    }
+
+    public LocalDateTime date() {
+        return date;
+    }
+
+    public String messageId() {
+        return messageId;
+    }
+
+    public String inReplyTo() {
+        return inReplyTo;
+    }
+
+    private void startField(byte[] buf, int off, int len) {
+        for (Field candidate : Field.values()) {
+            byte[] name = candidate.name;
+            if (len >= name.length && startsWithIgnoreCase(buf, off, name) && !candidate.isSet(this)) {
+                field = candidate;
+                valueLength = 0;
+                append(buf, off + name.length, len - name.length);
+                return;
+            }
+        }
+        field = null;
+    }
+
+    private void append(byte[] buf, int off, int len) {
+        int n = Math.min(len, value.length - valueLength);
+        System.arraycopy(buf, off, value, valueLength, n);
+        valueLength += n;
+    }
+
+    private void completeField() {
+        if (field == null) {
+            return;
+        }
+        String text = new String(value, 0, valueLength, StandardCharsets.UTF_8).trim();
+        switch (field) {
+            case SUBJECT -> subject = decodeWords(text);
+            case FROM -> from = decodeWords(text);
+            case DATE -> date = parseDate(text);
+            case MESSAGE_ID -> messageId = firstMessageId(text);
+            case IN_REPLY_TO -> inReplyTo = firstMessageId(text);
+        }
+        field = null;
+    }
+
+    /**
+     * 解码RFC 2047编码字（=?charset?B|Q?text?=）。
+     * 相邻编码字之间的空白被去掉，同一字符集的相邻编码字先拼接字节再解码，
+     * 这样被拆到两个编码字中的多字节字符也能正确还原；无法识别的编码字保持原样
+     */
+    static String decodeWords(String text) {
+        if (!text.contains("=?")) {
+            return text;
+        }
+        StringBuilder result = new StringBuilder(text.length());
+        ByteArrayOutputStream pendingBytes = new ByteArrayOutputStream();
+        Charset pendingCharset = null;
+        int gapStart = -1; // 上一个编码字之后的空白起点
+        int i = 0;
+        while (i < text.length()) {
+            int start = text.indexOf("=?", i);
+            EncodedWord word = start < 0 ? null : EncodedWord.parse(text, start);
+            if (word == null) {
+                int next = start < 0 ? text.length() : start + 2;
+                flush(result, pendingBytes, pendingCharset);
+                pendingCharset = null;
+                result.append(text, gapStart >= 0 ? gapStart : i, next);
+                gapStart = -1;
+                i = next;
+                continue;
+            }
+            boolean adjacent = gapStart >= 0 && text.substring(gapStart, start).isBlank();
+            if (!adjacent) {
+                flush(result, pendingBytes, pendingCharset);
+                pendingCharset = null;
+                result.append(text, gapStart >= 0 ? gapStart : i, start);
+            } else if (!word.charset.equals(pendingCharset)) {
+                flush(result, pendingBytes, pendingCharset);
+            }
+            pendingCharset = word.charset;
+            pendingBytes.writeBytes(word.bytes);
+            i = word.end;
+            gapStart = i;
+        }
+        flush(result, pendingBytes, pendingCharset);
+        if (gapStart >= 0) {
+            result.append(text, gapStart, text.length());
+        }
+        return result.toString();
+    }
+
+    private static void flush(StringBuilder result, ByteArrayOutputStream bytes, Charset charset) {
+        if (bytes.size() > 0) {
+            result.append(new String(bytes.toByteArray(), charset));
+            bytes.reset();
+        }
+    }
+
+    /**
+     * 解析RFC 5322日期，去掉注释后按RFC 1123格式解析，转换为服务器本地时间；无法解析时返回null
+     */
+    static LocalDateTime parseDate(String text) {
+        String cleaned = text.replaceAll("\\([^)]*\\)", " ").trim().replaceAll("\\s+", " ");
+        try {
+            return ZonedDateTime.parse(cleaned, DateTimeFormatter.RFC_1123_DATE_TIME)
+                    .withZoneSameInstant(ZoneId.systemDefault())
+                    .toLocalDateTime();
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 取出第一个 &lt;id&gt; 形式的消息ID（不含尖括号），没有尖括号时取第一个非空白片段
+     */
+    static String firstMessageId(String text) {
+        int open = text.indexOf('<');
+        int close = open < 0 ? -1 : text.indexOf('>', open + 1);
+        if (open >= 0 && close > open + 1) {
+            return text.substring(open + 1, close);
+        }
+        String[] parts = text.trim().split("\\s+", 2);
+        return parts[0].isEmpty() ? null : parts[0];
+    }
+
+    private static boolean startsWithIgnoreCase(byte[] buf, int off, byte[] prefix) {
+        for (int i = 0; i < prefix.length; i++) {
+            if (Character.toLowerCase(buf[off + i]) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 需要建立索引的头字段，每个字段只取第一次出现的值
+     */
+    private enum Field {
+        SUBJECT("subject:"),
+        FROM("from:"),
+        DATE("date:"),
+        MESSAGE_ID("message-id:"),
+        IN_REPLY_TO("in-reply-to:");
+
+        private final byte[] name;
+
+        Field(String name) {
+            this.name = name.getBytes(StandardCharsets.US_ASCII);
+        }
+
+        boolean isSet(MessageHeaderParser parser) {
+            return switch (this) {
+                case SUBJECT -> parser.subject != null;
+                case FROM -> parser.from != null;
+                case DATE -> parser.date != null;
+                case MESSAGE_ID -> parser.messageId != null;
+                case IN_REPLY_TO -> parser.inReplyTo != null;
+            };
+        }
+    }
+
+    /**
+     * 一个已解码的编码字
+     */
+    private record EncodedWord(Charset charset, byte[] bytes, int end) {
+
+        static EncodedWord parse(String text, int start) {
+            int charsetEnd = text.indexOf('?', start + 2);
+            if (charsetEnd < 0 || charsetEnd + 2 >= text.length() || text.charAt(charsetEnd + 2) != '?') {
+                return null;
+            }
+            int textEnd = text.indexOf("?=", charsetEnd + 3);
+            if (textEnd < 0) {
+                return null;
+            }
+            String charsetName = text.substring(start + 2, charsetEnd);
+            int language = charsetName.indexOf('*'); // RFC 2231的语言标记
+            if (language >= 0) {
+                charsetName = charsetName.substring(0, language);
+            }
+            char encoding = Character.toUpperCase(text.charAt(charsetEnd + 1));
+            String encoded = text.substring(charsetEnd + 3, textEnd);
+            try {
+                Charset charset = Charset.forName(charsetName);
+                byte[] bytes;
+                if (encoding == 'B') {
+                    bytes = Base64.getMimeDecoder().decode(encoded);
+                } else if (encoding == 'Q') {
+                    bytes = decodeQ(encoded);
+                } else {
+                    return null;
+                }
+                return new EncodedWord(charset, bytes, textEnd + 2);
+            } catch (IllegalArgumentException e) {
+                // 包括无法识别的字符集、非法的Base64和Q编码
+                return null;
+            }
+        }
+
+        private static byte[] decodeQ(String encoded) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(encoded.length());
+            for (int i = 0; i < encoded.length(); i++) {
+                char c = encoded.charAt(i);
+                if (c == '_') {
+                    out.write(' ');
+                } else if (c == '=' && i + 2 < encoded.length()) {
+                    out.write(Integer.parseInt(encoded.substring(i + 1, i + 3), 16));
+                    i += 2;
+                } else {
+                    out.write(c);
+                }
+            }
+            return out.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.hnu.mail.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 邮件DATA阶段的磁盘暂存文件。
+ * 数据行经过固定大小的缓冲区写入文件，写入时完成点转义还原和邮件头解析，
+ * 因此无论邮件多大，每个会话占用的内存都是固定的。文件中的行统一以CRLF结尾。
+ * BDAT数据块按原样写入，不做行切分，邮件头在数据接收完毕后从文件开头读取。
+ */
+public class MessageSpool implements Closeable {
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+    // 原始数据写入时只在文件开头的这一段中查找邮件头
+    private static final int HEADER_SCAN_LIMIT = 64 * 1024;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private long size;
+    private final MessageHeaderParser headers = new MessageHeaderParser();
+    private boolean inHeaders = true;
+    private boolean raw = false;
+
+    private MessageSpool(Path path) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.READ);
+    }
+
+    /**
+     * 在暂存目录中创建新的暂存文件
+     */
+    public static MessageSpool create(Path spoolDir) throws IOException {
+        Files.createDirectories(spoolDir);
+        return new MessageSpool(Files.createTempFile(spoolDir, "msg-", ".eml"));
+    }
+
+    /**
+     * 写入DATA阶段的一行（不含CRLF），去掉SMTP点转义
+     */
+    public void writeDataLine(byte[] buf, int off, int len) throws IOException {
+        if (len > 0 && buf[off] == '.') {
+            off++;
+            len--;
+        }
+        if (inHeaders) {
+            inHeaders = headers.feed(buf, off, len);
+        }
+        put(buf, off, len);
+        put((byte) '\r');
+        put((byte) '\n');
+        size += len + 2;
+    }
+
+    /**
+     * 原样写入一段数据（BDAT数据块），不做点转义还原和行切分。
+     * 小块数据先进入缓冲区，大块数据直接写入文件
+     */
+    public void writeChunk(ByteBuffer data) throws IOException {
+        raw = true;
+        size += data.remaining();
+        if (data.remaining() <= buffer.remaining()) {
+            buffer.put(data);
+            return;
+        }
+        drain();
+        while (data.hasRemaining()) {
+            channel.write(data);
+        }
+    }
+
+    /**
+     * 将缓冲区中的数据写入文件
+     */
+    public void finish() throws IOException {
+        drain();
+        channel.force(false);
+        if (raw) {
+            scanHeadersFromFile();
+        }
+        headers.finish();
+    }
+
+    /**
+     * 邮件原文大小（字节，包含CRLF）
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * 邮件主题，未找到Subject头时返回null
+     */
+    public String subject() {
+        return headers.subject();
+    }
+
+    /**
+     * 接收数据时解析出的邮件头，finish之后才完整
+     */
+    public MessageHeaderParser headers() {
+        return headers;
+    }
+
+    public Path path() {
+        return path;
+    }
+
+    /**
+     * 读取邮件原文，行尾转换为LF，用于写入数据库的content字段
+     */
+    public String readContent() throws IOException {
+        return readContent(path);
+    }
+
+    /**
+     * 读取已完成的暂存文件，供投递线程在会话结束后使用
+     */
+    public static String readContent(Path path) throws IOException {
+        return Files.readString(path, StandardCharsets.UTF_8).replace("\r\n", "\n");
+    }
+
+    /**
+     * 关闭暂存文件但保留在磁盘上，文件交由投递队列负责删除
+     */
+    public Path detach() throws IOException {
+        close();
+        return path;
+    }
+
+    /**
+     * 关闭并删除暂存文件
+     */
+    public void discard() {
+        try {
+            close();
+        } catch (IOException ignored) {
+            // 删除失败不影响会话
+        }
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException ignored) {
+            // 删除失败不影响会话
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * 从文件开头读取邮件头，只查找到第一个空行或扫描上限为止
+     */
+    private void scanHeadersFromFile() throws IOException {
+        ByteBuffer head = ByteBuffer.allocate((int) Math.min(size, HEADER_SCAN_LIMIT));
+        long position = 0;
+        while (head.hasRemaining()) {
+            int n = channel.read(head, position);
+            if (n < 0) {
+                break;
+            }
+            position += n;
+        }
+        byte[] bytes = head.array();
+        int lineStart = 0;
+        for (int i = 0; i < head.position() && inHeaders; i++) {
+            if (bytes[i] == '\n') {
+                int len = i - lineStart;
+                if (len > 0 && bytes[i - 1] == '\r') {
+                    len--;
+                }
+                inHeaders = headers.feed(bytes, lineStart, len);
+                lineStart = i + 1;
+            }
+        }
+    }
+
+    private void put(byte[] buf, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = Math.min(len, buffer.remaining());
+            buffer.put(buf, off, n);
+            off += n;
+            len -= n;
+            if (!buffer.hasRemaining()) {
+                drain();
+            }
+        }
+    }
+
+    private void put(byte b) throws IOException {
+        if (!buffer.hasRemaining()) {
+            drain();
+        }
+        buffer.put(b);
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
@@ -0,0 +1,666 @@
+package com.hnu.mail.server;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * 流式MIME拆分：逐行读取暂存的邮件原文，把multipart邮件中的附件部分按Content-Transfer-Encoding
+ * 解码后直接写入附件目录，正文中只保留文本部分。
+ * 附件在正文中替换为 message/external-body 部分（RFC 2046 5.2.3），保留原来的部分头，
+ * 通过POP3取回的邮件仍能看出附件的位置和文件名。
+ * 内存中只保存文本正文和当前部分的头，附件大小不影响内存占用。
+ */
+public final class MimeDecomposer {
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    // 部分头超过该大小时不再拆分，剩余内容按文本原样保留
+    private static final int MAX_PART_HEADER_SIZE = 64 * 1024;
+    private static final int MAX_FILENAME_LENGTH = 100;
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private final InputStream in;
+    private final Path attachmentDir;
+    private final String filePrefix;
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    private final List<StoredPart> attachments = new ArrayList<>();
+    private final Deque<byte[]> boundaries = new ArrayDeque<>();
+
+    private final byte[] readBuffer = new byte[READ_BUFFER_SIZE];
+    private int readPos;
+    private int readLimit;
+    private byte[] line = new byte[1024];
+    private int lineLength;
+
+    private MimeDecomposer(InputStream in, Path attachmentDir, String filePrefix) {
+        this.in = in;
+        this.attachmentDir = attachmentDir;
+        this.filePrefix = filePrefix;
+    }
+
+    /**
+     * 拆分暂存文件中的邮件。附件文件名由暂存文件名和附件序号决定，重复拆分同一文件（例如日志重放）会覆盖之前的结果
+     * @param spoolFile 邮件原文
+     * @param attachmentDir 附件保存目录
+     * @return 只含文本部分的正文（行以LF结尾，与MessageSpool.readContent一致）和已保存的附件
+     */
+    public static Result decompose(Path spoolFile, Path attachmentDir) throws IOException {
+        String name = spoolFile.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String prefix = dot > 0 ? name.substring(0, dot) : name;
+        try (InputStream in = Files.newInputStream(spoolFile)) {
+            MimeDecomposer decomposer = new MimeDecomposer(in, attachmentDir, prefix);
+            decomposer.run();
+            return new Result(decomposer.body.toString(StandardCharsets.UTF_8), decomposer.attachments);
+        }
+    }
+
+    private void run() throws IOException {
+        PartHeaders top = readHeaders(true);
+        if (top == null) {
+            return;
+        }
+        if (top.boundary == null) {
+            // 不是multipart邮件，全部作为正文
+            copyRest();
+            return;
+        }
+        boundaries.push(top.boundary);
+
+        boolean haveLine = readLine();
+        while (haveLine) {
+            int match = matchBoundary();
+            writeBody(line, 0, lineLength);
+            if (match <= 0) {
+                // 普通文本行或结束分隔线，结束分隔线之后是外层的结尾部分
+                haveLine = readLine();
+                continue;
+            }
+            PartHeaders headers = readHeaders(false);
+            if (headers == null) {
+                return;
+            }
+            if (headers.boundary != null) {
+                // 嵌套的multipart，部分头原样保留
+                writeHeaders(headers);
+                boundaries.push(headers.boundary);
+                haveLine = readLine();
+            } else if (headers.isAttachment()) {
+                haveLine = storeAttachment(headers);
+            } else {
+                writeHeaders(headers);
+                haveLine = readLine();
+            }
+        }
+    }
+
+    /**
+     * 把附件部分解码写入文件，正文中写入外部引用
+     * @return 停在下一个分隔线上时返回true（该行尚未处理），输入结束时返回false
+     */
+    private boolean storeAttachment(PartHeaders headers) throws IOException {
+        String filename = headers.filename();
+        Path file = attachmentDir.resolve(filePrefix + "-" + (attachments.size() + 1) + "-" + safeName(filename));
+        Files.createDirectories(attachmentDir);
+
+        writeBodyLine("Content-Type: message/external-body; access-type=x-mail-attachment");
+        writeBodyLine("");
+        for (byte[] header : headers.lines) {
+            if (!startsWithIgnoreCase(header, "content-transfer-encoding:")) {
+                writeBody(header, 0, header.length);
+            }
+        }
+        writeBodyLine("");
+
+        boolean atBoundary = false;
+        long size;
+        try (PartDecoder decoder = PartDecoder.create(headers.transferEncoding,
+                new BufferedOutputStream(Files.newOutputStream(file), READ_BUFFER_SIZE))) {
+            while (readLine()) {
+                if (isBoundary()) {
+                    atBoundary = true;
+                    break;
+                }
+                decoder.line(line, lineLength);
+            }
+            decoder.finish();
+            size = decoder.size;
+        }
+        attachments.add(new StoredPart(filename, headers.contentType, size, file));
+        return atBoundary;
+    }
+
+    /**
+     * 读取一组头字段直到空行，折叠行合并到前一个字段
+     * @param top 是否为邮件头；邮件头直接写入正文，部分头由调用者决定如何写入
+     * @return 输入已结束（或部分头异常，剩余内容已原样写入正文）时返回null
+     */
+    private PartHeaders readHeaders(boolean top) throws IOException {
+        PartHeaders headers = new PartHeaders();
+        StringBuilder current = null;
+        int total = 0;
+        while (readLine()) {
+            if (top) {
+                writeBody(line, 0, lineLength);
+            }
+            if (lineLength == 0) {
+                headers.complete(current);
+                return headers;
+            }
+            if (!top) {
+                total += lineLength;
+                headers.lines.add(Arrays.copyOf(line, lineLength));
+                if (total > MAX_PART_HEADER_SIZE) {
+                    writeLines(headers.lines);
+                    copyRest();
+                    return null;
+                }
+            }
+            String text = new String(line, 0, lineLength, StandardCharsets.UTF_8);
+            if ((text.startsWith(" ") || text.startsWith("\t")) && current != null) {
+                current.append(text);
+            } else {
+                headers.complete(current);
+                current = new StringBuilder(text);
+            }
+        }
+        if (!top) {
+            writeLines(headers.lines);
+        }
+        return null;
+    }
+
+    private void writeHeaders(PartHeaders headers) {
+        writeLines(headers.lines);
+        writeBodyLine("");
+    }
+
+    private void writeLines(List<byte[]> lines) {
+        for (byte[] l : lines) {
+            writeBody(l, 0, l.length);
+        }
+    }
+
+    private void copyRest() throws IOException {
+        while (readLine()) {
+            writeBody(line, 0, lineLength);
+        }
+    }
+
+    /**
+     * 当前行是否为任一层multipart的分隔线，不改变分隔线栈
+     */
+    private boolean isBoundary() {
+        if (lineLength < 3 || line[0] != '-' || line[1] != '-') {
+            return false;
+        }
+        for (byte[] boundary : boundaries) {
+            if (boundaryEnd(boundary) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 当前行是否为某一层multipart的分隔线。外层的分隔线同时结束所有内层，结束分隔线弹出对应的层
+     * @return 1表示部分分隔线，-1表示结束分隔线，0表示不是分隔线
+     */
+    private int matchBoundary() {
+        if (lineLength < 3 || line[0] != '-' || line[1] != '-') {
+            return 0;
+        }
+        int depth = 0;
+        for (byte[] boundary : boundaries) {
+            int end = boundaryEnd(boundary);
+            if (end < 0) {
+                depth++;
+                continue;
+            }
+            for (int i = 0; i < depth; i++) {
+                boundaries.pop();
+            }
+            if (end > 2 + boundary.length) {
+                boundaries.pop();
+                return -1;
+            }
+            return 1;
+        }
+        return 0;
+    }
+
+    /**
+     * 当前行与 --boundary 或 --boundary-- 匹配（允许行尾空白）时返回分隔符的结束位置，否则返回-1
+     */
+    private int boundaryEnd(byte[] boundary) {
+        int end = 2 + boundary.length;
+        if (lineLength < end) {
+            return -1;
+        }
+        for (int i = 0; i < boundary.length; i++) {
+            if (line[2 + i] != boundary[i]) {
+                return -1;
+            }
+        }
+        if (lineLength >= end + 2 && line[end] == '-' && line[end + 1] == '-') {
+            end += 2;
+        }
+        for (int i = end; i < lineLength; i++) {
+            if (line[i] != ' ' && line[i] != '\t') {
+                return -1;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * 读取下一行到line，去掉行尾的CRLF或LF
+     * @return 输入已结束时返回false
+     */
+    private boolean readLine() throws IOException {
+        lineLength = 0;
+        boolean any = false;
+        while (true) {
+            if (readPos == readLimit) {
+                readLimit = in.read(readBuffer, 0, readBuffer.length);
+                readPos = 0;
+                if (readLimit <= 0) {
+                    readLimit = 0;
+                    break;
+                }
+            }
+            any = true;
+            byte b = readBuffer[readPos++];
+            if (b == '\n') {
+                break;
+            }
+            if (lineLength == line.length) {
+                line = Arrays.copyOf(line, line.length * 2);
+            }
+            line[lineLength++] = b;
+        }
+        if (lineLength > 0 && line[lineLength - 1] == '\r') {
+            lineLength--;
+        }
+        return any;
+    }
+
+    private void writeBody(byte[] buf, int off, int len) {
+        body.write(buf, off, len);
+        body.write('\n');
+    }
+
+    private void writeBodyLine(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        writeBody(bytes, 0, bytes.length);
+    }
+
+    /**
+     * 磁盘上的文件名只保留ASCII字母、数字、点、下划线和连字符，原始文件名保存在附件记录中；过长时保留结尾（扩展名）
+     */
+    static String safeName(String filename) {
+        String name = filename.replaceAll("[^A-Za-z0-9._-]", "_");
+        if (name.startsWith(".")) {
+            name = "_" + name;
+        }
+        return name.length() > MAX_FILENAME_LENGTH ? name.substring(name.length() - MAX_FILENAME_LENGTH) : name;
+    }
+
+    private static boolean startsWithIgnoreCase(byte[] buf, String lowerPrefix) {
+        if (buf.length < lowerPrefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < lowerPrefix.length(); i++) {
+            if (Character.toLowerCase(buf[i]) != lowerPrefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 拆分结果：只含文本部分的正文和已保存的附件
+     */
+    public record Result(String body, List<StoredPart> attachments) {
+    }
+
+    /**
+     * 一个已解码并写入磁盘的附件
+     * @param size 解码后的字节数
+     */
+    public record StoredPart(String filename, String contentType, long size, Path path) {
+    }
+
+    /**
+     * 一个部分的头：原始行用于写回正文，解析出的字段用于决定如何处理该部分
+     */
+    private static final class PartHeaders {
+
+        private final List<byte[]> lines = new ArrayList<>();
+        private String contentType = "text/plain";
+        private String disposition;
+        private String transferEncoding = "7bit";
+        private byte[] boundary;
+        private String name;
+        private String dispositionFilename;
+
+        void complete(StringBuilder field) {
+            if (field == null) {
+                return;
+            }
+            String text = field.toString();
+            int colon = text.indexOf(':');
+            if (colon <= 0) {
+                return;
+            }
+            String value = text.substring(colon + 1).trim();
+            switch (text.substring(0, colon).trim().toLowerCase(Locale.ROOT)) {
+                case "content-type" -> {
+                    contentType = mainValue(value);
+                    name = parameter(value, "name");
+                    String b = parameter(value, "boundary");
+                    if (contentType.startsWith("multipart/") && b != null && !b.isEmpty()) {
+                        boundary = b.getBytes(StandardCharsets.US_ASCII);
+                    }
+                }
+                case "content-disposition" -> {
+                    disposition = mainValue(value);
+                    dispositionFilename = parameter(value, "filename");
+                }
+                case "content-transfer-encoding" -> transferEncoding = value.toLowerCase(Locale.ROOT);
+                default -> {
+                    // 其他字段只原样保留
+                }
+            }
+        }
+
+        /**
+         * 明确声明为附件的部分，以及文本、multipart和message以外的部分都作为附件保存
+         */
+        boolean isAttachment() {
+            if ("attachment".equals(disposition)) {
+                return true;
+            }
+            return !contentType.startsWith("text/") && !contentType.startsWith("multipart/")
+                    && !contentType.startsWith("message/");
+        }
+
+        /**
+         * 附件文件名，优先取Content-Disposition的filename，其次取Content-Type的name
+         */
+        String filename() {
+            String filename = dispositionFilename != null ? dispositionFilename : name;
+            if (filename == null || filename.isBlank()) {
+                int slash = contentType.indexOf('/');
+                return "attachment" + (slash > 0 ? "." + contentType.substring(slash + 1) : "");
+            }
+            return filename;
+        }
+
+        private static String mainValue(String value) {
+            int semicolon = value.indexOf(';');
+            return (semicolon < 0 ? value : value.substring(0, semicolon)).trim().toLowerCase(Locale.ROOT);
+        }
+
+        /**
+         * 读取头字段参数，支持引号、RFC 2047编码字和RFC 2231扩展参数
+         * （name*=charset''value，以及分段的 name*0*=...; name*1*=...）
+         */
+        static String parameter(String value, String parameter) {
+            String plain = null;
+            String extended = null;
+            StringBuilder segments = null;
+            for (String part : splitParameters(value)) {
+                int eq = part.indexOf('=');
+                if (eq <= 0) {
+                    continue;
+                }
+                String key = part.substring(0, eq).trim().toLowerCase(Locale.ROOT);
+                String v = unquote(part.substring(eq + 1).trim());
+                if (key.equals(parameter)) {
+                    plain = MessageHeaderParser.decodeWords(v);
+                } else if (key.equals(parameter + "*")) {
+                    extended = decodeExtended(v);
+                } else if (key.startsWith(parameter + "*")) {
+                    if (segments == null) {
+                        segments = new StringBuilder();
+                    }
+                    segments.append(v);
+                }
+            }
+            if (extended != null) {
+                return extended;
+            }
+            return segments != null ? decodeExtended(segments.toString()) : plain;
+        }
+
+        /**
+         * 按分号拆分参数，跳过第一段（主值），引号内的分号不拆分
+         */
+        private static List<String> splitParameters(String value) {
+            List<String> result = new ArrayList<>();
+            StringBuilder current = new StringBuilder();
+            boolean quoted = false;
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '"') {
+                    quoted = !quoted;
+                }
+                if (c == ';' && !quoted) {
+                    result.add(current.toString());
+                    current.setLength(0);
+                } else {
+                    current.append(c);
+                }
+            }
+            result.add(current.toString());
+            return result.subList(1, result.size());
+        }
+
+        private static String unquote(String value) {
+            if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+                return value.substring(1, value.length() - 1);
+            }
+            return value;
+        }
+
+        /**
+         * 解码 charset'language'%XX 形式的扩展参数值，没有字符集前缀时原样返回
+         */
+        private static String decodeExtended(String value) {
+            int first = value.indexOf('\'');
+            int second = first < 0 ? -1 : value.indexOf('\'', first + 1);
+            if (second < 0) {
+                return value;
+            }
+            try {
+                Charset charset = Charset.forName(value.substring(0, first));
+                return URLDecoder.decode(value.substring(second + 1).replace("+", "%2B"), charset);
+            } catch (IllegalArgumentException e) {
+                return value.substring(second + 1);
+            }
+        }
+    }
+
+    /**
+     * 按Content-Transfer-Encoding逐行解码并写入附件文件
+     */
+    private abstract static class PartDecoder implements Closeable {
+
+        private final OutputStream out;
+        private long size;
+
+        PartDecoder(OutputStream out) {
+            this.out = out;
+        }
+
+        static PartDecoder create(String transferEncoding, OutputStream out) {
+            return switch (transferEncoding) {
+                case "base64" -> new Base64Decoder(out);
+                case "quoted-printable" -> new QuotedPrintableDecoder(out);
+                default -> new RawDecoder(out);
+            };
+        }
+
+        /**
+         * 输入一行编码数据（不含换行）
+         */
+        abstract void line(byte[] buf, int len) throws IOException;
+
+        void finish() throws IOException {
+        }
+
+        protected void write(byte[] buf, int off, int len) throws IOException {
+            out.write(buf, off, len);
+            size += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * base64：跳过非base64字符，不足4个字符的尾部留到下一行，每次只解码完整的分组
+     */
+    private static final class Base64Decoder extends PartDecoder {
+
+        private final Base64.Decoder decoder = Base64.getDecoder();
+        private byte[] chunk = new byte[1024];
+        private byte[] decoded = new byte[768];
+        private int pending;
+
+        Base64Decoder(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        void line(byte[] buf, int len) throws IOException {
+            if (chunk.length < pending + len) {
+                chunk = Arrays.copyOf(chunk, pending + len);
+            }
+            int n = pending;
+            for (int i = 0; i < len; i++) {
+                byte b = buf[i];
+                if ((b >= 'A' && b <= 'Z') || (b >= 'a' && b <= 'z') || (b >= '0' && b <= '9')
+                        || b == '+' || b == '/' || b == '=') {
+                    chunk[n++] = b;
+                }
+            }
+            int whole = n - n % 4;
+            decode(whole);
+            pending = n - whole;
+            System.arraycopy(chunk, whole, chunk, 0, pending);
+        }
+
+        @Override
+        void finish() throws IOException {
+            if (pending > 1) {
+                // 缺少填充的尾部
+                while (pending < 4) {
+                    chunk[pending++] = '=';
+                }
+                decode(4);
+            }
+            pending = 0;
+        }
+
+        private void decode(int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            if (decoded.length < len / 4 * 3) {
+                decoded = new byte[len / 4 * 3];
+            }
+            try {
+                int n = decoder.decode(Arrays.copyOf(chunk, len), decoded);
+                write(decoded, 0, n);
+            } catch (IllegalArgumentException e) {
+                // 损坏的数据（例如中间出现填充）跳过这一行，其余内容仍然保存
+            }
+        }
+    }
+
+    /**
+     * quoted-printable：行尾的=为软换行，其余行结束时写入CRLF，行尾空白按RFC 2045去掉
+     */
+    private static final class QuotedPrintableDecoder extends PartDecoder {
+
+        private byte[] decoded = new byte[1024];
+        private boolean pendingBreak;
+
+        QuotedPrintableDecoder(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        void line(byte[] buf, int len) throws IOException {
+            if (pendingBreak) {
+                write(CRLF, 0, 2);
+            }
+            int end = len;
+            while (end > 0 && (buf[end - 1] == ' ' || buf[end - 1] == '\t')) {
+                end--;
+            }
+            boolean soft = end > 0 && buf[end - 1] == '=';
+            if (soft) {
+                end--;
+            }
+            if (decoded.length < end) {
+                decoded = new byte[end];
+            }
+            int n = 0;
+            for (int i = 0; i < end; i++) {
+                if (buf[i] == '=' && i + 2 < end) {
+                    int hi = Character.digit(buf[i + 1], 16);
+                    int lo = Character.digit(buf[i + 2], 16);
+                    if (hi >= 0 && lo >= 0) {
+                        decoded[n++] = (byte) (hi << 4 | lo);
+                        i += 2;
+                        continue;
+                    }
+                }
+                decoded[n++] = buf[i];
+            }
+            write(decoded, 0, n);
+            pendingBreak = !soft;
+        }
+    }
+
+    /**
+     * 7bit/8bit/binary：按行原样写入，分隔线之前的换行属于分隔线，不写入文件
+     */
+    private static final class RawDecoder extends PartDecoder {
+
+        private boolean pendingBreak;
+
+        RawDecoder(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        void line(byte[] buf, int len) throws IOException {
+            if (pendingBreak) {
+                write(CRLF, 0, 2);
+            }
+            write(buf, 0, len);
+            pendingBreak = true;
+        }
+    }
+}
@@ -0,0 +1,737 @@
+package com.hnu.mail.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 基于Selector的非阻塞服务器引擎。
+ * 少量固定的事件循环线程负责所有连接的读写，协议会话在工作线程池中按连接串行执行，
+ * 这样会话中的数据库访问不会阻塞事件循环；同一连接同一时刻最多只有一个任务在执行。
+ */
+@Slf4j
+public class NioServerEngine implements ServerEngine {
+
+    private static final int MAX_LINE_LENGTH = 1024 * 1024;
+    // 接收原始数据块时的读取缓冲大小
+    private static final int BINARY_READ_SIZE = 64 * 1024;
+    // TLS连接上发送文件时每次读取的块大小
+    private static final int FILE_CHUNK_SIZE = 16 * 1024;
+    // 待发送数据超过高水位时暂停读取，客户端不读响应而持续流水线发送命令时内存不会无限增长；降到低水位以下再恢复
+    private static final long OUTBOUND_HIGH_WATER = 1024 * 1024;
+    private static final long OUTBOUND_LOW_WATER = 256 * 1024;
+
+    private final String name;
+    private final int port;
+    private final int loopCount;
+    private final ExecutorService workerPool;
+    private final SessionFactory sessionFactory;
+    private final AdmissionController admission;
+    private final TlsContext tls;
+
+    private ServerSocketChannel serverChannel;
+    private EventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private volatile boolean running = false;
+
+    public NioServerEngine(String name, int port, int loopCount, ExecutorService workerPool,
+                           SessionFactory sessionFactory) {
+        this(name, port, loopCount, workerPool, sessionFactory, AdmissionController.unlimited());
+    }
+
+    public NioServerEngine(String name, int port, int loopCount, ExecutorService workerPool,
+                           SessionFactory sessionFactory, AdmissionController admission) {
+        this(name, port, loopCount, workerPool, sessionFactory, admission, null);
+    }
+
+    /**
+     * @param tls 为null时不支持STARTTLS
+     */
+    public NioServerEngine(String name, int port, int loopCount, ExecutorService workerPool,
+                           SessionFactory sessionFactory, AdmissionController admission, TlsContext tls) {
+        this.name = name;
+        this.port = port;
+        this.loopCount = Math.max(1, loopCount);
+        this.workerPool = workerPool;
+        this.sessionFactory = sessionFactory;
+        this.admission = admission;
+        this.tls = tls;
+    }
+
+    @Override
+    public void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        running = true;
+
+        loops = new EventLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new EventLoop(Selector.open());
+            Thread thread = new Thread(loops[i], name + "-nio-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        // 接受连接后按轮询方式分配给事件循环
+        new Thread(() -> {
+            while (running) {
+                try {
+                    SocketChannel channel = serverChannel.accept();
+                    InetAddress client = ((InetSocketAddress) channel.getRemoteAddress()).getAddress();
+                    AdmissionController.Permit permit = admission.tryAcquire(client);
+                    if (permit == null) {
+                        reject(channel, client);
+                        continue;
+                    }
+                    log.info("新的{}客户端连接: {}", name, channel.getRemoteAddress());
+                    channel.configureBlocking(false);
+                    EventLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loopCount)];
+                    loop.execute(() -> loop.register(channel, permit));
+                } catch (IOException e) {
+                    if (running) {
+                        log.error("{}服务器接受连接失败: {}", name, e.getMessage());
+                    }
+                }
+            }
+        }, name + "-acceptor").start();
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            log.error("关闭{}服务器端口失败: {}", name, e.getMessage());
+        }
+        if (loops != null) {
+            for (EventLoop loop : loops) {
+                loop.shutdown();
+            }
+        }
+        workerPool.shutdownNow();
+    }
+
+    /**
+     * 事件循环：一个Selector加一个任务队列，所有对SelectionKey的操作都在循环线程内完成
+     */
+    private class EventLoop implements Runnable {
+
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        EventLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void register(SocketChannel channel, AdmissionController.Permit permit) {
+            try {
+                Connection connection = new Connection(this, channel, permit);
+                connection.key = channel.register(selector, 0, connection);
+                connection.dispatch(connection::startSession);
+            } catch (IOException e) {
+                log.error("注册{}客户端连接失败: {}", name, e.getMessage());
+                closeQuietly(channel);
+                permit.release();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        Connection connection = (Connection) key.attachment();
+                        if (!key.isValid()) {
+                            connection.closeNow();
+                            continue;
+                        }
+                        if (key.isWritable()) {
+                            connection.onWritable();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            connection.onReadable();
+                        }
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                if (running) {
+                    log.error("{}事件循环异常退出: {}", name, e.getMessage());
+                }
+            }
+        }
+
+        void shutdown() {
+            execute(() -> {
+                for (SelectionKey key : selector.keys()) {
+                    ((Connection) key.attachment()).closeNow();
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    log.error("关闭{}事件循环失败: {}", name, e.getMessage());
+                }
+            });
+        }
+    }
+
+    /**
+     * 单个客户端连接：持有输入缓冲、待发送队列以及协议会话
+     */
+    private class Connection implements SessionChannel {
+
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final LineBuffer input = new LineBuffer(MAX_LINE_LENGTH);
+        private final Queue<Outbound> outbound = new ConcurrentLinkedQueue<>();
+        private final AtomicLong outboundBytes = new AtomicLong();
+        private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+        private final String remoteAddress;
+        private final AdmissionController.Permit permit;
+        private SelectionKey key;
+        private ProtocolSession session;
+        // STARTTLS之后由工作线程设置，之后的读取经过TLS通道
+        private ReadableByteChannel tlsChannel;
+        private volatile TlsConnection tlsConnection;
+        // 以下字段只在事件循环线程中访问
+        private boolean processing = false;
+        private boolean closing = false;
+        private boolean closed = false;
+        private boolean closeNotified = false;
+        private boolean readPaused = false; // 待发送数据超过高水位，等发送到低水位以下再读取
+        private boolean progressed = true; // 上次计时之后是否收到过完整的行或原始数据
+        private TimerWheel.Timeout timeout;
+        private int timeoutGeneration;
+
+        Connection(EventLoop loop, SocketChannel channel, AdmissionController.Permit permit) throws IOException {
+            this.loop = loop;
+            this.channel = channel;
+            this.permit = permit;
+            this.remoteAddress = String.valueOf(channel.getRemoteAddress());
+        }
+
+        /**
+         * 在工作线程中执行会话任务，执行期间暂停读事件，保证输入缓冲只被一个线程访问
+         */
+        void dispatch(Runnable work) {
+            processing = true;
+            updateInterest();
+            workerPool.execute(() -> {
+                try {
+                    work.run();
+                } catch (RuntimeException e) {
+                    log.error("处理{}客户端请求时出错: {}", name, e.getMessage());
+                    close();
+                }
+                loop.execute(this::afterDispatch);
+            });
+        }
+
+        void startSession() {
+            session = sessionFactory.create(this);
+            session.start();
+            flush();
+        }
+
+        void processLines() {
+            while (!session.isClosed()) {
+                long binary = session.binaryBytesExpected();
+                if (binary > 0) {
+                    if (input.isEmpty()) {
+                        break;
+                    }
+                    session.onBinary(input.take(binary));
+                } else if (input.nextLine()) {
+                    session.onLine(input.array(), input.lineStart(), input.lineLength());
+                } else {
+                    break;
+                }
+            }
+            // 本次读到的命令全部处理完毕，一次性发送本批响应
+            if (!session.isClosed()) {
+                session.onInputDrained();
+            }
+            flush();
+            input.compact();
+            if (session.isClosed()) {
+                close();
+            }
+        }
+
+        void afterDispatch() {
+            processing = false;
+            if (closed) {
+                notifySessionClosed();
+                return;
+            }
+            if (!closing && !outputBacklogged() && hasInput()) {
+                dispatch(this::processLines);
+                return;
+            }
+            if (!closing && progressed && session != null) {
+                armTimeout(session.readTimeoutMillis());
+            }
+            updateInterest();
+        }
+
+        /**
+         * 在共享时间轮上登记读超时；到期后转回事件循环线程处理，过期的登记通过代数忽略
+         */
+        void armTimeout(long millis) {
+            cancelTimeout();
+            progressed = false;
+            if (millis > 0) {
+                int generation = timeoutGeneration;
+                timeout = TimerWheel.shared().schedule(() -> loop.execute(() -> onTimeout(generation)), millis);
+            }
+        }
+
+        void cancelTimeout() {
+            timeoutGeneration++;
+            if (timeout != null) {
+                timeout.cancel();
+                timeout = null;
+            }
+        }
+
+        void onTimeout(int generation) {
+            if (generation != timeoutGeneration || closed || closing || processing) {
+                return;
+            }
+            timeout = null;
+            log.info("{}客户端等待输入超时: {}", name, remoteAddress);
+            dispatch(() -> {
+                session.onTimeout();
+                close();
+            });
+        }
+
+        /**
+         * 输入缓冲中是否有会话可以处理的数据：按行接收时需要完整的一行，接收原始数据时有数据即可。
+         * 只在没有会话任务执行时调用，此时读取会话状态是安全的
+         */
+        boolean hasInput() {
+            if (session != null && session.binaryBytesExpected() > 0) {
+                return !input.isEmpty();
+            }
+            return input.hasLine();
+        }
+
+        void onReadable() {
+            if (session != null && session.binaryBytesExpected() > 0) {
+                input.ensureCapacity(BINARY_READ_SIZE);
+            }
+            try {
+                ReadableByteChannel source = tlsChannel != null ? tlsChannel : channel;
+                int n;
+                do {
+                    // TLS记录解密后可能超过输入缓冲的剩余空间，读完已到达的记录，避免数据滞留在TLS缓冲中
+                    n = input.fill(source);
+                } while (n > 0 && tlsConnection != null && tlsConnection.hasBufferedInput());
+                if (n < 0) {
+                    closeNow();
+                    return;
+                }
+            } catch (IOException e) {
+                log.error("读取{}客户端数据失败: {}", name, e.getMessage());
+                closeNow();
+                return;
+            }
+            if (hasInput()) {
+                cancelTimeout();
+                progressed = true;
+                dispatch(this::processLines);
+            }
+        }
+
+        void onWritable() {
+            try {
+                Outbound data;
+                while ((data = outbound.peek()) != null) {
+                    if (!data.writeTo(channel)) {
+                        break;
+                    }
+                    dequeue(outbound.poll());
+                }
+            } catch (IOException e) {
+                log.error("发送{}响应失败: {}", name, e.getMessage());
+                closeNow();
+                return;
+            }
+            // 积压的响应已发出，继续处理暂停期间缓冲中剩下的命令
+            if (readPaused && !outputBacklogged() && !processing && !closing && hasInput()) {
+                dispatch(this::processLines);
+                return;
+            }
+            updateInterest();
+        }
+
+        /**
+         * 待发送数据是否积压：超过高水位时开始暂停读取，暂停后降到低水位以下才恢复。只在事件循环线程中调用
+         */
+        boolean outputBacklogged() {
+            long queued = outboundBytes.get();
+            if (readPaused) {
+                readPaused = queued > OUTBOUND_LOW_WATER;
+            } else if (queued > OUTBOUND_HIGH_WATER) {
+                readPaused = true;
+                log.debug("{}客户端待发送数据 {} 字节，暂停读取: {}", name, queued, remoteAddress);
+            }
+            return readPaused;
+        }
+
+        void updateInterest() {
+            if (closed || !key.isValid()) {
+                return;
+            }
+            if (closing && outbound.isEmpty()) {
+                closeNow();
+                return;
+            }
+            int ops = 0;
+            if (!processing && !closing && !outputBacklogged()) {
+                ops |= SelectionKey.OP_READ;
+            }
+            if (!outbound.isEmpty()) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            key.interestOps(ops);
+        }
+
+        void closeNow() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            cancelTimeout();
+            if (key != null) {
+                key.cancel();
+            }
+            closeQuietly(channel);
+            releaseOutbound();
+            permit.release();
+            log.info("{}客户端连接已关闭", name);
+            if (!processing) {
+                notifySessionClosed();
+            }
+        }
+
+        /**
+         * 关闭发送队列中尚未发送的文件
+         */
+        void releaseOutbound() {
+            Outbound data;
+            while ((data = outbound.poll()) != null) {
+                dequeue(data);
+            }
+        }
+
+        void enqueue(Outbound data) {
+            outboundBytes.addAndGet(data.size());
+            outbound.add(data);
+        }
+
+        void dequeue(Outbound data) {
+            outboundBytes.addAndGet(-data.size());
+            data.release();
+        }
+
+        /**
+         * 通知会话连接已断开；会话任务执行期间断开的连接在任务结束后再通知
+         */
+        void notifySessionClosed() {
+            if (closeNotified || session == null) {
+                return;
+            }
+            closeNotified = true;
+            ProtocolSession closedSession = session;
+            try {
+                workerPool.execute(closedSession::onClose);
+            } catch (RejectedExecutionException e) {
+                // 引擎停止时工作线程池已关闭，直接在当前线程释放
+                closedSession.onClose();
+            }
+        }
+
+        // ---- SessionChannel：由工作线程调用 ----
+
+        @Override
+        public void write(String line) {
+            log.debug("发送{}响应: {}", name, line);
+            byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+            pending.write(bytes, 0, bytes.length);
+            pending.write('\r');
+            pending.write('\n');
+        }
+
+        @Override
+        public void flush() {
+            if (pending.size() == 0) {
+                return;
+            }
+            ByteBuffer data = ByteBuffer.wrap(pending.toByteArray());
+            pending.reset();
+            TlsConnection tlsNow = tlsConnection;
+            if (tlsNow == null) {
+                enqueue(new BufferOutbound(data));
+            } else {
+                try {
+                    tlsNow.write(data, this::sendEncrypted);
+                } catch (IOException e) {
+                    log.error("发送{}响应失败: {}", name, e.getMessage());
+                    loop.execute(this::closeNow);
+                    return;
+                }
+            }
+            loop.execute(this::updateInterest);
+        }
+
+        /**
+         * 明文连接上文件区段进入发送队列，由事件循环线程在可写时用transferTo发送；
+         * TLS连接上分块读取文件并加密，内存占用与文件大小无关
+         */
+        @Override
+        public void writeFile(Path file, long count) {
+            flush();
+            TlsConnection tlsNow = tlsConnection;
+            try {
+                if (tlsNow == null) {
+                    FileChannel source = FileChannel.open(file, StandardOpenOption.READ);
+                    long end;
+                    try {
+                        end = Math.min(count, source.size());
+                    } catch (IOException e) {
+                        source.close();
+                        throw e;
+                    }
+                    enqueue(new FileOutbound(source, end));
+                    // 连接可能已在事件循环中关闭，此时由事件循环线程关闭刚加入的文件
+                    loop.execute(() -> {
+                        if (closed) {
+                            releaseOutbound();
+                        } else {
+                            updateInterest();
+                        }
+                    });
+                    return;
+                }
+                try (FileChannel source = FileChannel.open(file, StandardOpenOption.READ)) {
+                    long end = Math.min(count, source.size());
+                    ByteBuffer chunk = ByteBuffer.allocate(FILE_CHUNK_SIZE);
+                    long position = 0;
+                    while (position < end) {
+                        chunk.clear().limit((int) Math.min(chunk.capacity(), end - position));
+                        int n = source.read(chunk, position);
+                        if (n < 0) {
+                            break;
+                        }
+                        chunk.flip();
+                        tlsNow.write(chunk, this::sendEncrypted);
+                        position += n;
+                    }
+                }
+                loop.execute(this::updateInterest);
+            } catch (IOException e) {
+                log.error("发送{}文件失败: {}", name, e.getMessage());
+                loop.execute(this::closeNow);
+            }
+        }
+
+        /**
+         * 加密后的数据进入发送队列；握手数据在事件循环线程中产生，应用数据在工作线程中产生
+         */
+        private void sendEncrypted(ByteBuffer data) {
+            ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+            copy.put(data).flip();
+            enqueue(new BufferOutbound(copy));
+            loop.execute(this::updateInterest);
+        }
+
+        @Override
+        public void close() {
+            flush();
+            TlsConnection tlsNow = tlsConnection;
+            if (tlsNow != null && tlsNow.isHandshakeDone()) {
+                try {
+                    tlsNow.closeOutbound(this::sendEncrypted);
+                } catch (IOException e) {
+                    log.debug("发送{}客户端TLS关闭通知时出错: {}", name, e.getMessage());
+                }
+            }
+            loop.execute(() -> {
+                closing = true;
+                updateInterest();
+            });
+        }
+
+        @Override
+        public String remoteAddress() {
+            return remoteAddress;
+        }
+
+        @Override
+        public boolean canStartTls() {
+            return tls != null && tlsConnection == null;
+        }
+
+        @Override
+        public boolean isSecure() {
+            return tlsConnection != null;
+        }
+
+        /**
+         * 在工作线程中调用，此时读事件已暂停：丢弃未处理的明文输入，之后的读写都经过TLS
+         */
+        @Override
+        public void startTls() {
+            if (!canStartTls()) {
+                throw new IllegalStateException("当前连接不能升级为TLS");
+            }
+            flush();
+            input.clear();
+            try {
+                TlsConnection connection = tls.newConnection();
+                tlsChannel = connection.channel(channel, this::sendEncrypted);
+                tlsConnection = connection;
+                log.debug("{}客户端开始TLS握手: {}", name, remoteAddress);
+            } catch (IOException e) {
+                log.error("{}客户端升级TLS失败: {}", name, e.getMessage());
+                close();
+            }
+        }
+    }
+
+    /**
+     * 发送队列中的一项：响应缓冲或文件区段，在事件循环线程中写入非阻塞通道
+     */
+    private interface Outbound {
+
+        /**
+         * @return 全部写完时返回true，套接字发送缓冲区已满时返回false
+         */
+        boolean writeTo(SocketChannel channel) throws IOException;
+
+        /**
+         * 加入队列时的字节数，用于统计待发送数据量
+         */
+        long size();
+
+        default void release() {
+        }
+    }
+
+    private record BufferOutbound(ByteBuffer data) implements Outbound {
+
+        @Override
+        public boolean writeTo(SocketChannel channel) throws IOException {
+            channel.write(data);
+            return !data.hasRemaining();
+        }
+
+        @Override
+        public long size() {
+            return data.limit();
+        }
+    }
+
+    /**
+     * 文件区段：由内核从页缓存直接发送到套接字，不经过用户态缓冲
+     */
+    private static final class FileOutbound implements Outbound {
+
+        private final FileChannel file;
+        private final long end;
+        private long position;
+
+        FileOutbound(FileChannel file, long end) {
+            this.file = file;
+            this.end = end;
+        }
+
+        @Override
+        public boolean writeTo(SocketChannel channel) throws IOException {
+            while (position < end) {
+                long n = file.transferTo(position, end - position, channel);
+                if (n <= 0) {
+                    return false;
+                }
+                position += n;
+            }
+            return true;
+        }
+
+        @Override
+        public long size() {
+            return end;
+        }
+
+        @Override
+        public void release() {
+            try {
+                file.close();
+            } catch (IOException e) {
+                log.debug("关闭文件时出错: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 超过连接限制时立即回复繁忙并关闭连接；此时通道仍为阻塞模式，简短响应可直接写入发送缓冲区
+     */
+    private void reject(SocketChannel channel, InetAddress client) {
+        log.warn("{}连接数已达上限，拒绝客户端: {}", name, client);
+        try {
+            ByteBuffer reply = ByteBuffer.wrap((admission.busyReply() + "\r\n").getBytes(StandardCharsets.UTF_8));
+            while (reply.hasRemaining()) {
+                channel.write(reply);
+            }
+        } catch (IOException e) {
+            log.debug("拒绝{}客户端连接时出错: {}", name, e.getMessage());
+        }
+        closeQuietly(channel);
+    }
+
+    private void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.debug("关闭{}客户端连接时出错: {}", name, e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.hnu.mail.server;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 协议会话：与具体I/O模型无关的协议状态机。
+ * 由服务器引擎（阻塞线程或NIO事件循环）按行驱动，需要时可以切换为按字节数接收原始数据。
+ */
+public interface ProtocolSession {
+
+    /**
+     * 连接建立后调用，通常用于发送欢迎消息
+     */
+    void start();
+
+    /**
+     * 处理一行客户端输入（不含行尾的CRLF）
+     * @param buf 行所在的缓冲区
+     * @param off 行起始位置
+     * @param len 行长度
+     */
+    void onLine(byte[] buf, int off, int len);
+
+    /**
+     * 会话接下来期望接收的原始字节数（例如SMTP BDAT数据块），大于0时引擎不再按行切分，
+     * 而是把随后到达的字节原样交给onBinary，直到这些字节全部交付
+     */
+    default long binaryBytesExpected() {
+        return 0;
+    }
+
+    /**
+     * 处理一段原始字节，长度不超过binaryBytesExpected()；缓冲区只在调用期间有效
+     */
+    default void onBinary(ByteBuffer data) {
+    }
+
+    /**
+     * 输入缓冲中已接收的完整行全部处理完毕时调用，之后引擎会一次性发送缓冲的响应。
+     * 支持命令流水线的会话可以在这里合并处理本批命令中延迟的操作
+     */
+    default void onInputDrained() {
+    }
+
+    /**
+     * 等待下一行输入的最长时间（毫秒），小于等于0表示不限制。
+     * 引擎在每处理完一批输入后按会话当前状态重新计时，只收到半行数据不会重置计时
+     */
+    default long readTimeoutMillis() {
+        return 0;
+    }
+
+    /**
+     * 等待输入超时时调用，会话应发送超时响应；之后引擎会关闭连接
+     */
+    default void onTimeout() {
+    }
+
+    /**
+     * 会话是否已结束
+     */
+    boolean isClosed();
+
+    /**
+     * 连接断开后调用，用于释放会话持有的资源
+     */
+    default void onClose() {
+    }
+}
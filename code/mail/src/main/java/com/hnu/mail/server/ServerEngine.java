@@ -0,0 +1,13 @@
+package com.hnu.mail.server;
+
+import java.io.IOException;
+
+/**
+ * 协议服务器引擎：负责监听端口、接受连接并驱动协议会话
+ */
+public interface ServerEngine {
+
+    void start() throws IOException;
+
+    void stop();
+}
@@ -0,0 +1,59 @@
+package com.hnu.mail.server;
+
+import java.nio.file.Path;
+
+/**
+ * 会话输出通道，由服务器引擎实现
+ */
+public interface SessionChannel {
+
+    /**
+     * 写入一行响应（自动追加CRLF），在flush之前只进入缓冲区
+     */
+    void write(String line);
+
+    /**
+     * 原样发送文件开头的count字节（不追加CRLF），与之前写入的响应保持顺序。
+     * 明文连接上由内核直接从页缓存发送（FileChannel.transferTo），文件内容不经过堆内存；
+     * TLS连接需要在用户态加密，按固定大小的块读取。文件读取失败时连接被关闭
+     */
+    void writeFile(Path file, long count);
+
+    /**
+     * 将缓冲的响应发送给客户端
+     */
+    void flush();
+
+    /**
+     * 发送完缓冲的响应后关闭连接
+     */
+    void close();
+
+    /**
+     * 客户端地址，用于日志
+     */
+    String remoteAddress();
+
+    /**
+     * 当前连接能否升级为TLS：引擎配置了证书且连接尚未加密
+     */
+    default boolean canStartTls() {
+        return false;
+    }
+
+    /**
+     * 连接是否已加密
+     */
+    default boolean isSecure() {
+        return false;
+    }
+
+    /**
+     * 把连接升级为TLS（STARTTLS/STLS）。会话应先写入同意升级的响应，该响应与之前缓冲的响应一起以明文发送；
+     * 输入缓冲中尚未处理的明文被丢弃，防止在升级前注入的命令在加密后被执行。
+     * 握手在之后读取输入时进行，失败时连接被关闭
+     */
+    default void startTls() {
+        throw new UnsupportedOperationException("TLS未启用");
+    }
+}
@@ -0,0 +1,10 @@
+package com.hnu.mail.server;
+
+/**
+ * 为每个新连接创建协议会话
+ */
+@FunctionalInterface
+public interface SessionFactory {
+
+    ProtocolSession create(SessionChannel channel);
+}
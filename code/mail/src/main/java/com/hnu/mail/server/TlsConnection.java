@@ -0,0 +1,332 @@
+package com.hnu.mail.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+/**
+ * 基于SSLEngine的TLS连接，与I/O模型无关：阻塞引擎通过流适配器使用，NIO引擎通过通道适配器使用。
+ * 握手由读取驱动，读取过程中需要发送的握手数据立即交给调用方提供的发送函数；
+ * 加密输出加锁，保证握手数据和应用数据按SSLEngine产生的顺序发送（NIO引擎中读和写在不同线程）。
+ */
+public final class TlsConnection {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final TlsContext context;
+    private final SSLEngine engine;
+    private final long createdAt = System.currentTimeMillis();
+    private final Object wrapLock = new Object();
+
+    // 以下两个缓冲只由读取方访问
+    private ByteBuffer netIn;  // 已接收未解密的密文（写模式）
+    private ByteBuffer appIn;  // 已解密未读取的明文（读模式）
+    private boolean inboundDone;
+    // 由wrapLock保护
+    private ByteBuffer netOut;
+    private volatile boolean handshakeDone;
+
+    TlsConnection(TlsContext context, SSLEngine engine) {
+        this.context = context;
+        this.engine = engine;
+        this.netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+        this.appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize()).flip();
+        this.netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+    }
+
+    /**
+     * 从底层读取密文，返回读取的字节数，-1表示连接已关闭，非阻塞通道暂无数据时返回0
+     */
+    @FunctionalInterface
+    public interface RawInput {
+        int read(ByteBuffer dst) throws IOException;
+    }
+
+    /**
+     * 向底层发送密文；data只在调用期间有效，需要保留时调用方自行复制
+     */
+    @FunctionalInterface
+    public interface RawOutput {
+        void send(ByteBuffer data) throws IOException;
+    }
+
+    /**
+     * 握手是否已完成
+     */
+    public boolean isHandshakeDone() {
+        return handshakeDone;
+    }
+
+    /**
+     * 是否还有已接收但未读取的数据（明文或完整的密文记录），
+     * NIO引擎据此在没有新的读事件时继续读取
+     */
+    public boolean hasBufferedInput() {
+        return appIn.hasRemaining() || (netIn.position() > 0 && !inboundDone);
+    }
+
+    /**
+     * 读取解密后的明文，必要时推进握手
+     * @return 读取的字节数；0表示底层暂无数据（只出现在非阻塞通道上），-1表示连接已关闭
+     */
+    public int read(ByteBuffer dst, RawInput in, RawOutput out) throws IOException {
+        while (true) {
+            if (appIn.hasRemaining()) {
+                int n = Math.min(dst.remaining(), appIn.remaining());
+                dst.put(appIn.slice(appIn.position(), n));
+                appIn.position(appIn.position() + n);
+                return n;
+            }
+            if (inboundDone) {
+                return -1;
+            }
+            if (step(out)) {
+                continue;
+            }
+            int n = in.read(netIn);
+            if (n <= 0) {
+                return n;
+            }
+        }
+    }
+
+    /**
+     * 加密并发送明文，src中的数据全部发送后返回
+     */
+    public void write(ByteBuffer src, RawOutput out) throws IOException {
+        synchronized (wrapLock) {
+            while (src.hasRemaining()) {
+                if (!wrap(src, out)) {
+                    // 握手尚未完成（例如客户端在STARTTLS后迟迟不发起握手时会话超时），无法发送应用数据
+                    throw new SSLException("TLS握手未完成，无法发送数据");
+                }
+            }
+        }
+    }
+
+    /**
+     * 发送close_notify，之后不能再写入
+     */
+    public void closeOutbound(RawOutput out) throws IOException {
+        synchronized (wrapLock) {
+            engine.closeOutbound();
+            while (!engine.isOutboundDone()) {
+                if (!wrap(EMPTY, out)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * 阻塞引擎使用的输入流：读取时从raw读取密文，握手数据写入rawOut
+     */
+    public InputStream inputStream(InputStream raw, OutputStream rawOut) {
+        RawInput in = dst -> {
+            int n = raw.read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+            if (n > 0) {
+                dst.position(dst.position() + n);
+            }
+            return n;
+        };
+        RawOutput out = streamOutput(rawOut);
+        return new InputStream() {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                int n;
+                do {
+                    n = TlsConnection.this.read(ByteBuffer.wrap(b, off, len), in, out);
+                } while (n == 0);
+                return n;
+            }
+
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+            }
+        };
+    }
+
+    /**
+     * 阻塞引擎使用的输出流：写入的明文加密后写入rawOut
+     */
+    public OutputStream outputStream(OutputStream rawOut) {
+        RawOutput out = streamOutput(rawOut);
+        return new OutputStream() {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                TlsConnection.this.write(ByteBuffer.wrap(b, off, len), out);
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            /**
+             * 发送close_notify，不关闭底层连接
+             */
+            @Override
+            public void close() throws IOException {
+                closeOutbound(out);
+            }
+        };
+    }
+
+    /**
+     * NIO引擎使用的通道：读取时从非阻塞的raw读取密文，握手数据交给out
+     */
+    public ReadableByteChannel channel(ReadableByteChannel raw, RawOutput out) {
+        return new ReadableByteChannel() {
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                return TlsConnection.this.read(dst, raw::read, out);
+            }
+
+            @Override
+            public boolean isOpen() {
+                return raw.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                raw.close();
+            }
+        };
+    }
+
+    /**
+     * 推进一步：执行握手任务、发送握手数据或解密已接收的密文
+     * @return 有进展时返回true，需要更多密文时返回false
+     */
+    private boolean step(RawOutput out) throws IOException {
+        switch (engine.getHandshakeStatus()) {
+            case NEED_TASK -> {
+                runTasks();
+                return true;
+            }
+            case NEED_WRAP -> {
+                synchronized (wrapLock) {
+                    wrap(EMPTY, out);
+                }
+                return true;
+            }
+            default -> {
+                // NEED_UNWRAP或握手已完成：解密已接收的数据
+            }
+        }
+
+        SSLEngineResult result;
+        netIn.flip();
+        appIn.compact();
+        try {
+            result = engine.unwrap(netIn, appIn);
+        } catch (SSLException e) {
+            if (!handshakeDone) {
+                context.recordFailure();
+            }
+            throw e;
+        } finally {
+            netIn.compact();
+            appIn.flip();
+        }
+        checkHandshake(result);
+
+        switch (result.getStatus()) {
+            case BUFFER_UNDERFLOW -> {
+                // 一条记录比缓冲区还大（对端协商了更大的记录），扩容后继续读取
+                int size = engine.getSession().getPacketBufferSize();
+                if (netIn.position() == netIn.capacity() && size > netIn.capacity()) {
+                    netIn = ByteBuffer.allocate(size).put(netIn.flip());
+                }
+                return false;
+            }
+            case BUFFER_OVERFLOW -> {
+                appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize()).flip();
+                return true;
+            }
+            case CLOSED -> {
+                // 对端发送了close_notify，按协议回应后结束读取
+                inboundDone = true;
+                if (engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                    closeOutbound(out);
+                }
+                return true;
+            }
+            default -> {
+                return result.bytesConsumed() > 0 || result.bytesProduced() > 0
+                        || result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK
+                        || result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP;
+            }
+        }
+    }
+
+    /**
+     * 加密一次并发送产生的数据，调用方持有wrapLock
+     * @return 有进展（消耗了明文或产生了密文）时返回true
+     */
+    private boolean wrap(ByteBuffer src, RawOutput out) throws IOException {
+        netOut.clear();
+        SSLEngineResult result;
+        try {
+            result = engine.wrap(src, netOut);
+        } catch (SSLException e) {
+            if (!handshakeDone) {
+                context.recordFailure();
+            }
+            throw e;
+        }
+        checkHandshake(result);
+        if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+            netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+            return true;
+        }
+        netOut.flip();
+        if (netOut.hasRemaining()) {
+            out.send(netOut);
+        }
+        if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+            runTasks();
+        }
+        if (result.getStatus() == SSLEngineResult.Status.CLOSED && src.hasRemaining()) {
+            throw new SSLException("TLS连接已关闭");
+        }
+        return result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * 首次握手完成时统计：会话的创建时间早于本连接说明复用了缓存或票据中的会话
+     */
+    private synchronized void checkHandshake(SSLEngineResult result) {
+        if (result.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.FINISHED || handshakeDone) {
+            return;
+        }
+        handshakeDone = true;
+        context.recordHandshake(engine.getSession().getCreationTime() < createdAt);
+    }
+
+    private static RawOutput streamOutput(OutputStream rawOut) {
+        return data -> {
+            rawOut.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+            rawOut.flush();
+            data.position(data.limit());
+        };
+    }
+}
@@ -0,0 +1,110 @@
+package com.hnu.mail.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSessionContext;
+
+/**
+ * 服务端TLS配置，SMTP的STARTTLS和POP3的STLS共用。
+ * 会话缓存有容量上限和过期时间；JDK默认启用服务端会话票据（jdk.tls.server.enableSessionTicketExtension），
+ * 票据中携带加密的会话状态，客户端重连时无论是否命中缓存都可以跳过完整握手。
+ * 同时统计完整握手、复用握手和失败次数，用于评估缓存大小是否合适。
+ */
+public final class TlsContext {
+
+    private static final String[] PROTOCOLS = {"TLSv1.3", "TLSv1.2"};
+
+    private final SSLContext sslContext;
+    private final int sessionCacheSize;
+    private final int sessionTimeoutSeconds;
+
+    private final AtomicLong fullHandshakes = new AtomicLong();
+    private final AtomicLong resumedHandshakes = new AtomicLong();
+    private final AtomicLong failedHandshakes = new AtomicLong();
+
+    public TlsContext(SSLContext sslContext, int sessionCacheSize, int sessionTimeoutSeconds) {
+        this.sslContext = sslContext;
+        this.sessionCacheSize = sessionCacheSize;
+        this.sessionTimeoutSeconds = sessionTimeoutSeconds;
+        SSLSessionContext sessions = sslContext.getServerSessionContext();
+        sessions.setSessionCacheSize(sessionCacheSize);
+        sessions.setSessionTimeout(sessionTimeoutSeconds);
+    }
+
+    /**
+     * 从密钥库文件创建
+     * @param keystore 密钥库路径
+     * @param password 密钥库和私钥的密码
+     * @param type 密钥库类型，例如PKCS12或JKS
+     */
+    public static TlsContext load(Path keystore, String password, String type,
+                                  int sessionCacheSize, int sessionTimeoutSeconds) throws IOException {
+        char[] secret = password.toCharArray();
+        try (InputStream in = Files.newInputStream(keystore)) {
+            KeyStore store = KeyStore.getInstance(type);
+            store.load(in, secret);
+            KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagers.init(store, secret);
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keyManagers.getKeyManagers(), null, null);
+            return new TlsContext(context, sessionCacheSize, sessionTimeoutSeconds);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("加载TLS密钥库失败: " + e.getMessage(), e);
+        } finally {
+            Arrays.fill(secret, '\0');
+        }
+    }
+
+    /**
+     * 为一个连接创建服务端TLS状态，握手在收到客户端的第一条消息时开始
+     */
+    public TlsConnection newConnection() throws SSLException {
+        SSLEngine engine = sslContext.createSSLEngine();
+        engine.setUseClientMode(false);
+        engine.setEnabledProtocols(Arrays.stream(PROTOCOLS)
+                .filter(Arrays.asList(engine.getSupportedProtocols())::contains)
+                .toArray(String[]::new));
+        engine.beginHandshake();
+        return new TlsConnection(this, engine);
+    }
+
+    void recordHandshake(boolean resumed) {
+        (resumed ? resumedHandshakes : fullHandshakes).incrementAndGet();
+    }
+
+    void recordFailure() {
+        failedHandshakes.incrementAndGet();
+    }
+
+    /**
+     * 握手统计：完整握手、复用握手、失败次数、复用命中率以及会话缓存的当前大小
+     */
+    public Map<String, Object> report() {
+        long full = fullHandshakes.get();
+        long resumed = resumedHandshakes.get();
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("handshakes", full + resumed);
+        report.put("fullHandshakes", full);
+        report.put("resumedHandshakes", resumed);
+        report.put("failedHandshakes", failedHandshakes.get());
+        report.put("resumptionHitRate", full + resumed == 0 ? 0.0 : (double) resumed / (full + resumed));
+        report.put("cachedSessions", Collections.list(sslContext.getServerSessionContext().getIds()).size());
+        report.put("sessionCacheSize", sessionCacheSize);
+        report.put("sessionTimeoutSeconds", sessionTimeoutSeconds);
+        return report;
+    }
+}
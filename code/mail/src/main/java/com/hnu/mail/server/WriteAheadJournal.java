@@ -0,0 +1,264 @@
+package com.hnu.mail.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 追加写日志（WAL），多个会话并发追加的记录由一个写线程合并写入并只执行一次fsync（组提交）。
+ * 每条记录的格式为：长度(4字节) + CRC32(4字节) + 内容；恢复时遇到不完整或校验失败的记录即停止，
+ * 因此崩溃时写了一半的尾部记录会被丢弃。
+ */
+@Slf4j
+public class WriteAheadJournal implements Closeable {
+
+    private static final int HEADER_SIZE = 8;
+    private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+    // 文件超过该大小时只保留未完成的记录重写日志
+    private static final long DEFAULT_COMPACT_THRESHOLD = 4L * 1024 * 1024;
+
+    private final Path file;
+    private FileChannel channel; // 只在写线程中替换
+    private final Supplier<List<byte[]>> live;
+    private final long compactThreshold;
+    private long compactedSize; // 上次重写后的文件大小
+    private final BlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private final AtomicLong syncs = new AtomicLong();
+    private final AtomicLong records = new AtomicLong();
+    private volatile boolean closed = false;
+
+    private WriteAheadJournal(Path file, FileChannel channel, Supplier<List<byte[]>> live, long compactThreshold) {
+        this.file = file;
+        this.channel = channel;
+        this.live = live;
+        this.compactThreshold = compactThreshold;
+        this.writer = new Thread(this::writeLoop, "journal-writer");
+        this.writer.setDaemon(true);
+    }
+
+    /**
+     * 读取日志中所有完整的记录，文件不存在时返回空列表
+     */
+    public static List<byte[]> recover(Path file) throws IOException {
+        List<byte[]> result = new ArrayList<>();
+        if (!Files.exists(file)) {
+            return result;
+        }
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (readFully(in, header)) {
+                header.flip();
+                int length = header.getInt();
+                int checksum = header.getInt();
+                header.clear();
+                if (length < 0 || length > MAX_RECORD_SIZE) {
+                    break;
+                }
+                ByteBuffer payload = ByteBuffer.allocate(length);
+                if (!readFully(in, payload) || crc(payload.array()) != checksum) {
+                    log.warn("日志 {} 尾部存在不完整的记录，已忽略", file);
+                    break;
+                }
+                result.add(payload.array());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 以给定的记录重建日志文件并打开用于追加。
+     * 先写入临时文件并fsync，再原子替换旧文件，重建过程中崩溃不会丢失旧日志
+     * @param initial 需要保留的记录（通常是恢复后仍未完成的记录）
+     * @param live 返回当前仍未完成的记录，日志变大时只保留这些记录重写；在写线程中调用，
+     *             返回时已经写入文件的记录若已完成就不应再包含在内
+     */
+    public static WriteAheadJournal open(Path file, List<byte[]> initial, Supplier<List<byte[]>> live)
+            throws IOException {
+        return open(file, initial, live, DEFAULT_COMPACT_THRESHOLD);
+    }
+
+    /**
+     * @param compactThreshold 文件超过该大小时重写
+     */
+    public static WriteAheadJournal open(Path file, List<byte[]> initial, Supplier<List<byte[]>> live,
+                                         long compactThreshold) throws IOException {
+        Files.createDirectories(file.getParent());
+        FileChannel channel = rewrite(file, initial);
+        WriteAheadJournal journal = new WriteAheadJournal(file, channel, live, compactThreshold);
+        journal.compactedSize = channel.size();
+        journal.writer.start();
+        return journal;
+    }
+
+    /**
+     * 先写入临时文件并fsync，再原子替换旧文件，重写过程中崩溃不会丢失旧日志
+     * @return 打开用于追加的新文件
+     */
+    private static FileChannel rewrite(Path file, List<byte[]> records) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (byte[] record : records) {
+                writeFully(out, frame(record));
+            }
+            out.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        return channel;
+    }
+
+    /**
+     * 追加一条记录
+     * @return 记录写入并fsync后完成的Future
+     */
+    public CompletableFuture<Void> append(byte[] payload) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        if (closed) {
+            future.completeExceptionally(new IOException("日志已关闭: " + file));
+            return future;
+        }
+        queue.add(new PendingWrite(payload, future));
+        return future;
+    }
+
+    /**
+     * 累计fsync次数，与记录数对比可以看出组提交的合并效果
+     */
+    public long syncCount() {
+        return syncs.get();
+    }
+
+    public long recordCount() {
+        return records.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        writer.interrupt();
+        try {
+            writer.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+
+    private void writeLoop() {
+        List<PendingWrite> batch = new ArrayList<>();
+        while (!closed) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                break;
+            }
+            queue.drainTo(batch);
+            try {
+                int size = 0;
+                for (PendingWrite write : batch) {
+                    size += HEADER_SIZE + write.payload.length;
+                }
+                ByteBuffer buffer = ByteBuffer.allocate(size);
+                for (PendingWrite write : batch) {
+                    buffer.put(frame(write.payload));
+                }
+                buffer.flip();
+                writeFully(channel, buffer);
+                channel.force(false);
+                syncs.incrementAndGet();
+                records.addAndGet(batch.size());
+                for (PendingWrite write : batch) {
+                    write.future.complete(null);
+                }
+                compact();
+            } catch (IOException e) {
+                log.error("写入日志 {} 失败: {}", file, e.getMessage());
+                for (PendingWrite write : batch) {
+                    write.future.completeExceptionally(e);
+                }
+            }
+            batch.clear();
+        }
+        // 关闭后仍在排队的写入全部失败
+        PendingWrite write;
+        while ((write = queue.poll()) != null) {
+            write.future.completeExceptionally(new IOException("日志已关闭: " + file));
+        }
+    }
+
+    /**
+     * 文件超过阈值时只保留未完成的记录重写日志。
+     * 长期无法完成的记录也会保留下来，为避免每批写入后都重写，文件至少增长到上次重写后大小的两倍才再次重写
+     */
+    private void compact() throws IOException {
+        long size = channel.size();
+        // 不必等待队列为空：尚在排队的记录会在重写后追加
+        if (size <= Math.max(compactThreshold, compactedSize * 2)) {
+            return;
+        }
+        List<byte[]> records = live.get();
+        if (records.isEmpty()) {
+            channel.truncate(0);
+            channel.position(0);
+            channel.force(true);
+        } else {
+            FileChannel rewritten = rewrite(file, records);
+            channel.close();
+            channel = rewritten;
+        }
+        compactedSize = channel.size();
+        log.info("日志 {} 已重写，保留未完成的记录 {} 条，{} 字节 -> {} 字节", file, records.size(), size, compactedSize);
+    }
+
+    private static ByteBuffer frame(byte[] payload) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        buffer.putInt(payload.length);
+        buffer.putInt(crc(payload));
+        buffer.put(payload);
+        buffer.flip();
+        return buffer;
+    }
+
+    private static int crc(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    private static boolean readFully(FileChannel in, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    private record PendingWrite(byte[] payload, CompletableFuture<Void> future) {
+    }
+}
@@ -17,6 +17,7 @@ import com.hnu.mail.dto.SendMailRequest;
 import com.hnu.mail.dto.StatisticsDto;
 import com.hnu.mail.dto.SystemLogDto;
 import com.hnu.mail.model.FilterRule;
+import com.hnu.mail.model.OutboundMail;
 import com.hnu.mail.model.SystemLog;
 import com.hnu.mail.model.User;
 import com.hnu.mail.repository.FilterRuleRepository;
@@ -35,6 +36,9 @@ public class AdminService {
   private final PasswordEncoder passwordEncoder;
   private final FilterRuleRepository filterRuleRepository;
   private final LogService logService;
+  private final MailBodyService mailBodyService;
+  private final MailDeliveryService deliveryService;
+  private final MaildropCache maildropCache;
 
   @Transactional(readOnly = true)
   public Page<User> getAllUsers(Pageable pageable) {
@@ -83,7 +87,13 @@ public class AdminService {
 
   @Transactional
   public void deleteUser(Long id) {
+    // 用户的邮件会被级联删除，先释放这些邮件对正文的引用
+    mailBodyService.releaseByUser(id);
+    List<String> rawFiles = mailRepository.findRawFilesByUser(id);
     userRepository.deleteById(id);
+    mailBodyService.purgeUnreferenced();
+    deliveryService.releaseRawFiles(rawFiles);
+    maildropCache.invalidate(id);
   }
 
   @Transactional
@@ -107,7 +117,7 @@ public class AdminService {
         mailRequest.setContent(request.getContent());
         mailRequest.setFrom(admin.getEmail());
         
-        mailService.sendMail(mailRequest, adminId, new ArrayList<>());
+        mailService.sendMail(mailRequest, adminId, new ArrayList<>(), OutboundMail.Lane.BULK);
       } catch (Exception e) {
         // 记录发送失败的用户，但继续发送给其他用户
         e.printStackTrace();
@@ -0,0 +1,65 @@
+package com.hnu.mail.service;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import jakarta.annotation.PreDestroy;
+
+/**
+ * 协议服务器的数据库调用执行器。
+ * JDBC驱动内部大量使用synchronized，在虚拟线程中执行会把载体线程钉住（pinning）；
+ * 因此虚拟线程发起的仓库调用会转交给一个有界的平台线程池执行，虚拟线程只在Future上等待。
+ * 平台线程中的调用直接在当前线程执行。
+ */
+@Service
+public class DatabaseCallExecutor {
+
+  private final ExecutorService platformPool;
+
+  public DatabaseCallExecutor(@Value("${app.server.db-call-threads:10}") int threads) {
+    this.platformPool = Executors.newFixedThreadPool(threads, runnable -> {
+      Thread thread = new Thread(runnable);
+      thread.setName("server-db-" + thread.threadId());
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * 执行有返回值的数据库调用
+   */
+  public <T> T call(Supplier<T> work) {
+    if (!Thread.currentThread().isVirtual()) {
+      return work.get();
+    }
+    try {
+      return CompletableFuture.supplyAsync(work, platformPool).join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException cause) {
+        throw cause;
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * 执行无返回值的数据库调用
+   */
+  public void run(Runnable work) {
+    call(() -> {
+      work.run();
+      return null;
+    });
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    platformPool.shutdown();
+  }
+}
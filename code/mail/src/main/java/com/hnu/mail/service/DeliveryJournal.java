@@ -0,0 +1,289 @@
+package com.hnu.mail.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.hnu.mail.model.Mail;
+import com.hnu.mail.model.MailHeaders;
+import com.hnu.mail.model.User;
+import com.hnu.mail.server.WriteAheadJournal;
+
+/**
+ * 投递日志：回复250之前把邮件的信封信息写入WAL，投递完成后追加提交记录。
+ * 收件人分布在多个分区时，每个分区投递成功后先追加一条记录标明已投递的收件人，
+ * 启动时没有提交记录的邮件只为尚未投递的收件人根据暂存文件重新投递，JVM在确认和数据库提交之间崩溃也不会丢信。
+ */
+class DeliveryJournal implements Closeable {
+
+  private static final byte ACCEPT = 'A';
+  private static final byte COMMIT = 'C';
+  private static final byte DELIVERED = 'D';
+
+  private final AtomicLong nextId;
+  // 已确认接收但尚未提交的邮件：接收记录及其分区完成记录，日志变大时只保留这些记录重写
+  private final Map<Long, List<byte[]>> outstanding = new ConcurrentHashMap<>();
+  private WriteAheadJournal journal;
+
+  private DeliveryJournal(long nextId) {
+    this.nextId = new AtomicLong(nextId);
+  }
+
+  /**
+   * 打开日志并返回需要重新投递的记录
+   */
+  static DeliveryJournal open(Path file, List<Entry> unfinished) throws IOException {
+    Map<Long, byte[]> accepted = new LinkedHashMap<>();
+    Map<Long, List<byte[]>> deliveredRecords = new HashMap<>();
+    long maxId = 0;
+    for (byte[] record : WriteAheadJournal.recover(file)) {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+      byte type = in.readByte();
+      long id = in.readLong();
+      maxId = Math.max(maxId, id);
+      if (type == ACCEPT) {
+        accepted.put(id, record);
+      } else if (type == DELIVERED) {
+        deliveredRecords.computeIfAbsent(id, key -> new ArrayList<>()).add(record);
+      } else if (type == COMMIT) {
+        accepted.remove(id);
+        deliveredRecords.remove(id);
+      }
+    }
+
+    DeliveryJournal deliveryJournal = new DeliveryJournal(maxId + 1);
+    List<byte[]> retained = new ArrayList<>();
+    for (byte[] record : accepted.values()) {
+      long id = ByteBuffer.wrap(record, 1, 8).getLong();
+      List<byte[]> parts = deliveredRecords.getOrDefault(id, List.of());
+      BitSet delivered = new BitSet();
+      for (byte[] part : parts) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(part, 9, part.length - 9));
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+          delivered.set(in.readInt());
+        }
+      }
+      Entry entry = decode(record, delivered);
+      List<byte[]> records = new ArrayList<>(parts.size() + 1);
+      records.add(record);
+      records.addAll(parts);
+      deliveryJournal.outstanding.put(entry.id(), List.copyOf(records));
+      unfinished.add(entry);
+      retained.addAll(records);
+    }
+
+    // 只保留未提交的接收记录及其分区完成记录重建日志
+    deliveryJournal.journal = WriteAheadJournal.open(file, retained, deliveryJournal::liveRecords);
+    return deliveryJournal;
+  }
+
+  /**
+   * 记录已接收的邮件，返回时记录已经落盘
+   * @return 日志记录ID，投递完成后用于提交
+   */
+  long accept(Path spoolFile, List<Mail> mails) throws IOException {
+    long id = nextId.getAndIncrement();
+    byte[] record = encode(id, spoolFile, mails);
+    // 先登记再写入，日志在两者之间重写时不会漏掉这条记录
+    outstanding.put(id, List.of(record));
+    try {
+      journal.append(record).join();
+      return id;
+    } catch (CompletionException e) {
+      outstanding.remove(id);
+      throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+    }
+  }
+
+  /**
+   * 追加部分收件人已投递的记录，不等待落盘；记录丢失时重启后会重新投递这些收件人
+   * @param positions 这些收件人在接收记录中的序号
+   */
+  void delivered(long id, int[] positions) {
+    ByteBuffer record = ByteBuffer.allocate(13 + positions.length * 4).put(DELIVERED).putLong(id).putInt(positions.length);
+    for (int position : positions) {
+      record.putInt(position);
+    }
+    byte[] bytes = record.array();
+    outstanding.computeIfPresent(id, (key, records) -> {
+      List<byte[]> updated = new ArrayList<>(records);
+      updated.add(bytes);
+      return List.copyOf(updated);
+    });
+    journal.append(bytes);
+  }
+
+  /**
+   * 追加提交记录，不等待落盘；提交记录丢失时重启后会重新投递
+   */
+  void commit(long id, Runnable afterDurable) {
+    journal.append(commitRecord(id)).whenComplete((ignored, error) -> {
+      outstanding.remove(id);
+      if (error == null) {
+        afterDurable.run();
+      }
+    });
+  }
+
+  private List<byte[]> liveRecords() {
+    List<byte[]> records = new ArrayList<>();
+    outstanding.values().forEach(records::addAll);
+    return records;
+  }
+
+  int outstanding() {
+    return outstanding.size();
+  }
+
+  long syncCount() {
+    return journal.syncCount();
+  }
+
+  long recordCount() {
+    return journal.recordCount();
+  }
+
+  @Override
+  public void close() throws IOException {
+    journal.close();
+  }
+
+  private static byte[] encode(long id, Path spoolFile, List<Mail> mails) {
+    Mail first = mails.get(0);
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeByte(ACCEPT);
+      out.writeLong(id);
+      out.writeUTF(spoolFile.toString());
+      out.writeUTF(first.getSubject() != null ? first.getSubject() : "");
+      out.writeUTF(first.getSenderEmail() != null ? first.getSenderEmail() : "");
+      out.writeLong(toEpochMillis(first.getReceivedAt()));
+      out.writeInt(first.getSize());
+      out.writeInt(mails.size());
+      for (Mail mail : mails) {
+        out.writeUTF(mail.getReceiverEmail());
+        out.writeLong(mail.getReceiver().getId());
+      }
+      // 解析出的邮件头追加在记录末尾
+      MailHeaders headers = first.getHeaders();
+      if (headers != null) {
+        writeNullable(out, headers.getFrom());
+        out.writeLong(headers.getDate() != null ? toEpochMillis(headers.getDate()) : Long.MIN_VALUE);
+        writeNullable(out, headers.getMessageId());
+        writeNullable(out, headers.getInReplyTo());
+      }
+      return bytes.toByteArray();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static byte[] commitRecord(long id) {
+    return ByteBuffer.allocate(9).put(COMMIT).putLong(id).array();
+  }
+
+  /**
+   * 解码接收记录，跳过已经投递的收件人
+   */
+  private static Entry decode(byte[] record, BitSet delivered) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+    in.readByte();
+    long id = in.readLong();
+    Path spoolFile = Paths.get(in.readUTF());
+    String subject = in.readUTF();
+    String sender = in.readUTF();
+    LocalDateTime receivedAt = fromEpochMillis(in.readLong());
+    int size = in.readInt();
+    int count = in.readInt();
+
+    List<String> addresses = new ArrayList<>(count);
+    List<Long> receiverIds = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      addresses.add(in.readUTF());
+      receiverIds.add(in.readLong());
+    }
+    MailHeaders headers = null;
+    if (in.available() > 0) {
+      String from = readNullable(in);
+      long date = in.readLong();
+      headers = new MailHeaders(from, date != Long.MIN_VALUE ? fromEpochMillis(date) : null,
+          readNullable(in), readNullable(in));
+    }
+
+    List<Mail> mails = new ArrayList<>(count);
+    int[] positions = new int[count - delivered.get(0, count).cardinality()];
+    for (int i = 0; i < count; i++) {
+      if (delivered.get(i)) {
+        continue;
+      }
+      positions[mails.size()] = i;
+      String address = addresses.get(i);
+      User receiver = new User();
+      receiver.setId(receiverIds.get(i));
+
+      Mail mail = new Mail();
+      mail.setSenderEmail(sender);
+      mail.setReceiverEmail(address);
+      mail.setReceiver(receiver);
+      mail.setSubject(subject);
+      mail.setSentAt(receivedAt);
+      mail.setReceivedAt(receivedAt);
+      mail.setFolder(Mail.MailFolder.INBOX);
+      mail.setIsRead(false);
+      mail.setSize(size);
+      if (headers != null) {
+        mail.setHeaders(new MailHeaders(headers.getFrom(), headers.getDate(),
+            headers.getMessageId(), headers.getInReplyTo()));
+      }
+      mails.add(mail);
+    }
+    return new Entry(id, spoolFile, mails, positions);
+  }
+
+  private static void writeNullable(DataOutputStream out, String value) throws IOException {
+    out.writeBoolean(value != null);
+    if (value != null) {
+      out.writeUTF(value);
+    }
+  }
+
+  private static String readNullable(DataInputStream in) throws IOException {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+
+  private static long toEpochMillis(LocalDateTime time) {
+    return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+  }
+
+  private static LocalDateTime fromEpochMillis(long millis) {
+    return LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+  }
+
+  /**
+   * 需要重新投递的日志记录，mails只包含尚未投递的收件人，全部投递过时为空
+   * @param positions mails中各收件人在接收记录中的序号
+   */
+  record Entry(long id, Path spoolFile, List<Mail> mails, int[] positions) {
+  }
+}
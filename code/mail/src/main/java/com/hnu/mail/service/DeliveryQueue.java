@@ -0,0 +1,472 @@
+package com.hnu.mail.service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.hnu.mail.model.Attachment;
+import com.hnu.mail.model.Mail;
+import com.hnu.mail.server.MimeDecomposer;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * SMTP投递队列：会话把已落盘的邮件交给队列后即可回复250，不再等待数据库写入。
+ * 队列按收件人分区，每个分区由一个工作线程批量取出并在一个事务中写入（组提交），
+ * 同一收件人的邮件总是进入同一分区，因此每个邮箱内的投递顺序与接收顺序一致且无需加锁。
+ * 投递失败的部分按指数退避重新排队，达到重试上限后保留暂存文件，下次启动时只重新投递这些收件人。
+ */
+@Service
+@Slf4j
+public class DeliveryQueue {
+
+  // 每个事务最多包含的收件人记录数
+  private static final int MAX_BATCH = 200;
+  // 与attachments表的列宽一致
+  private static final int MAX_FILENAME_LENGTH = 255;
+  private static final int MAX_FILE_TYPE_LENGTH = 100;
+  private static final Duration MAX_BACKOFF = Duration.ofMinutes(5);
+
+  private final MailDeliveryService deliveryService;
+  private final MessageFileStore fileStore;
+  private final Path attachmentDir;
+  private final int capacity;
+  private final int maxAttempts;
+  private final long retryBaseMillis;
+  private final Partition[] partitions;
+  private final ScheduledExecutorService retryTimer;
+
+  private final AtomicInteger depth = new AtomicInteger();
+  private final AtomicLong deliveredMails = new AtomicLong();
+  private final AtomicLong failedMails = new AtomicLong();
+  private final AtomicLong retriedMails = new AtomicLong();
+  private final AtomicLong batches = new AtomicLong();
+  private volatile long lastLagMillis;
+  private volatile DeliveryJournal journal;
+
+  public DeliveryQueue(MailDeliveryService deliveryService, MessageFileStore fileStore,
+                       @Value("${app.server.delivery-partitions:4}") int partitionCount,
+                       @Value("${app.server.delivery-queue-capacity:10000}") int capacity,
+                       @Value("${app.server.delivery-max-attempts:5}") int maxAttempts,
+                       @Value("${app.server.delivery-retry-base-ms:1000}") long retryBaseMillis,
+                       @Value("${app.mail.storage.local-path:uploads}") String attachmentPath) {
+    this.deliveryService = deliveryService;
+    this.fileStore = fileStore;
+    this.attachmentDir = Paths.get(attachmentPath);
+    this.capacity = capacity;
+    this.maxAttempts = Math.max(1, maxAttempts);
+    this.retryBaseMillis = retryBaseMillis;
+    this.retryTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "mail-delivery-retry");
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.partitions = new Partition[Math.max(1, partitionCount)];
+    for (int i = 0; i < partitions.length; i++) {
+      partitions[i] = new Partition(i);
+      partitions[i].thread.start();
+    }
+  }
+
+  /**
+   * 提交一封已落盘的邮件，暂存文件在所有收件人投递完成后删除
+   * @param spoolFile 邮件原文的暂存文件
+   * @param mails 发往各收件人的邮件记录（不含正文）
+   * @return 队列已满时返回false，调用方应回复临时错误让对方稍后重试
+   */
+  public boolean submit(Path spoolFile, List<Mail> mails) {
+    if (mails.isEmpty()) {
+      deleteQuietly(spoolFile);
+      return true;
+    }
+    if (!reserve(mails.size())) {
+      log.warn("投递队列已满，当前深度: {}", depth.get());
+      return false;
+    }
+
+    // 回复250之前先把信封写入日志，日志写入与其他会话合并fsync
+    long journalId = -1;
+    DeliveryJournal current = journal;
+    if (current != null) {
+      try {
+        journalId = current.accept(spoolFile, mails);
+      } catch (IOException e) {
+        log.error("写入投递日志失败: {}", e.getMessage());
+        depth.addAndGet(-mails.size());
+        return false;
+      }
+    }
+    int[] positions = new int[mails.size()];
+    Arrays.setAll(positions, i -> i);
+    enqueue(new QueuedMessage(spoolFile, journalId), mails, positions);
+    return true;
+  }
+
+  /**
+   * 打开投递日志，并重新投递上次运行中已确认接收但未完成投递的邮件。
+   * 重复调用时直接返回
+   * @param spoolDir 暂存目录，日志文件与暂存文件放在同一目录
+   */
+  public synchronized void openJournal(Path spoolDir) throws IOException {
+    if (journal != null) {
+      return;
+    }
+    List<DeliveryJournal.Entry> unfinished = new ArrayList<>();
+    journal = DeliveryJournal.open(spoolDir.resolve("delivery.journal"), unfinished);
+
+    int replayed = 0;
+    for (DeliveryJournal.Entry entry : unfinished) {
+      if (!Files.exists(entry.spoolFile())) {
+        // 暂存文件只在投递完成后删除，文件不存在说明已经投递过
+        journal.commit(entry.id(), () -> { });
+        continue;
+      }
+      if (entry.mails().isEmpty()) {
+        // 各分区都已投递，只是提交记录没有写入
+        journal.commit(entry.id(), () -> deleteQuietly(entry.spoolFile()));
+        continue;
+      }
+      depth.addAndGet(entry.mails().size());
+      enqueue(new QueuedMessage(entry.spoolFile(), entry.id()), entry.mails(), entry.positions());
+      replayed++;
+    }
+    if (replayed > 0) {
+      log.info("从投递日志恢复未完成的邮件 {} 封", replayed);
+    }
+  }
+
+  /**
+   * @param positions 各收件人在投递日志接收记录中的序号，分区投递完成时据此记录已投递的收件人
+   */
+  private void enqueue(QueuedMessage message, List<Mail> mails, int[] positions) {
+    // 按收件人拆分到各分区
+    List<List<Mail>> parts = new ArrayList<>(partitions.length);
+    List<List<Integer>> partPositions = new ArrayList<>(partitions.length);
+    for (int i = 0; i < partitions.length; i++) {
+      parts.add(new ArrayList<>());
+      partPositions.add(new ArrayList<>());
+    }
+    for (int i = 0; i < mails.size(); i++) {
+      int partition = partitionOf(mails.get(i));
+      parts.get(partition).add(mails.get(i));
+      partPositions.get(partition).add(positions[i]);
+    }
+
+    long now = System.nanoTime();
+    for (int i = 0; i < partitions.length; i++) {
+      if (!parts.get(i).isEmpty()) {
+        message.remainingParts.incrementAndGet();
+      }
+    }
+    for (int i = 0; i < partitions.length; i++) {
+      if (!parts.get(i).isEmpty()) {
+        int[] itemPositions = partPositions.get(i).stream().mapToInt(Integer::intValue).toArray();
+        partitions[i].queue.add(new Item(message, parts.get(i), itemPositions, now, 1));
+      }
+    }
+  }
+
+  /**
+   * 队列状态：深度、最早排队邮件的等待时间和最近一批的投递延迟
+   */
+  public Map<String, Object> report() {
+    long now = System.nanoTime();
+    long oldest = 0;
+    for (Partition partition : partitions) {
+      Item head = partition.queue.peek();
+      if (head != null) {
+        oldest = Math.max(oldest, TimeUnit.NANOSECONDS.toMillis(now - head.enqueuedNanos));
+      }
+    }
+    Map<String, Object> report = new LinkedHashMap<>();
+    report.put("partitions", partitions.length);
+    report.put("capacity", capacity);
+    report.put("depth", depth.get());
+    report.put("oldestQueuedMs", oldest);
+    report.put("lastLagMs", lastLagMillis);
+    report.put("batches", batches.get());
+    report.put("deliveredMails", deliveredMails.get());
+    report.put("retriedMails", retriedMails.get());
+    report.put("failedMails", failedMails.get());
+    DeliveryJournal current = journal;
+    if (current != null) {
+      report.put("journalOutstanding", current.outstanding());
+      report.put("journalRecords", current.recordCount());
+      report.put("journalSyncs", current.syncCount());
+    }
+    return report;
+  }
+
+  public int depth() {
+    return depth.get();
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    retryTimer.shutdownNow();
+    for (Partition partition : partitions) {
+      partition.thread.interrupt();
+    }
+    if (journal != null) {
+      try {
+        journal.close();
+      } catch (IOException e) {
+        log.warn("关闭投递日志失败: {}", e.getMessage());
+      }
+    }
+  }
+
+  private boolean reserve(int count) {
+    while (true) {
+      int current = depth.get();
+      if (current + count > capacity) {
+        return false;
+      }
+      if (depth.compareAndSet(current, current + count)) {
+        return true;
+      }
+    }
+  }
+
+  private int partitionOf(Mail mail) {
+    Object key = mail.getReceiver() != null ? mail.getReceiver().getId() : mail.getReceiverEmail();
+    return Math.floorMod(key != null ? key.hashCode() : 0, partitions.length);
+  }
+
+  /**
+   * 分区工作线程：阻塞等待第一条，再取出已排队的其余条目组成一批
+   */
+  private void drain(Partition partition) {
+    List<Item> batch = new ArrayList<>();
+    while (!Thread.currentThread().isInterrupted()) {
+      try {
+        batch.add(partition.queue.take());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+      int size = batch.get(0).mails.size();
+      Item next;
+      while (size < MAX_BATCH && (next = partition.queue.poll()) != null) {
+        batch.add(next);
+        size += next.mails.size();
+      }
+      deliver(partition, batch);
+      batch.clear();
+    }
+  }
+
+  private void deliver(Partition partition, List<Item> batch) {
+    List<MailDeliveryService.Delivery> deliveries = new ArrayList<>(batch.size());
+    List<Item> loaded = new ArrayList<>(batch.size());
+    for (Item item : batch) {
+      try {
+        // 附件在这里解码落盘，正文只保留文本部分；重放时附件文件按相同的名称覆盖
+        MimeDecomposer.Result message = item.message.decompose(attachmentDir);
+        attachTo(item.mails, message.attachments());
+        deliveries.add(new MailDeliveryService.Delivery(message.body(), item.mails, item.message.store(fileStore)));
+        loaded.add(item);
+      } catch (IOException e) {
+        log.error("读取暂存邮件失败: {} - {}", item.message.file, e.getMessage());
+        failed(partition, item);
+      }
+    }
+    if (loaded.isEmpty()) {
+      return;
+    }
+
+    try {
+      deliveryService.deliverBatch(deliveries);
+      batches.incrementAndGet();
+      lastLagMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - loaded.get(0).enqueuedNanos);
+      for (Item item : loaded) {
+        complete(item, true);
+      }
+    } catch (RuntimeException e) {
+      if (loaded.size() == 1) {
+        log.error("投递邮件失败: {} - {}", loaded.get(0).message.file, e.getMessage());
+        failed(partition, loaded.get(0));
+        return;
+      }
+      // 整批失败时逐封重试，避免一封问题邮件拖累同批的其他邮件
+      log.warn("批量投递失败，改为逐封投递: {}", e.getMessage());
+      for (int i = 0; i < loaded.size(); i++) {
+        Item item = loaded.get(i);
+        try {
+          deliveryService.deliverBatch(List.of(deliveries.get(i)));
+          complete(item, true);
+        } catch (RuntimeException single) {
+          log.error("投递邮件失败: {} - {}", item.message.file, single.getMessage());
+          failed(partition, item);
+        }
+      }
+    }
+  }
+
+  /**
+   * 投递失败：未达到重试上限时按指数退避放回原分区，否则放弃并保留暂存文件等待下次启动时重新投递
+   */
+  private void failed(Partition partition, Item item) {
+    if (item.attempts >= maxAttempts) {
+      log.error("投递邮件失败，已达重试上限，暂存文件保留: {}", item.message.file);
+      complete(item, false);
+      return;
+    }
+    long delay = backoff(item.attempts);
+    retriedMails.addAndGet(item.mails.size());
+    log.warn("{} 毫秒后第 {} 次投递: {}", delay, item.attempts + 1, item.message.file);
+    Item retry = new Item(item.message, item.mails, item.positions, item.enqueuedNanos, item.attempts + 1);
+    try {
+      retryTimer.schedule(() -> partition.queue.add(retry), delay, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      // 正在关闭，暂存文件保留到下次启动
+      complete(item, false);
+    }
+  }
+
+  private long backoff(int attempts) {
+    long delay = retryBaseMillis << Math.min(attempts - 1, 30);
+    return Math.min(delay < 0 ? Long.MAX_VALUE : delay, MAX_BACKOFF.toMillis());
+  }
+
+  /**
+   * 为每个收件人的邮件记录创建附件记录，同一封邮件的收件人共用附件文件
+   */
+  private void attachTo(List<Mail> mails, List<MimeDecomposer.StoredPart> parts) {
+    if (parts.isEmpty()) {
+      return;
+    }
+    LocalDateTime now = LocalDateTime.now();
+    for (Mail mail : mails) {
+      Set<Attachment> attachments = new HashSet<>();
+      for (MimeDecomposer.StoredPart part : parts) {
+        Attachment attachment = new Attachment();
+        attachment.setFilename(truncate(part.filename(), MAX_FILENAME_LENGTH));
+        attachment.setFileType(truncate(part.contentType(), MAX_FILE_TYPE_LENGTH));
+        attachment.setFileSize(part.size());
+        attachment.setFilePath(part.path().toString());
+        attachment.setUploadedAt(now);
+        attachment.setMail(mail);
+        attachments.add(attachment);
+      }
+      mail.setAttachments(attachments);
+    }
+  }
+
+  private static String truncate(String value, int max) {
+    return value.length() > max ? value.substring(0, max) : value;
+  }
+
+  private void complete(Item item, boolean success) {
+    depth.addAndGet(-item.mails.size());
+    (success ? deliveredMails : failedMails).addAndGet(item.mails.size());
+    QueuedMessage message = item.message;
+    if (!success) {
+      message.failed = true;
+    }
+    DeliveryJournal current = message.journalId >= 0 ? journal : null;
+    boolean last = message.remainingParts.decrementAndGet() == 0;
+    if (last && !message.failed) {
+      // 提交记录落盘后再删除暂存文件
+      if (current != null) {
+        current.commit(message.journalId, () -> deleteQuietly(message.file));
+      } else {
+        deleteQuietly(message.file);
+      }
+    } else if (success && current != null) {
+      // 其他分区尚未完成或已经失败：记下这部分收件人，下次启动时只重新投递失败的部分
+      current.delivered(message.journalId, item.positions);
+    }
+  }
+
+  private void deleteQuietly(Path file) {
+    try {
+      Files.deleteIfExists(file);
+    } catch (IOException e) {
+      log.warn("删除暂存文件失败: {} - {}", file, e.getMessage());
+    }
+  }
+
+  private final class Partition {
+    private final BlockingQueue<Item> queue = new LinkedBlockingQueue<>();
+    private final Thread thread;
+
+    Partition(int index) {
+      this.thread = new Thread(() -> drain(this), "mail-delivery-" + index);
+      this.thread.setDaemon(true);
+    }
+  }
+
+  /**
+   * 一封邮件在投递队列中的状态，各分区的部分全部完成后删除暂存文件
+   */
+  private static final class QueuedMessage {
+    private final Path file;
+    private final long journalId;
+    private final AtomicInteger remainingParts = new AtomicInteger();
+    private volatile boolean failed;
+    private MimeDecomposer.Result decomposed;
+    private MessageFileStore.Stored stored;
+    private boolean storeAttempted;
+
+    QueuedMessage(Path file, long journalId) {
+      this.file = file;
+      this.journalId = journalId;
+    }
+
+    /**
+     * 收件人分布在多个分区时，只由第一个处理到的分区拆分一次，其余分区复用结果
+     */
+    synchronized MimeDecomposer.Result decompose(Path attachmentDir) throws IOException {
+      if (decomposed == null) {
+        decomposed = MimeDecomposer.decompose(file, attachmentDir);
+      }
+      return decomposed;
+    }
+
+    /**
+     * 保存一份原文供POP3直接发送，同样只保存一次；保存失败时POP3改为由数据库字段生成邮件，不影响投递
+     */
+    synchronized MessageFileStore.Stored store(MessageFileStore fileStore) {
+      if (!storeAttempted) {
+        storeAttempted = true;
+        try {
+          stored = fileStore.storeSpooled(file);
+        } catch (IOException e) {
+          log.warn("保存邮件原文失败: {} - {}", file, e.getMessage());
+        }
+      }
+      return stored;
+    }
+  }
+
+  /**
+   * 一封邮件属于某个分区的部分
+   * @param positions 各收件人在投递日志接收记录中的序号
+   * @param attempts 本次是第几次投递
+   */
+  private record Item(QueuedMessage message, List<Mail> mails, int[] positions, long enqueuedNanos, int attempts) {
+  }
+}
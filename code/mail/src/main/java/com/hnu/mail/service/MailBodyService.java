@@ -0,0 +1,121 @@
+package com.hnu.mail.service;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import com.hnu.mail.model.MailBody;
+import com.hnu.mail.repository.MailBodyRepository;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 邮件正文的单实例存储：相同内容只保存一份，按引用计数回收
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class MailBodyService {
+
+  private final MailBodyRepository mailBodyRepository;
+
+  /**
+   * 保存正文并增加引用计数
+   * @param content 正文内容
+   * @param references 本次新增的引用数（即将写入的邮件记录数）
+   * @return 正文实体引用，可直接关联到邮件
+   */
+  @Transactional
+  public MailBody store(String content, int references) {
+    String text = content != null ? content : "";
+    String hash = hash(text);
+
+    // 查到ID后正文可能被并发释放并删除，此时更新不到任何行，改走下面的插入
+    Optional<Long> existingId = mailBodyRepository.findIdByHash(hash);
+    if (existingId.isPresent() && mailBodyRepository.adjustRefCount(existingId.get(), references) > 0) {
+      return mailBodyRepository.getReferenceById(existingId.get());
+    }
+
+    // 唯一键冲突说明并发写入了相同正文，此时只累加引用计数
+    mailBodyRepository.upsert(hash, text, text.getBytes(StandardCharsets.UTF_8).length, references);
+    Long id = mailBodyRepository.findIdByHash(hash)
+        .orElseThrow(() -> new IllegalStateException("邮件正文写入失败: " + hash));
+    return mailBodyRepository.getReferenceById(id);
+  }
+
+  /**
+   * 邮件记录被物理删除后释放对正文的引用，引用归零的正文随之删除
+   */
+  @Transactional(propagation = Propagation.MANDATORY)
+  public void release(Collection<MailBody> bodies) {
+    releaseIds(bodies.stream()
+        .filter(body -> body != null && body.getId() != null)
+        .map(MailBody::getId)
+        .toList());
+  }
+
+  /**
+   * 按正文ID释放引用，同一ID出现几次就释放几个引用
+   */
+  @Transactional(propagation = Propagation.MANDATORY)
+  public void releaseIds(Collection<Long> bodyIds) {
+    Map<Long, Long> counts = bodyIds.stream()
+        .collect(Collectors.groupingBy(id -> id, Collectors.counting()));
+    if (counts.isEmpty()) {
+      return;
+    }
+    counts.forEach((id, count) -> mailBodyRepository.adjustRefCount(id, -count.intValue()));
+    int deleted = mailBodyRepository.deleteUnreferenced(counts.keySet());
+    if (deleted > 0) {
+      log.info("已回收无引用的邮件正文 {} 条", deleted);
+    }
+  }
+
+  /**
+   * 用户及其邮件被级联删除之前释放这些邮件对正文的引用
+   */
+  @Transactional(propagation = Propagation.MANDATORY)
+  public void releaseByUser(Long userId) {
+    mailBodyRepository.releaseByUser(userId);
+  }
+
+  /**
+   * 删除引用已归零且不再被任何邮件指向的正文
+   */
+  @Transactional(propagation = Propagation.MANDATORY)
+  public void purgeUnreferenced() {
+    int deleted = mailBodyRepository.purgeUnreferenced();
+    if (deleted > 0) {
+      log.info("已回收无引用的邮件正文 {} 条", deleted);
+    }
+  }
+
+  /**
+   * 批量读取正文内容，供不在事务中的协议会话按需加载
+   * @return 正文ID到内容的映射，不存在的正文不在其中
+   */
+  @Transactional(readOnly = true)
+  public Map<Long, String> loadContents(Collection<Long> bodyIds) {
+    return mailBodyRepository.findAllById(bodyIds).stream()
+        .collect(Collectors.toMap(MailBody::getId, body -> body.getContent() != null ? body.getContent() : ""));
+  }
+
+  private static String hash(String content) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      return HexFormat.of().formatHex(digest.digest(content.getBytes(StandardCharsets.UTF_8)));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256不可用", e);
+    }
+  }
+}
@@ -0,0 +1,102 @@
+package com.hnu.mail.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import com.hnu.mail.model.Mail;
+import com.hnu.mail.model.MailBody;
+import com.hnu.mail.repository.MailRepository;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 协议服务器的邮件投递服务：把同一封邮件的所有收件人记录在一个事务中批量写入，
+ * 并负责POP3删除邮件时的正文回收
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class MailDeliveryService {
+
+  private final MailRepository mailRepository;
+  private final MailBodyService mailBodyService;
+  private final MailboxStatsService statsService;
+  private final MessageFileStore fileStore;
+
+  /**
+   * 在一个事务内投递一批邮件（组提交）：每封邮件的所有收件人共用同一份正文，
+   * 整批收件人记录一次批量写入
+   */
+  @Transactional
+  public void deliverBatch(List<Delivery> deliveries) {
+    List<Mail> mails = new ArrayList<>();
+    for (Delivery delivery : deliveries) {
+      if (delivery.mails().isEmpty()) {
+        continue;
+      }
+      MailBody body = mailBodyService.store(delivery.content(), delivery.mails().size());
+      for (Mail mail : delivery.mails()) {
+        mail.setBody(body);
+        if (delivery.raw() != null) {
+          mail.setRawFile(delivery.raw().name());
+          mail.setOctets(delivery.raw().size());
+        } else {
+          mail.setOctets(Pop3Message.octets(mail, delivery.content()));
+        }
+      }
+      mails.addAll(delivery.mails());
+    }
+    if (mails.isEmpty()) {
+      return;
+    }
+    mailRepository.batchInsert(mails);
+    statsService.added(mails);
+    log.info("已投递邮件 {} 封，共 {} 条收件人记录", deliveries.size(), mails.size());
+  }
+
+  /**
+   * 一封待投递的邮件：正文、发往各收件人的邮件记录和已保存的原文（保存失败时为null）
+   */
+  public record Delivery(String content, List<Mail> mails, MessageFileStore.Stored raw) {
+  }
+
+  /**
+   * 物理删除邮件并释放正文引用（POP3更新状态）。
+   * 正文引用在同一事务中按ID查询，已被其他会话删除的邮件不会重复释放引用
+   */
+  @Transactional
+  public void expunge(Collection<Long> mailIds) {
+    if (mailIds.isEmpty()) {
+      return;
+    }
+    List<Long> bodyIds = mailRepository.findBodyIds(mailIds);
+    List<String> rawFiles = mailRepository.findRawFiles(mailIds);
+    List<MailRepository.MaildropTotals> totals = mailRepository.sumMaildropByIds(mailIds);
+    mailRepository.deleteAllByIdInBatch(mailIds);
+    mailBodyService.releaseIds(bodyIds);
+    for (MailRepository.MaildropTotals total : totals) {
+      statsService.removed(total.getUserId(), total.getMessages(), total.getOctets(), mailIds);
+    }
+    releaseRawFiles(rawFiles);
+  }
+
+  /**
+   * 邮件被物理删除后回收不再被任何邮件引用的原文文件，文件在事务提交后删除
+   */
+  @Transactional
+  public void releaseRawFiles(Collection<String> rawFiles) {
+    if (rawFiles.isEmpty()) {
+      return;
+    }
+    Set<String> unreferenced = new HashSet<>(rawFiles);
+    unreferenced.removeAll(mailRepository.findReferencedRawFiles(rawFiles));
+    fileStore.deleteAfterCommit(unreferenced);
+  }
+}
@@ -15,8 +15,6 @@ import java.util.UUID;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
-import org.springframework.mail.javamail.JavaMailSender;
-import org.springframework.mail.javamail.MimeMessageHelper;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.web.multipart.MultipartFile;
@@ -26,12 +24,14 @@ import com.hnu.mail.dto.SendMailRequest;
 import com.hnu.mail.model.Attachment;
 import com.hnu.mail.model.FilterResult;
 import com.hnu.mail.model.Mail;
+import com.hnu.mail.model.MailBody;
+import com.hnu.mail.model.OutboundMail;
+import com.hnu.mail.model.SystemConfig;
 import com.hnu.mail.model.SystemLog;
 import com.hnu.mail.model.User;
 import com.hnu.mail.repository.MailRepository;
 import com.hnu.mail.repository.UserRepository;
 
-import jakarta.mail.internet.MimeMessage;
 import lombok.RequiredArgsConstructor;
 
 @Service
@@ -40,9 +40,13 @@ public class MailService {
 
   private final MailRepository mailRepository;
   private final UserRepository userRepository;
-  private final JavaMailSender mailSender;
+  private final OutboundMailQueue outboundQueue;
   private final FilterService filterService;
   private final LogService logService;
+  private final MailBodyService mailBodyService;
+  private final SystemConfigService configService;
+  private final MailboxStatsService statsService;
+  private final MessageFileStore fileStore;
 
   @Value("${app.mail.storage.local-path}")
   private String uploadPath;
@@ -50,14 +54,24 @@ public class MailService {
   @Transactional
   public Mail sendMail(SendMailRequest request, Long senderId,
                        List<MultipartFile> attachments) throws Exception {
+    return sendMail(request, senderId, attachments, OutboundMail.Lane.INTERACTIVE);
+  }
+
+  /**
+   * 发送邮件。本地收件人只在数据库中投递，其他收件人只写入发件箱由外部中继发送
+   * @param lane 外发通道，群发使用BULK，避免占满发件箱的全部发送线程
+   */
+  @Transactional
+  public Mail sendMail(SendMailRequest request, Long senderId,
+                       List<MultipartFile> attachments, OutboundMail.Lane lane) throws Exception {
     User sender = userRepository.findById(senderId)
         .orElseThrow(() -> new RuntimeException("发件人不存在"));
 
-    User receiver = userRepository.findByEmail(request.getTo())
-        .orElseThrow(() -> new RuntimeException("收件人不存在"));
-
-    // 检查邮箱容量
-    checkMailboxCapacity(receiver, request, attachments);
+    User receiver = resolveLocalReceiver(request.getTo());
+    if (receiver != null) {
+      // 检查邮箱容量
+      checkMailboxCapacity(receiver, request, attachments);
+    }
 
     // 邮件过滤
     FilterResult filterResult = filterService.applyFilters(request, sender);
@@ -93,71 +107,99 @@ public class MailService {
       mailRepository.save(draftMail);
     }
 
-    // 创建收件人邮件记录
-    Mail receiverMail = new Mail();
-    receiverMail.setSubject(request.getSubject());
-    receiverMail.setContent(request.getContent());
-    receiverMail.setSender(sender);
-    receiverMail.setReceiver(receiver);
-    receiverMail.setSenderEmail(sender.getEmail());
-    receiverMail.setReceiverEmail(receiver.getEmail());
-    
-    // 根据过滤结果设置收件人邮件状态
-    String filterMessage = filterResult.getMessage();
-    if ("move_to_spam".equals(filterMessage)) {
-      receiverMail.setFolder(Mail.MailFolder.SPAM);
-    } else {
-      receiverMail.setFolder(Mail.MailFolder.INBOX);
-    }
-    
-    if ("mark_as_read".equals(filterMessage)) {
-      receiverMail.setIsRead(true);
+    // 收件人副本和发件箱副本共用同一份正文；外部收件人只有发件箱副本引用正文
+    MailBody body = mailBodyService.store(request.getContent(), receiver != null ? 2 : 1);
+
+    // 创建收件人邮件记录，外部收件人没有本地副本
+    Mail receiverMail = null;
+    if (receiver != null) {
+      receiverMail = new Mail();
+      receiverMail.setSubject(request.getSubject());
+      receiverMail.setBody(body);
+      receiverMail.setSender(sender);
+      receiverMail.setReceiver(receiver);
+      receiverMail.setSenderEmail(sender.getEmail());
+      receiverMail.setReceiverEmail(receiver.getEmail());
+
+      // 根据过滤结果设置收件人邮件状态
+      String filterMessage = filterResult.getMessage();
+      if ("move_to_spam".equals(filterMessage)) {
+        receiverMail.setFolder(Mail.MailFolder.SPAM);
+      } else {
+        receiverMail.setFolder(Mail.MailFolder.INBOX);
+      }
+
+      if ("mark_as_read".equals(filterMessage)) {
+        receiverMail.setIsRead(true);
+      }
+
+      receiverMail.setSentAt(LocalDateTime.now());
+      receiverMail.setSize(calculateMailSize(request, attachments));
+      receiverMail.setOctets(Pop3Message.octets(receiverMail, request.getContent()));
     }
-    
-    receiverMail.setSentAt(LocalDateTime.now());
-    receiverMail.setSize(calculateMailSize(request, attachments));
 
     // 创建发件人邮件记录
     Mail senderMail = new Mail();
     senderMail.setSubject(request.getSubject());
-    senderMail.setContent(request.getContent());
+    senderMail.setBody(body);
     senderMail.setSender(sender);
     senderMail.setReceiver(receiver);
     senderMail.setSenderEmail(sender.getEmail());
-    senderMail.setReceiverEmail(receiver.getEmail());
+    senderMail.setReceiverEmail(receiver != null ? receiver.getEmail() : request.getTo());
     senderMail.setFolder(Mail.MailFolder.SENT);
     senderMail.setIsRead(false); // 发件人发送后不自动标记为已读
     senderMail.setSentAt(LocalDateTime.now());
     senderMail.setSize(calculateMailSize(request, attachments));
+    senderMail.setOctets(Pop3Message.octets(senderMail, request.getContent()));
+
+    // 本地收件人的邮件保存一份原文，POP3收取时直接从文件发送；两份副本共用同一文件
+    if (receiverMail != null) {
+      MessageFileStore.Stored raw = fileStore.storeLines(Pop3Message.lines(sender.getEmail(), receiver.getEmail(),
+          request.getSubject(), receiverMail.getSentAt(), request.getContent()));
+      fileStore.discardOnRollback(raw);
+      for (Mail mail : List.of(receiverMail, senderMail)) {
+        mail.setRawFile(raw.name());
+        mail.setOctets(raw.size());
+      }
+    }
 
-    // 处理附件
+    // 处理附件，附件记录关联到收件人邮件，外部收件人时关联到发件人邮件
     Set<Attachment> attachmentSet = null;
     if (attachments != null && !attachments.isEmpty()) {
+      Mail owner = receiverMail != null ? receiverMail : senderMail;
       attachmentSet = new HashSet<>();
       for (MultipartFile file : attachments) {
         if (!file.isEmpty()) {
-          // 先保存收件人邮件，以便附件关联
-          Mail savedReceiverMail = mailRepository.save(receiverMail);
-          Attachment attachment = saveAttachment(file, savedReceiverMail);
+          // 先保存邮件，以便附件关联
+          Mail savedOwner = mailRepository.save(owner);
+          Attachment attachment = saveAttachment(file, savedOwner);
           attachmentSet.add(attachment);
         }
       }
-      receiverMail.setAttachments(attachmentSet);
+      if (receiverMail != null) {
+        receiverMail.setAttachments(attachmentSet);
+      }
       senderMail.setAttachments(attachmentSet);
     }
 
     // 保存邮件记录
-    Mail savedReceiverMail = mailRepository.save(receiverMail);
+    if (receiverMail != null) {
+      mailRepository.save(receiverMail);
+      statsService.added(List.of(receiverMail));
+    }
     Mail savedSenderMail = mailRepository.save(senderMail);
 
     // 使用发件人邮件记录作为返回值
     Mail savedMail = savedSenderMail;
 
-    // 发送实际邮件（异步）
-    sendEmailAsync(request, attachments);
-
-    // 更新用户已使用空间
-    updateUserMailboxSize(receiver, savedMail.getSize());
+    if (receiver != null) {
+      // 更新用户已使用空间
+      updateUserMailboxSize(receiver, savedMail.getSize());
+    } else {
+      // 写入发件箱，事务提交后由发件箱的发送线程发出，失败时自动重试
+      outboundQueue.enqueue(lane, smtpUsername, request.getTo(), request.getSubject(),
+          request.getContent(), attachmentSet);
+    }
     
     // 记录邮件发送成功日志
     logService.createLog(
@@ -198,13 +240,13 @@ public class MailService {
     Mail mail = mailRepository.findById(mailId)
         .orElseThrow(() -> new RuntimeException("邮件不存在"));
 
-    if (!mail.getReceiver().getId().equals(userId) &&
+    if (!isReceiver(mail, userId) &&
         !mail.getSender().getId().equals(userId)) {
       throw new RuntimeException("无权访问此邮件");
     }
 
     // 只有收件人可以将邮件标记为已读
-    if (mail.getReceiver().getId().equals(userId) && !mail.getIsRead()) {
+    if (isReceiver(mail, userId) && !mail.getIsRead()) {
       mail.setIsRead(true);
       mailRepository.save(mail);
     }
@@ -217,16 +259,18 @@ public class MailService {
     Mail mail = mailRepository.findById(mailId)
         .orElseThrow(() -> new RuntimeException("邮件不存在"));
 
-    if (!mail.getReceiver().getId().equals(userId) &&
+    if (!isReceiver(mail, userId) &&
         !mail.getSender().getId().equals(userId)) {
       throw new RuntimeException("无权删除此邮件");
     }
 
     // 如果邮件已经删除，则不需要再次保存
     if (!mail.getIsDeleted()) {
+      boolean wasInMaildrop = MailboxStatsService.inMaildrop(mail);
       mail.setIsDeleted(true);
       mail.setFolder(Mail.MailFolder.TRASH);
       mailRepository.save(mail);
+      statsService.changed(mail, wasInMaildrop);
     }
   }
 
@@ -235,46 +279,31 @@ public class MailService {
     Mail mail = mailRepository.findById(mailId)
         .orElseThrow(() -> new RuntimeException("邮件不存在"));
 
-    if (!mail.getReceiver().getId().equals(userId)) {
+    if (!isReceiver(mail, userId)) {
       throw new RuntimeException("无权操作此邮件");
     }
 
+    boolean wasInMaildrop = MailboxStatsService.inMaildrop(mail);
     mail.setFolder(Mail.MailFolder.valueOf(folder.toUpperCase()));
     mailRepository.save(mail);
+    statsService.changed(mail, wasInMaildrop);
   }
 
   @Value("${spring.mail.username}")
   private String smtpUsername;
 
-  private void sendEmailAsync(SendMailRequest request,
-                              List<MultipartFile> attachments) {
-    new Thread(() -> {
-      try {
-        MimeMessage message = mailSender.createMimeMessage();
-      MimeMessageHelper helper = new MimeMessageHelper(message, true, "UTF-8");
-
-        helper.setFrom(smtpUsername);
-        helper.setTo(request.getTo());
-        helper.setSubject(request.getSubject());
-        helper.setText(request.getContent(), true);
-
-        if (attachments != null) {
-          for (MultipartFile file : attachments) {
-            if (!file.isEmpty()) {
-              helper.addAttachment(
-                  file.getOriginalFilename(),
-                  file.getResource(),
-                  file.getContentType()
-              );
-            }
-          }
-        }
-
-        mailSender.send(message);
-      } catch (Exception e) {
-        e.printStackTrace();
-      }
-    }).start();
+  /**
+   * 查找本地收件人：域名是本系统邮件域名（SystemConfig.MAIL_DOMAIN）时收件人必须存在；
+   * 其他域名的地址如果是本地用户注册的邮箱同样在本地投递，否则返回null表示外部收件人
+   */
+  private User resolveLocalReceiver(String address) {
+    String domain = configService.getConfigValue(SystemConfig.MAIL_DOMAIN, "test.com");
+    int at = address != null ? address.lastIndexOf('@') : -1;
+    if (at >= 0 && address.substring(at + 1).equalsIgnoreCase(domain)) {
+      return userRepository.findByEmail(address)
+          .orElseThrow(() -> new RuntimeException("收件人不存在"));
+    }
+    return userRepository.findByEmail(address).orElse(null);
   }
 
   private Attachment saveAttachment(MultipartFile file, Mail mail) throws IOException {
@@ -336,7 +365,7 @@ public class MailService {
     // 创建草稿邮件
     Mail draftMail = new Mail();
     draftMail.setSubject(request.getSubject());
-    draftMail.setContent(request.getContent());
+    draftMail.setBody(mailBodyService.store(request.getContent(), 1));
     draftMail.setSender(sender);
     draftMail.setSenderEmail(sender.getEmail());
     draftMail.setFolder(Mail.MailFolder.DRAFT);
@@ -385,6 +414,13 @@ public class MailService {
     return savedDraft;
   }
 
+  /**
+   * 发往外部地址的邮件没有本地收件人
+   */
+  private static boolean isReceiver(Mail mail, Long userId) {
+    return mail.getReceiver() != null && mail.getReceiver().getId().equals(userId);
+  }
+
   private MailDto mapToDto(Mail mail) {
     MailDto dto = new MailDto();
     dto.setId(mail.getId());
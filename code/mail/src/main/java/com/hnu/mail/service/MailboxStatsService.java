@@ -0,0 +1,94 @@
+package com.hnu.mail.service;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import com.hnu.mail.model.Mail;
+import com.hnu.mail.model.MailboxStats;
+import com.hnu.mail.repository.MailboxStatsRepository;
+
+import lombok.RequiredArgsConstructor;
+
+/**
+ * 维护每个用户POP3邮箱的邮件数和总字节数计数器。
+ * 所有改变收件箱内容的操作都在各自的事务中调用这里，POP3 STAT不再扫描邮件表；
+ * 同时在事务提交后更新POP3会话共享的邮箱清单缓存
+ */
+@Service
+@RequiredArgsConstructor
+public class MailboxStatsService {
+
+  private final MailboxStatsRepository statsRepository;
+  private final MaildropCache maildropCache;
+
+  /**
+   * 邮件是否属于POP3邮箱：收件人收件箱中未删除的邮件
+   */
+  public static boolean inMaildrop(Mail mail) {
+    return mail.getReceiver() != null && mail.getFolder() == Mail.MailFolder.INBOX
+        && !Boolean.TRUE.equals(mail.getIsDeleted());
+  }
+
+  /**
+   * 新投递的邮件计入收件人的计数器。
+   * 每个用户只更新一次，并按用户ID顺序更新，避免并发投递以不同顺序锁定计数行而死锁
+   */
+  @Transactional(propagation = Propagation.MANDATORY)
+  public void added(Collection<Mail> mails) {
+    Map<Long, long[]> totals = new TreeMap<>();
+    List<Mail> maildrop = mails.stream().filter(MailboxStatsService::inMaildrop).toList();
+    for (Mail mail : maildrop) {
+      long[] total = totals.computeIfAbsent(mail.getReceiver().getId(), id -> new long[2]);
+      total[0]++;
+      total[1] += octets(mail);
+    }
+    totals.forEach((userId, total) -> statsRepository.adjust(userId, total[0], total[1]));
+    maildropCache.added(maildrop);
+  }
+
+  /**
+   * 邮件的文件夹或删除标记改变后调整计数器
+   * @param wasInMaildrop 修改之前邮件是否属于POP3邮箱
+   */
+  @Transactional(propagation = Propagation.MANDATORY)
+  public void changed(Mail mail, boolean wasInMaildrop) {
+    boolean nowInMaildrop = inMaildrop(mail);
+    if (nowInMaildrop != wasInMaildrop) {
+      int sign = nowInMaildrop ? 1 : -1;
+      statsRepository.adjust(mail.getReceiver().getId(), sign, sign * octets(mail));
+      if (nowInMaildrop) {
+        maildropCache.added(List.of(mail));
+      } else {
+        maildropCache.removed(mail.getReceiver().getId(), List.of(mail.getId()), 1);
+      }
+    }
+  }
+
+  /**
+   * 从用户的POP3邮箱中移除若干邮件
+   * @param mailIds 被删除的邮件，可以包含不属于该用户收件箱的邮件
+   */
+  @Transactional(propagation = Propagation.MANDATORY)
+  public void removed(Long userId, long messages, long octets, Collection<Long> mailIds) {
+    statsRepository.adjust(userId, -messages, -octets);
+    maildropCache.removed(userId, mailIds, messages);
+  }
+
+  /**
+   * 读取计数器，从未收到过邮件的用户返回全0
+   */
+  @Transactional(readOnly = true)
+  public MailboxStats find(Long userId) {
+    return statsRepository.findById(userId).orElseGet(() -> new MailboxStats(userId, 0L, 0L));
+  }
+
+  private static long octets(Mail mail) {
+    return mail.getOctets() != null ? mail.getOctets() : 0;
+  }
+}
@@ -0,0 +1,243 @@
+package com.hnu.mail.service;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Supplier;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.hnu.mail.model.Mail;
+import com.hnu.mail.repository.MailRepository;
+
+/**
+ * POP3邮箱清单缓存，所有POP3会话共享：每个用户收件箱中邮件的ID（同时是UIDL）、正文ID和大小，以及版本号。
+ * 清单不可变，会话直接引用其中的数组；邮箱内容变化时在事务提交后生成新清单并递增版本号，
+ * 无法确认增量正确时（例如两个事务的提交回调乱序）直接丢弃清单，下次需要时重新加载。
+ * 缓存的邮件总条数有上限，超过时淘汰最久未使用的清单
+ */
+@Service
+public class MaildropCache {
+
+  private final long maxEntries;
+  // 按访问顺序排列，迭代顺序即淘汰顺序
+  private final LinkedHashMap<Long, Manifest> manifests = new LinkedHashMap<>(16, 0.75f, true);
+  // 每个邮箱的变更次数，清单被淘汰后仍保留，用于识别加载期间提交的变更；条目数不超过用户数
+  private final Map<Long, Long> versions = new HashMap<>();
+  private long cachedEntries;
+
+  public MaildropCache(@Value("${app.server.pop3-manifest-cache-entries:200000}") long maxEntries) {
+    this.maxEntries = maxEntries;
+  }
+
+  /**
+   * 缓存中的清单，没有时返回null
+   */
+  public synchronized Manifest peek(Long userId) {
+    return manifests.get(userId);
+  }
+
+  /**
+   * 返回缓存中的清单，没有时加载并放入缓存。
+   * 加载期间邮箱有变更提交时，加载结果可能已经过时，只返回给调用方而不缓存
+   */
+  public Manifest get(Long userId, Supplier<List<MailRepository.MaildropEntry>> loader) {
+    long version;
+    synchronized (this) {
+      Manifest cached = manifests.get(userId);
+      if (cached != null) {
+        return cached;
+      }
+      version = versions.getOrDefault(userId, 0L);
+    }
+    Manifest loaded = Manifest.of(version, loader.get());
+    synchronized (this) {
+      if (versions.getOrDefault(userId, 0L) == version && !manifests.containsKey(userId)) {
+        put(userId, loaded);
+      }
+    }
+    return loaded;
+  }
+
+  /**
+   * 新邮件进入收件箱，事务提交后追加到清单
+   */
+  public void added(Collection<Mail> mails) {
+    if (mails.isEmpty()) {
+      return;
+    }
+    Map<Long, TreeMap<Long, long[]>> byUser = new HashMap<>();
+    Set<Long> unknown = new HashSet<>();
+    for (Mail mail : mails) {
+      Long userId = mail.getReceiver().getId();
+      if (mail.getId() == null) {
+        unknown.add(userId);
+        continue;
+      }
+      long bodyId = mail.getBody() != null && mail.getBody().getId() != null ? mail.getBody().getId() : 0;
+      long size = mail.getOctets() != null ? mail.getOctets() : 0;
+      byUser.computeIfAbsent(userId, id -> new TreeMap<>()).put(mail.getId(), new long[] {bodyId, size});
+    }
+    afterCommit(() -> {
+      unknown.forEach(this::drop);
+      byUser.forEach(this::append);
+    });
+  }
+
+  /**
+   * 邮件离开收件箱（删除或移到其他文件夹），事务提交后从清单中移除
+   * @param expected 这些邮件中属于该用户收件箱的数量，与清单中实际移除的数量不一致时丢弃清单
+   */
+  public void removed(Long userId, Collection<Long> mailIds, long expected) {
+    Set<Long> ids = new HashSet<>(mailIds);
+    afterCommit(() -> remove(userId, ids, expected));
+  }
+
+  /**
+   * 事务提交后丢弃用户的清单
+   */
+  public void invalidate(Long userId) {
+    afterCommit(() -> drop(userId));
+  }
+
+  private void afterCommit(Runnable action) {
+    if (TransactionSynchronizationManager.isSynchronizationActive()) {
+      TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+        @Override
+        public void afterCommit() {
+          action.run();
+        }
+      });
+    } else {
+      action.run();
+    }
+  }
+
+  private synchronized void append(Long userId, TreeMap<Long, long[]> entries) {
+    long version = bump(userId);
+    Manifest current = manifests.get(userId);
+    if (current == null) {
+      return;
+    }
+    // 只有新邮件的ID都大于清单中已有的ID时追加才能保持ID顺序，否则说明有更早的提交尚未应用
+    if (entries.firstKey() <= current.lastId()) {
+      evict(userId);
+      return;
+    }
+    put(userId, current.append(version, entries));
+  }
+
+  private synchronized void remove(Long userId, Set<Long> mailIds, long expected) {
+    long version = bump(userId);
+    Manifest current = manifests.get(userId);
+    if (current == null) {
+      return;
+    }
+    Manifest next = current.without(version, mailIds);
+    if (current.size() - next.size() != expected) {
+      evict(userId);
+      return;
+    }
+    put(userId, next);
+  }
+
+  private synchronized void drop(Long userId) {
+    bump(userId);
+    evict(userId);
+  }
+
+  private long bump(Long userId) {
+    return versions.merge(userId, 1L, Long::sum);
+  }
+
+  private void put(Long userId, Manifest manifest) {
+    evict(userId);
+    if (manifest.size() > maxEntries) {
+      return;
+    }
+    manifests.put(userId, manifest);
+    cachedEntries += manifest.size();
+    Iterator<Map.Entry<Long, Manifest>> eldest = manifests.entrySet().iterator();
+    while (cachedEntries > maxEntries && eldest.hasNext()) {
+      Manifest evicted = eldest.next().getValue();
+      eldest.remove();
+      cachedEntries -= evicted.size();
+    }
+  }
+
+  private void evict(Long userId) {
+    Manifest removed = manifests.remove(userId);
+    if (removed != null) {
+      cachedEntries -= removed.size();
+    }
+  }
+
+  /**
+   * 一个邮箱的清单，按邮件ID排序；数组创建后不再修改
+   */
+  public record Manifest(long version, long[] ids, long[] bodyIds, long[] sizes) {
+
+    static Manifest of(long version, List<MailRepository.MaildropEntry> entries) {
+      int count = entries.size();
+      long[] ids = new long[count];
+      long[] bodyIds = new long[count];
+      long[] sizes = new long[count];
+      for (int i = 0; i < count; i++) {
+        MailRepository.MaildropEntry entry = entries.get(i);
+        ids[i] = entry.getId();
+        bodyIds[i] = entry.getBodyId() != null ? entry.getBodyId() : 0;
+        sizes[i] = entry.getSize() != null ? entry.getSize() : 0;
+      }
+      return new Manifest(version, ids, bodyIds, sizes);
+    }
+
+    public int size() {
+      return ids.length;
+    }
+
+    long lastId() {
+      return ids.length > 0 ? ids[ids.length - 1] : 0;
+    }
+
+    Manifest append(long version, TreeMap<Long, long[]> entries) {
+      int count = ids.length;
+      long[] newIds = Arrays.copyOf(ids, count + entries.size());
+      long[] newBodyIds = Arrays.copyOf(bodyIds, newIds.length);
+      long[] newSizes = Arrays.copyOf(sizes, newIds.length);
+      for (Map.Entry<Long, long[]> entry : entries.entrySet()) {
+        newIds[count] = entry.getKey();
+        newBodyIds[count] = entry.getValue()[0];
+        newSizes[count] = entry.getValue()[1];
+        count++;
+      }
+      return new Manifest(version, newIds, newBodyIds, newSizes);
+    }
+
+    Manifest without(long version, Set<Long> mailIds) {
+      long[] newIds = new long[ids.length];
+      long[] newBodyIds = new long[ids.length];
+      long[] newSizes = new long[ids.length];
+      int count = 0;
+      for (int i = 0; i < ids.length; i++) {
+        if (!mailIds.contains(ids[i])) {
+          newIds[count] = ids[i];
+          newBodyIds[count] = bodyIds[i];
+          newSizes[count] = sizes[i];
+          count++;
+        }
+      }
+      return new Manifest(version, Arrays.copyOf(newIds, count), Arrays.copyOf(newBodyIds, count),
+          Arrays.copyOf(newSizes, count));
+    }
+  }
+}
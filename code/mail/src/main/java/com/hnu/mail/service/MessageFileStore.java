@@ -0,0 +1,215 @@
+package com.hnu.mail.service;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 邮件原文存储：每封投递到本地邮箱的邮件保存一份RFC 5322原文文件，POP3 RETR/TOP直接从文件发送。
+ * 文件中的行统一以CRLF结尾并已做POP3点转义，明文连接上可以用FileChannel.transferTo原样发送，
+ * 之后只需再发送结束标记。同一封SMTP邮件的所有收件人共用一个文件，最后一条引用它的邮件被物理删除后文件随之删除
+ */
+@Service
+@Slf4j
+public class MessageFileStore {
+
+  private static final int BUFFER_SIZE = 16 * 1024;
+
+  private final Path root;
+
+  public MessageFileStore(@Value("${app.mail.storage.local-path:uploads}") String storagePath) {
+    this.root = Paths.get(storagePath, "messages");
+  }
+
+  /**
+   * 从SMTP暂存文件复制原文，复制时补齐CRLF并做点转义，内存占用与邮件大小无关。
+   * 文件名取自暂存文件，投递日志重放时覆盖同名文件
+   */
+  public Stored storeSpooled(Path spoolFile) throws IOException {
+    String name = spoolFile.getFileName().toString();
+    try (InputStream in = Files.newInputStream(spoolFile)) {
+      return write(name, out -> {
+        byte[] buf = new byte[BUFFER_SIZE];
+        long size = 0;
+        boolean lineStart = true;
+        int previous = -1;
+        int n;
+        while ((n = in.read(buf)) > 0) {
+          for (int i = 0; i < n; i++) {
+            int b = buf[i];
+            if (lineStart && b == '.') {
+              out.write('.');
+              size++;
+            }
+            if (b == '\n' && previous != '\r') {
+              // 裸LF补成CRLF
+              out.write('\r');
+              size++;
+            }
+            out.write(b);
+            size++;
+            lineStart = b == '\n';
+            previous = b;
+          }
+        }
+        if (!lineStart) {
+          out.write('\r');
+          out.write('\n');
+          size += 2;
+        }
+        return size;
+      });
+    }
+  }
+
+  /**
+   * 保存由服务器生成的邮件（网页发送），每个元素是不含行尾的一行
+   */
+  public Stored storeLines(List<String> lines) throws IOException {
+    return write(UUID.randomUUID() + ".eml", out -> {
+      long size = 0;
+      for (String line : lines) {
+        if (line.startsWith(".")) {
+          out.write('.');
+          size++;
+        }
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        out.write(bytes);
+        out.write('\r');
+        out.write('\n');
+        size += bytes.length + 2;
+      }
+      return size;
+    });
+  }
+
+  public Path resolve(String name) {
+    return root.resolve(name);
+  }
+
+  /**
+   * TOP命令需要发送的字节数：邮件头、空行和正文的前几行
+   */
+  public static long topLength(Path file, int bodyLines) throws IOException {
+    long position = 0;
+    boolean inHeaders = true;
+    int remaining = bodyLines;
+    int lineLength = 0;
+    try (InputStream in = Files.newInputStream(file)) {
+      byte[] buf = new byte[BUFFER_SIZE];
+      int n;
+      while ((n = in.read(buf)) > 0) {
+        for (int i = 0; i < n; i++) {
+          if (buf[i] != '\n') {
+            lineLength++;
+            continue;
+          }
+          if (inHeaders) {
+            // 只有CR的行是分隔邮件头和正文的空行
+            inHeaders = lineLength > 1;
+          } else {
+            remaining--;
+          }
+          lineLength = 0;
+          if (!inHeaders && remaining <= 0) {
+            return position + i + 1;
+          }
+        }
+        position += n;
+      }
+    }
+    return position;
+  }
+
+  /**
+   * 事务回滚时删除本事务中新写入的文件
+   */
+  public void discardOnRollback(Stored stored) {
+    if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+      return;
+    }
+    TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+      @Override
+      public void afterCompletion(int status) {
+        if (status == STATUS_ROLLED_BACK) {
+          delete(stored.name());
+        }
+      }
+    });
+  }
+
+  /**
+   * 删除已不被任何邮件引用的文件；在事务中调用时等到提交后再删除，回滚时文件保留
+   */
+  public void deleteAfterCommit(Collection<String> names) {
+    if (names.isEmpty()) {
+      return;
+    }
+    List<String> files = List.copyOf(names);
+    if (TransactionSynchronizationManager.isSynchronizationActive()) {
+      TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+        @Override
+        public void afterCommit() {
+          files.forEach(MessageFileStore.this::delete);
+        }
+      });
+    } else {
+      files.forEach(this::delete);
+    }
+  }
+
+  /**
+   * 先写入临时文件再改名，读取方不会看到写了一半的原文
+   */
+  private Stored write(String name, Writer writer) throws IOException {
+    String relative = String.format("%02x/%s", name.hashCode() & 0xff, name);
+    Path target = root.resolve(relative);
+    Files.createDirectories(target.getParent());
+    Path temp = Files.createTempFile(target.getParent(), "tmp-", ".eml");
+    try {
+      long size;
+      try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temp), BUFFER_SIZE)) {
+        size = writer.write(out);
+      }
+      Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      return new Stored(relative, size);
+    } catch (IOException e) {
+      Files.deleteIfExists(temp);
+      throw e;
+    }
+  }
+
+  private void delete(String name) {
+    try {
+      Files.deleteIfExists(root.resolve(name));
+    } catch (IOException e) {
+      log.warn("删除邮件原文失败: {} - {}", name, e.getMessage());
+    }
+  }
+
+  /**
+   * 已保存的原文：相对于存储目录的文件名和文件大小（即RETR发送的字节数，不含结束标记）
+   */
+  public record Stored(String name, long size) {
+  }
+
+  private interface Writer {
+    long write(OutputStream out) throws IOException;
+  }
+}
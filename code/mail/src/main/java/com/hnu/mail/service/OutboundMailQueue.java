@@ -0,0 +1,566 @@
+package com.hnu.mail.service;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+import org.springframework.mail.javamail.MimeMessageHelper;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.hnu.mail.model.Attachment;
+import com.hnu.mail.model.OutboundMail;
+import com.hnu.mail.repository.OutboundMailRepository;
+
+import jakarta.annotation.PreDestroy;
+import jakarta.mail.Address;
+import jakarta.mail.MessagingException;
+import jakarta.mail.SendFailedException;
+import jakarta.mail.Session;
+import jakarta.mail.Transport;
+import jakarta.mail.internet.AddressException;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeMessage;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 外发邮件队列（发件箱）：待发送的邮件先写入outbound_mails表，由固定数量的发送线程取出发送。
+ * 发送失败按指数退避重试，重启后未发送的记录重新排队。
+ * 交互邮件和群发邮件分两条通道，群发邮件最多占用workers-1个线程，页面上发出的邮件总有线程可用。
+ * 每条通道内按收件人域名分组，发送线程一次取出同一域名的一批邮件，同一域名同时发送的线程数有上限；
+ * 批内正文相同的邮件合并为一个事务（多个RCPT），群发时事务数与域名数成正比而不是与收件人数成正比。
+ * 每个发送线程持有一个SMTP连接，连续发送多个事务时复用，空闲一段时间后关闭。
+ */
+@Service
+@Slf4j
+public class OutboundMailQueue {
+
+  // 单个连接最多发送的事务数，之后重新连接，避免对端按连接限制发送量
+  private static final int MAX_TRANSACTIONS_PER_CONNECTION = 100;
+  // 一批最多取出的邮件数，也是一个事务的RCPT上限（RFC 5321要求服务器至少接受100个收件人）
+  private static final int MAX_BATCH = 100;
+  // 多个收件人共用一个事务时不在To头中暴露其他收件人
+  private static final String UNDISCLOSED_RECIPIENTS = "undisclosed-recipients:;";
+  private static final Duration MAX_BACKOFF = Duration.ofHours(1);
+  // 与outbound_mails.last_error的列宽一致
+  private static final int MAX_ERROR_LENGTH = 500;
+
+  private final OutboundMailRepository repository;
+  private final JavaMailSenderImpl mailSender;
+  private final Session session;
+  private final int maxAttempts;
+  private final long retryBaseMillis;
+  private final long idleMillis;
+  private final int bulkLimit;
+  private final int domainConcurrency;
+  private final Thread[] workers;
+  private final ScheduledExecutorService retryTimer;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition available = lock.newCondition();
+  private final DomainQueue interactive = new DomainQueue();
+  private final DomainQueue bulk = new DomainQueue();
+  // 各域名正在发送的线程数
+  private final Map<String, Integer> activeDomains = new HashMap<>();
+  private int bulkActive;
+
+  private final AtomicInteger waitingRetries = new AtomicInteger();
+  private final AtomicLong sentMails = new AtomicLong();
+  private final AtomicLong retriedMails = new AtomicLong();
+  private final AtomicLong failedMails = new AtomicLong();
+  private final AtomicLong connections = new AtomicLong();
+  private final AtomicLong transactions = new AtomicLong();
+
+  public OutboundMailQueue(OutboundMailRepository repository, JavaMailSenderImpl mailSender,
+                           @Value("${app.outbound.workers:4}") int workerCount,
+                           @Value("${app.outbound.max-attempts:8}") int maxAttempts,
+                           @Value("${app.outbound.retry-base-ms:30000}") long retryBaseMillis,
+                           @Value("${app.outbound.idle-ms:10000}") long idleMillis,
+                           @Value("${app.outbound.domain-concurrency:2}") int domainConcurrency) {
+    this.repository = repository;
+    this.mailSender = mailSender;
+    this.session = partialSendSession(mailSender);
+    this.maxAttempts = Math.max(1, maxAttempts);
+    this.retryBaseMillis = retryBaseMillis;
+    this.idleMillis = idleMillis;
+    this.workers = new Thread[Math.max(1, workerCount)];
+    this.bulkLimit = Math.max(1, workers.length - 1);
+    this.domainConcurrency = Math.max(1, domainConcurrency);
+    this.retryTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "mail-outbound-retry");
+      thread.setDaemon(true);
+      return thread;
+    });
+    for (int i = 0; i < workers.length; i++) {
+      workers[i] = new Thread(this::work, "mail-outbound-" + i);
+      workers[i].setDaemon(true);
+      workers[i].start();
+    }
+  }
+
+  /**
+   * 把一封待发送的邮件写入发件箱。在事务中调用时，事务提交后才开始发送
+   * @param attachments 已保存在本地的附件，可以为null
+   */
+  public OutboundMail enqueue(OutboundMail.Lane lane, String from, String to, String subject,
+                              String content, Collection<Attachment> attachments) {
+    OutboundMail mail = new OutboundMail();
+    mail.setLane(lane);
+    mail.setFromAddress(from);
+    mail.setToAddress(to);
+    mail.setSubject(subject);
+    mail.setContent(content);
+    if (attachments != null) {
+      for (Attachment attachment : attachments) {
+        mail.getAttachments().add(new OutboundMail.Part(
+            attachment.getFilename(), attachment.getFileType(), attachment.getFilePath()));
+      }
+    }
+    OutboundMail saved = repository.save(mail);
+
+    if (TransactionSynchronizationManager.isSynchronizationActive()) {
+      TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+        @Override
+        public void afterCommit() {
+          offer(saved);
+        }
+      });
+    } else {
+      offer(saved);
+    }
+    return saved;
+  }
+
+  /**
+   * 重新排队上次运行中未发送完成的邮件，重复调用时已在队列中的邮件可能被重复发送，只应在启动时调用一次
+   */
+  public void recover() {
+    List<OutboundMail> pending = repository.findByStatusOrderByNextAttemptAtAsc(OutboundMail.Status.PENDING);
+    for (OutboundMail mail : pending) {
+      schedule(mail, Duration.between(LocalDateTime.now(), mail.getNextAttemptAt()).toMillis());
+    }
+    if (!pending.isEmpty()) {
+      log.info("从发件箱恢复未发送的邮件 {} 封", pending.size());
+    }
+  }
+
+  /**
+   * 队列状态：各通道排队数、等待重试数、发送结果以及每个连接平均发送的邮件数
+   */
+  public Map<String, Object> report() {
+    Map<String, Object> report = new LinkedHashMap<>();
+    lock.lock();
+    try {
+      report.put("workers", workers.length);
+      report.put("bulkLimit", bulkLimit);
+      report.put("domainConcurrency", domainConcurrency);
+      report.put("interactiveQueued", interactive.size);
+      report.put("bulkQueued", bulk.size);
+      report.put("bulkActive", bulkActive);
+      report.put("queuedDomains", interactive.domains.size() + bulk.domains.size());
+      report.put("activeDomains", activeDomains.size());
+    } finally {
+      lock.unlock();
+    }
+    long sent = sentMails.get();
+    long opened = connections.get();
+    long committed = transactions.get();
+    report.put("waitingRetries", waitingRetries.get());
+    report.put("sentMails", sent);
+    report.put("retriedMails", retriedMails.get());
+    report.put("failedMails", failedMails.get());
+    report.put("connections", opened);
+    report.put("transactions", committed);
+    report.put("mailsPerConnection", opened == 0 ? 0.0 : (double) sent / opened);
+    report.put("recipientsPerTransaction", committed == 0 ? 0.0 : (double) sent / committed);
+    return report;
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    retryTimer.shutdownNow();
+    for (Thread worker : workers) {
+      worker.interrupt();
+    }
+  }
+
+  private void offer(OutboundMail mail) {
+    lock.lock();
+    try {
+      (mail.getLane() == OutboundMail.Lane.BULK ? bulk : interactive).add(mail);
+      available.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void schedule(OutboundMail mail, long delayMillis) {
+    if (delayMillis <= 0) {
+      offer(mail);
+      return;
+    }
+    waitingRetries.incrementAndGet();
+    retryTimer.schedule(() -> {
+      waitingRetries.decrementAndGet();
+      offer(mail);
+    }, delayMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * 取出同一域名的下一批邮件：交互通道优先，群发通道受bulkLimit限制，已达并发上限的域名跳过
+   * @param timeoutMillis 最长等待时间，小于0时一直等待
+   * @return 超时返回null
+   */
+  private Batch take(long timeoutMillis) throws InterruptedException {
+    long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    lock.lock();
+    try {
+      while (true) {
+        Batch batch = interactive.poll(OutboundMail.Lane.INTERACTIVE);
+        if (batch == null && bulkActive < bulkLimit) {
+          batch = bulk.poll(OutboundMail.Lane.BULK);
+          if (batch != null) {
+            bulkActive++;
+          }
+        }
+        if (batch != null) {
+          activeDomains.merge(batch.domain(), 1, Integer::sum);
+          return batch;
+        }
+        if (timeoutMillis < 0) {
+          available.await();
+        } else if (remaining <= 0) {
+          return null;
+        } else {
+          remaining = available.awaitNanos(remaining);
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void release(Batch batch) {
+    lock.lock();
+    try {
+      activeDomains.computeIfPresent(batch.domain(), (domain, count) -> count > 1 ? count - 1 : null);
+      if (batch.lane() == OutboundMail.Lane.BULK) {
+        bulkActive--;
+      }
+      // 释放的域名或群发名额可能让等待中的线程取到邮件
+      available.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * 发送线程：连接空闲超过idleMillis后关闭，下一批邮件到来时重新连接
+   */
+  private void work() {
+    Connection connection = new Connection();
+    try {
+      while (!Thread.currentThread().isInterrupted()) {
+        Batch batch = take(connection.isOpen() ? idleMillis : -1);
+        if (batch == null) {
+          connection.close();
+          continue;
+        }
+        try {
+          for (List<OutboundMail> group : groupByContent(batch.mails())) {
+            send(connection, group);
+          }
+        } finally {
+          release(batch);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      connection.close();
+    }
+  }
+
+  /**
+   * 把正文相同的一组邮件作为一个事务发送：一次MAIL FROM、每个收件人一个RCPT、一次DATA
+   */
+  private void send(Connection connection, List<OutboundMail> group) {
+    List<OutboundMail> valid = new ArrayList<>(group.size());
+    List<InternetAddress> recipients = new ArrayList<>(group.size());
+    for (OutboundMail mail : group) {
+      try {
+        recipients.add(new InternetAddress(mail.getToAddress(), true));
+        valid.add(mail);
+      } catch (AddressException e) {
+        // 地址格式错误，重试也不会成功
+        failed(mail, e, true);
+      }
+    }
+    if (valid.isEmpty()) {
+      return;
+    }
+
+    try {
+      MimeMessage message = build(valid.get(0), valid.size() == 1 ? valid.get(0).getToAddress() : null);
+      connection.open().sendMessage(message, recipients.toArray(new Address[0]));
+      transactions.incrementAndGet();
+      for (OutboundMail mail : valid) {
+        sent(mail);
+      }
+      connection.completed();
+    } catch (SendFailedException e) {
+      // 部分收件人被拒绝：已接受的收件人不再重发，其余的各自重试；连接仍然可用
+      Set<String> accepted = addresses(e.getValidSentAddresses());
+      if (!accepted.isEmpty()) {
+        transactions.incrementAndGet();
+      }
+      for (OutboundMail mail : valid) {
+        if (accepted.contains(mail.getToAddress().toLowerCase(Locale.ROOT))) {
+          sent(mail);
+        } else {
+          failed(mail, e, false);
+        }
+      }
+      connection.completed();
+    } catch (MessagingException | RuntimeException e) {
+      connection.close();
+      for (OutboundMail mail : valid) {
+        failed(mail, e, false);
+      }
+    }
+  }
+
+  /**
+   * 按发件人、主题、正文和附件分组，组内的邮件只有收件人不同
+   */
+  private static Collection<List<OutboundMail>> groupByContent(List<OutboundMail> mails) {
+    Map<ContentKey, List<OutboundMail>> groups = new LinkedHashMap<>();
+    for (OutboundMail mail : mails) {
+      // 保存后的附件列表是Hibernate的PersistentBag，其equals/hashCode按对象标识比较，复制成普通列表后按值比较
+      ContentKey key = new ContentKey(mail.getFromAddress(), mail.getSubject(), mail.getContent(),
+          List.copyOf(mail.getAttachments()));
+      groups.computeIfAbsent(key, k -> new ArrayList<>()).add(mail);
+    }
+    return groups.values();
+  }
+
+  private static Set<String> addresses(Address[] addresses) {
+    Set<String> result = new HashSet<>();
+    if (addresses != null) {
+      for (Address address : addresses) {
+        if (address instanceof InternetAddress internet) {
+          result.add(internet.getAddress().toLowerCase(Locale.ROOT));
+        }
+      }
+    }
+    return result;
+  }
+
+  private static String domainOf(String address) {
+    int at = address != null ? address.lastIndexOf('@') : -1;
+    return at < 0 ? "" : address.substring(at + 1).toLowerCase(Locale.ROOT);
+  }
+
+  /**
+   * 复制发件会话的配置并开启部分发送：一个事务中某个收件人被拒绝时，仍然发给其余收件人
+   */
+  private static Session partialSendSession(JavaMailSenderImpl mailSender) {
+    Properties properties = new Properties();
+    properties.putAll(mailSender.getSession().getProperties());
+    String protocol = mailSender.getProtocol() != null ? mailSender.getProtocol() : "smtp";
+    properties.setProperty("mail." + protocol + ".sendpartial", "true");
+    return Session.getInstance(properties);
+  }
+
+  private Transport connect() throws MessagingException {
+    Transport transport = session.getTransport(
+        mailSender.getProtocol() != null ? mailSender.getProtocol() : "smtp");
+    transport.connect(mailSender.getHost(), mailSender.getPort(),
+        mailSender.getUsername(), mailSender.getPassword());
+    connections.incrementAndGet();
+    return transport;
+  }
+
+  /**
+   * @param to To头中的收件人，为null时表示多个收件人共用此邮件
+   */
+  private MimeMessage build(OutboundMail mail, String to) throws MessagingException {
+    MimeMessage message = new MimeMessage(session);
+    MimeMessageHelper helper = new MimeMessageHelper(message, true, "UTF-8");
+    if (mail.getFromAddress() != null) {
+      helper.setFrom(mail.getFromAddress());
+    }
+    if (to != null) {
+      helper.setTo(to);
+    } else {
+      message.setHeader("To", UNDISCLOSED_RECIPIENTS);
+    }
+    helper.setSubject(mail.getSubject() != null ? mail.getSubject() : "");
+    helper.setText(mail.getContent() != null ? mail.getContent() : "", true);
+    for (OutboundMail.Part part : mail.getAttachments()) {
+      helper.addAttachment(part.getFilename(), new FileSystemResource(part.getFilePath()),
+          part.getFileType() != null ? part.getFileType() : "application/octet-stream");
+    }
+    message.saveChanges();
+    return message;
+  }
+
+  private void sent(OutboundMail mail) {
+    sentMails.incrementAndGet();
+    try {
+      repository.deleteById(mail.getId());
+    } catch (RuntimeException e) {
+      // 记录未删除时重启后会再发送一次，只记录日志
+      log.warn("删除已发送的发件箱记录失败: {} - {}", mail.getId(), e.getMessage());
+    }
+  }
+
+  /**
+   * 发送失败：未超过重试上限时按指数退避（带随机抖动）重新排队，否则标记为FAILED
+   * @param permanent 为true时不再重试
+   */
+  private void failed(OutboundMail mail, Exception error, boolean permanent) {
+    int attempts = permanent ? maxAttempts : mail.getAttempts() + 1;
+    String message = error.getMessage() != null ? error.getMessage() : error.getClass().getSimpleName();
+    mail.setAttempts(attempts);
+    mail.setLastError(message.length() > MAX_ERROR_LENGTH ? message.substring(0, MAX_ERROR_LENGTH) : message);
+
+    long delay = 0;
+    if (attempts >= maxAttempts) {
+      mail.setStatus(OutboundMail.Status.FAILED);
+      failedMails.incrementAndGet();
+      log.error("外发邮件发送失败，已达重试上限: {} -> {} - {}", mail.getId(), mail.getToAddress(), message);
+    } else {
+      delay = backoff(attempts);
+      mail.setNextAttemptAt(LocalDateTime.now().plus(Duration.ofMillis(delay)));
+      retriedMails.incrementAndGet();
+      log.warn("外发邮件发送失败，{} 毫秒后第 {} 次重试: {} -> {} - {}",
+          delay, attempts + 1, mail.getId(), mail.getToAddress(), message);
+    }
+
+    try {
+      repository.save(mail);
+    } catch (RuntimeException e) {
+      log.warn("更新发件箱记录失败: {} - {}", mail.getId(), e.getMessage());
+    }
+    if (mail.getStatus() == OutboundMail.Status.PENDING) {
+      schedule(mail, delay);
+    }
+  }
+
+  private long backoff(int attempts) {
+    long delay = retryBaseMillis << Math.min(attempts - 1, 30);
+    delay = Math.min(delay < 0 ? Long.MAX_VALUE : delay, MAX_BACKOFF.toMillis());
+    return delay + ThreadLocalRandom.current().nextLong(delay / 5 + 1);
+  }
+
+  private static Transport closeQuietly(Transport transport) {
+    if (transport != null) {
+      try {
+        transport.close();
+      } catch (MessagingException e) {
+        log.debug("关闭SMTP连接失败: {}", e.getMessage());
+      }
+    }
+    return null;
+  }
+
+  /**
+   * 工作线程持有的SMTP连接
+   */
+  private final class Connection {
+    private Transport transport;
+    private int completedTransactions;
+
+    Transport open() throws MessagingException {
+      if (transport == null || !transport.isConnected()) {
+        close();
+        transport = connect();
+        completedTransactions = 0;
+      }
+      return transport;
+    }
+
+    void completed() {
+      if (++completedTransactions >= MAX_TRANSACTIONS_PER_CONNECTION) {
+        close();
+      }
+    }
+
+    boolean isOpen() {
+      return transport != null;
+    }
+
+    void close() {
+      transport = closeQuietly(transport);
+    }
+  }
+
+  /**
+   * 一条通道内按收件人域名分组的待发送邮件，域名轮流服务，避免大域名的群发饿死其他域名
+   */
+  private final class DomainQueue {
+    private final LinkedHashMap<String, ArrayDeque<OutboundMail>> domains = new LinkedHashMap<>();
+    private int size;
+
+    void add(OutboundMail mail) {
+      domains.computeIfAbsent(domainOf(mail.getToAddress()), domain -> new ArrayDeque<>()).add(mail);
+      size++;
+    }
+
+    /**
+     * 从第一个未达并发上限的域名取出一批，该域名还有剩余时移到末尾，调用方持有lock
+     */
+    Batch poll(OutboundMail.Lane lane) {
+      Iterator<Map.Entry<String, ArrayDeque<OutboundMail>>> it = domains.entrySet().iterator();
+      while (it.hasNext()) {
+        Map.Entry<String, ArrayDeque<OutboundMail>> entry = it.next();
+        String domain = entry.getKey();
+        if (activeDomains.getOrDefault(domain, 0) >= domainConcurrency) {
+          continue;
+        }
+        ArrayDeque<OutboundMail> queued = entry.getValue();
+        List<OutboundMail> mails = new ArrayList<>(Math.min(queued.size(), MAX_BATCH));
+        while (mails.size() < MAX_BATCH && !queued.isEmpty()) {
+          mails.add(queued.poll());
+        }
+        size -= mails.size();
+        it.remove();
+        if (!queued.isEmpty()) {
+          domains.put(domain, queued);
+        }
+        return new Batch(domain, lane, mails);
+      }
+      return null;
+    }
+  }
+
+  private record Batch(String domain, OutboundMail.Lane lane, List<OutboundMail> mails) {
+  }
+
+  private record ContentKey(String from, String subject, String content, List<OutboundMail.Part> attachments) {
+  }
+}
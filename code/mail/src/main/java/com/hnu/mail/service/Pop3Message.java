@@ -0,0 +1,74 @@
+package com.hnu.mail.service;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import com.hnu.mail.model.Mail;
+
+/**
+ * POP3 RETR发送的邮件格式：由信封字段生成的邮件头、空行和正文，每行以CRLF结尾。
+ * 投递时按同一格式计算邮件大小（RFC 1939的octet数，不含点转义）并保存，STAT和LIST直接使用保存的大小
+ */
+final class Pop3Message {
+
+    // 固定宽度的日期格式：数据库取回的时间与投递时相差不足一秒，生成的行长度也相同
+    private static final DateTimeFormatter DATE_FORMAT =
+            DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss Z", Locale.US);
+
+    private Pop3Message() {
+    }
+
+    /**
+     * 生成邮件的各行（不含CRLF）
+     */
+    static List<String> lines(String from, String to, String subject, LocalDateTime sentAt, String content) {
+        List<String> lines = headerLines(from, to, subject, sentAt);
+        lines.add("");
+        lines.addAll(List.of(bodyLines(content)));
+        return lines;
+    }
+
+    /**
+     * 邮件头各行，只由信封字段生成，TOP命令不需要读取正文
+     */
+    static List<String> headerLines(String from, String to, String subject, LocalDateTime sentAt) {
+        List<String> lines = new ArrayList<>();
+        lines.add("From: " + headerValue(from));
+        lines.add("To: " + headerValue(to));
+        lines.add("Subject: " + headerValue(subject));
+        if (sentAt != null) {
+            lines.add("Date: " + DATE_FORMAT.format(sentAt.atZone(ZoneId.systemDefault())));
+        }
+        return lines;
+    }
+
+    /**
+     * 正文各行，任意换行符都按行分隔
+     */
+    static String[] bodyLines(String content) {
+        return (content != null ? content : "").split("\r\n|\r|\n", -1);
+    }
+
+    /**
+     * 邮件记录按RETR格式发送时的字节数
+     * @param content 邮件正文，调用方在投递时已经持有
+     */
+    static long octets(Mail mail, String content) {
+        long octets = 0;
+        for (String line : lines(mail.getSenderEmail(), mail.getReceiverEmail(), mail.getSubject(),
+                mail.getSentAt(), content)) {
+            octets += line.getBytes(StandardCharsets.UTF_8).length + 2;
+        }
+        return octets;
+    }
+
+    // 邮件头的值不能包含换行，否则会改变邮件结构
+    private static String headerValue(String value) {
+        return value != null ? value.replace('\r', ' ').replace('\n', ' ') : "";
+    }
+}
@@ -0,0 +1,658 @@
+package com.hnu.mail.service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.springframework.security.crypto.password.PasswordEncoder;
+
+import com.hnu.mail.model.MailboxStats;
+import com.hnu.mail.model.User;
+import com.hnu.mail.repository.MailRepository;
+import com.hnu.mail.repository.UserRepository;
+import com.hnu.mail.server.CommandLine;
+import com.hnu.mail.server.ProtocolSession;
+import com.hnu.mail.server.SessionChannel;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * POP3会话状态机，与I/O模型无关。
+ * 登录时只读取邮箱计数器，STAT直接用计数器回复；第一次需要逐封信息的命令才加载由邮件ID、正文ID和大小
+ * 组成的紧凑列表，之后本会话的邮件编号固定。正文在RETR时才读取，只轮询STAT的客户端不会扫描邮件表。
+ * 有原文文件的邮件由通道直接从文件发送，不读取正文；没有原文文件的旧邮件由信封字段和正文生成。
+ * 支持CAPA、UIDL、TOP和PIPELINING（RFC 2449）：一批流水线命令中的RETR/TOP延迟到本批命令处理完毕时
+ * 用一次查询取回所有信封字段和正文，响应仍按命令顺序发出
+ */
+@Slf4j
+class Pop3Session implements ProtocolSession {
+
+    // 命令名编码，见CommandLine.verb()
+    private static final int USER = 'U' << 24 | 'S' << 16 | 'E' << 8 | 'R';
+    private static final int PASS = 'P' << 24 | 'A' << 16 | 'S' << 8 | 'S';
+    private static final int STAT = 'S' << 24 | 'T' << 16 | 'A' << 8 | 'T';
+    private static final int LIST = 'L' << 24 | 'I' << 16 | 'S' << 8 | 'T';
+    private static final int RETR = 'R' << 24 | 'E' << 16 | 'T' << 8 | 'R';
+    private static final int DELE = 'D' << 24 | 'E' << 16 | 'L' << 8 | 'E';
+    private static final int NOOP = 'N' << 24 | 'O' << 16 | 'O' << 8 | 'P';
+    private static final int RSET = 'R' << 24 | 'S' << 16 | 'E' << 8 | 'T';
+    private static final int QUIT = 'Q' << 24 | 'U' << 16 | 'I' << 8 | 'T';
+    private static final int STLS = 'S' << 24 | 'T' << 16 | 'L' << 8 | 'S';
+    private static final int CAPA = 'C' << 24 | 'A' << 16 | 'P' << 8 | 'A';
+    private static final int UIDL = 'U' << 24 | 'I' << 16 | 'D' << 8 | 'L';
+    private static final int TOP = 'T' << 24 | 'O' << 16 | 'P' << 8;
+
+    // 一批流水线命令中最多延迟读取的邮件数量，限制一次加载到内存的正文
+    private static final int MAX_PENDING_FETCHES = 32;
+
+    private final SessionChannel channel;
+    private final UserRepository userRepository;
+    private final MailRepository mailRepository;
+    private final MailBodyService mailBodyService;
+    private final MessageFileStore fileStore;
+    private final MailDeliveryService deliveryService;
+    private final MailboxStatsService statsService;
+    private final MaildropCache maildropCache;
+    private final PasswordEncoder passwordEncoder;
+    private final DatabaseCallExecutor dbExecutor;
+    private final long idleTimeout;
+    private final CommandLine command = new CommandLine();
+
+    private String currentUser;
+    private Long userId;
+    private MailboxStats stats; // 登录时读取的计数器，加载邮件列表之前用于STAT
+    private boolean listingLoaded;
+    private Pop3State state;
+    // 下标为邮件编号减1；ID同时作为邮件的唯一标识
+    private long[] messageIds;
+    private long[] bodyIds; // 没有正文的邮件为0
+    private long[] messageSizes;
+    private BitSet deletedMessages;
+    private final List<Fetch> pendingFetches = new ArrayList<>();
+    private boolean closed;
+
+    Pop3Session(SessionChannel channel, UserRepository userRepository, MailRepository mailRepository,
+                MailBodyService mailBodyService, MessageFileStore fileStore, MailDeliveryService deliveryService,
+                MailboxStatsService statsService, MaildropCache maildropCache, PasswordEncoder passwordEncoder,
+                DatabaseCallExecutor dbExecutor, long idleTimeout) {
+        this.channel = channel;
+        this.userRepository = userRepository;
+        this.mailRepository = mailRepository;
+        this.mailBodyService = mailBodyService;
+        this.fileStore = fileStore;
+        this.deliveryService = deliveryService;
+        this.statsService = statsService;
+        this.maildropCache = maildropCache;
+        this.passwordEncoder = passwordEncoder;
+        this.dbExecutor = dbExecutor;
+        this.idleTimeout = idleTimeout;
+        this.state = Pop3State.AUTHORIZATION;
+        this.messageIds = new long[0];
+        this.bodyIds = new long[0];
+        this.messageSizes = new long[0];
+        this.deletedMessages = new BitSet();
+    }
+
+    @Override
+    public void start() {
+        // 发送欢迎消息
+        sendResponse("+OK POP3 server ready");
+    }
+
+    @Override
+    public void onLine(byte[] buf, int off, int len) {
+        command.parse(buf, off, len);
+        if (log.isDebugEnabled()) {
+            // PASS命令的参数是明文密码，不写入日志
+            log.debug("收到POP3命令: {}", command.verb() == PASS ? "PASS ****" : command);
+        }
+        handleCommand(command);
+    }
+
+    @Override
+    public void onInputDrained() {
+        resolvePendingFetches();
+    }
+
+    @Override
+    public long readTimeoutMillis() {
+        return idleTimeout;
+    }
+
+    @Override
+    public void onTimeout() {
+        // RFC 1939：空闲超时自动退出时不进入UPDATE状态，标记删除的邮件保留
+        sendResponse("-ERR 空闲超时，连接已关闭");
+        closed = true;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * 处理POP3命令
+     * @param line 解析后的命令行，只在本次调用期间有效
+     */
+    private void handleCommand(CommandLine line) {
+        int cmd = line.verb();
+
+        try {
+            switch (state) {
+                case AUTHORIZATION:
+                    handleAuthorizationCommand(cmd, line);
+                    break;
+                case TRANSACTION:
+                    handleTransactionCommand(cmd, line);
+                    break;
+                case UPDATE:
+                    handleUpdateCommand(cmd);
+                    break;
+            }
+        } catch (Exception e) {
+            log.error("处理POP3命令失败: {}", e.getMessage());
+            sendResponse("-ERR 处理命令时发生错误");
+        }
+    }
+
+    /**
+     * 处理认证阶段命令
+     */
+    private void handleAuthorizationCommand(int cmd, CommandLine line) {
+        switch (cmd) {
+            case USER:
+                handleUserCommand(line.arg());
+                break;
+            case PASS:
+                handlePassCommand(line.arg());
+                break;
+            case STLS:
+                handleStlsCommand();
+                break;
+            case CAPA:
+                handleCapaCommand();
+                break;
+            case QUIT:
+                handleQuitCommand();
+                break;
+            default:
+                sendResponse("-ERR 未知命令");
+        }
+    }
+
+    /**
+     * 处理CAPA命令（RFC 2449），认证前后都可以使用
+     */
+    private void handleCapaCommand() {
+        sendResponse("+OK Capability list follows");
+        sendResponse("USER");
+        sendResponse("TOP");
+        sendResponse("UIDL");
+        sendResponse("PIPELINING");
+        if (state == Pop3State.AUTHORIZATION && channel.canStartTls()) {
+            sendResponse("STLS");
+        }
+        sendResponse(".");
+    }
+
+    /**
+     * 处理STLS命令（RFC 2595）：只能在认证前使用，升级后已输入的用户名作废
+     */
+    private void handleStlsCommand() {
+        if (!channel.canStartTls()) {
+            sendResponse(channel.isSecure() ? "-ERR 连接已加密" : "-ERR 不支持STLS");
+            return;
+        }
+        sendResponse("+OK Begin TLS negotiation");
+        channel.startTls();
+        currentUser = null;
+    }
+
+    /**
+     * 处理事务阶段命令
+     */
+    private void handleTransactionCommand(int cmd, CommandLine line) {
+        switch (cmd) {
+            case STAT:
+                handleStatCommand();
+                break;
+            case LIST:
+                handleListCommand(line);
+                break;
+            case RETR:
+                handleRetrCommand(line);
+                break;
+            case TOP:
+                handleTopCommand(line);
+                break;
+            case UIDL:
+                handleUidlCommand(line);
+                break;
+            case CAPA:
+                handleCapaCommand();
+                break;
+            case DELE:
+                handleDeleCommand(line);
+                break;
+            case NOOP:
+                handleNoopCommand();
+                break;
+            case RSET:
+                handleRsetCommand();
+                break;
+            case QUIT:
+                handleQuitCommand();
+                break;
+            default:
+                sendResponse("-ERR 未知命令");
+        }
+    }
+
+    /**
+     * 处理更新阶段命令
+     */
+    private void handleUpdateCommand(int cmd) {
+        if (cmd == QUIT) {
+            handleQuitCommand();
+        } else {
+            sendResponse("-ERR 未知命令");
+        }
+    }
+
+    /**
+     * 处理USER命令
+     */
+    private void handleUserCommand(String username) {
+        if (username == null || username.isEmpty()) {
+            sendResponse("-ERR 用户名不能为空");
+            return;
+        }
+
+        var userOpt = dbExecutor.call(() -> userRepository.findByUsername(username));
+        if (userOpt.isPresent()) {
+            currentUser = username;
+            sendResponse("+OK 用户存在");
+        } else {
+            sendResponse("-ERR 用户名不存在");
+        }
+    }
+
+    /**
+     * 处理PASS命令
+     */
+    private void handlePassCommand(String password) {
+        if (currentUser == null) {
+            sendResponse("-ERR 请先输入用户名");
+            return;
+        }
+
+        if (password == null) {
+            sendResponse("-ERR 密码不能为空");
+            return;
+        }
+
+        var userOpt = dbExecutor.call(() -> userRepository.findByUsername(currentUser));
+        if (userOpt.isPresent() && passwordEncoder.matches(password, userOpt.get().getPassword())) {
+            // 认证成功，进入事务状态；缓存中有邮箱清单时直接使用，否则邮件列表等到需要时再加载
+            User user = userOpt.get();
+            userId = user.getId();
+            MaildropCache.Manifest manifest = maildropCache.peek(userId);
+            if (manifest != null) {
+                useListing(manifest);
+            } else {
+                stats = dbExecutor.call(() -> statsService.find(user.getId()));
+            }
+            state = Pop3State.TRANSACTION;
+            sendResponse("+OK 认证成功");
+        } else {
+            sendResponse("-ERR 密码错误");
+        }
+    }
+
+    /**
+     * 处理STAT命令
+     */
+    private void handleStatCommand() {
+        if (!listingLoaded) {
+            sendResponse("+OK " + stats.getMessageCount() + " " + stats.getTotalOctets());
+            return;
+        }
+        // 标记删除的邮件不计入（RFC 1939）
+        int messageCount = 0;
+        long totalSize = 0;
+        for (int i = 0; i < messageIds.length; i++) {
+            if (!deletedMessages.get(i)) {
+                messageCount++;
+                totalSize += messageSizes[i];
+            }
+        }
+        sendResponse("+OK " + messageCount + " " + totalSize);
+    }
+
+    /**
+     * 处理LIST命令
+     */
+    private void handleListCommand(CommandLine line) {
+        loadUserMessages();
+        if (!line.hasArg()) {
+            // LIST命令不带参数，返回所有未删除邮件的列表
+            sendResponse("+OK " + (messageIds.length - deletedMessages.cardinality()) + " messages");
+            for (int i = 0; i < messageIds.length; i++) {
+                if (!deletedMessages.get(i)) {
+                    sendResponse((i + 1) + " " + messageSizes[i]);
+                }
+            }
+            sendResponse(".");
+        } else {
+            // LIST命令带参数，返回指定邮件的大小
+            int index = messageIndex(line);
+            if (index >= 0) {
+                sendResponse("+OK " + (index + 1) + " " + messageSizes[index]);
+            }
+        }
+    }
+
+    /**
+     * 处理RETR命令
+     */
+    private void handleRetrCommand(CommandLine line) {
+        if (!line.hasArg()) {
+            sendResponse("-ERR 请指定邮件ID");
+            return;
+        }
+
+        loadUserMessages();
+        int index = messageIndex(line);
+        if (index >= 0) {
+            // 信封字段和正文在本批命令处理完毕时统一查询
+            addPendingFetch(new Fetch(index, -1));
+        }
+    }
+
+    /**
+     * 处理TOP命令：邮件头只由信封字段生成，请求0行正文时不读取正文
+     */
+    private void handleTopCommand(CommandLine line) {
+        long msgId = line.nextToken() ? line.tokenAsLong() : -1;
+        long bodyLines = line.nextToken() ? line.tokenAsLong() : -1;
+        if (msgId < 0 || bodyLines < 0 || line.nextToken()) {
+            sendResponse("-ERR 语法错误，应为 TOP <邮件ID> <行数>");
+            return;
+        }
+
+        loadUserMessages();
+        int index = messageIndex(msgId);
+        if (index >= 0) {
+            addPendingFetch(new Fetch(index, (int) Math.min(bodyLines, Integer.MAX_VALUE)));
+        }
+    }
+
+    /**
+     * 处理UIDL命令：邮件ID在邮件的整个生命周期内不变，用作唯一标识
+     */
+    private void handleUidlCommand(CommandLine line) {
+        loadUserMessages();
+        if (!line.hasArg()) {
+            sendResponse("+OK unique-id listing follows");
+            for (int i = 0; i < messageIds.length; i++) {
+                if (!deletedMessages.get(i)) {
+                    sendResponse((i + 1) + " " + messageIds[i]);
+                }
+            }
+            sendResponse(".");
+        } else {
+            int index = messageIndex(line);
+            if (index >= 0) {
+                sendResponse("+OK " + (index + 1) + " " + messageIds[index]);
+            }
+        }
+    }
+
+    private void addPendingFetch(Fetch fetch) {
+        pendingFetches.add(fetch);
+        if (pendingFetches.size() >= MAX_PENDING_FETCHES) {
+            resolvePendingFetches();
+        }
+    }
+
+    /**
+     * 用一次查询取回本批流水线命令中所有RETR/TOP需要的信封字段和正文，并按顺序写出响应
+     */
+    private void resolvePendingFetches() {
+        if (pendingFetches.isEmpty()) {
+            return;
+        }
+
+        Set<Long> mailIds = new HashSet<>();
+        for (Fetch fetch : pendingFetches) {
+            mailIds.add(messageIds[fetch.index()]);
+        }
+        Map<Long, MailRepository.MessageEnvelope> envelopes = new HashMap<>();
+        Map<Long, String> contents = Map.of();
+        long[] fileBytes = new long[pendingFetches.size()];
+        try {
+            for (var envelope : dbExecutor.call(() -> mailRepository.findEnvelopes(mailIds))) {
+                envelopes.put(envelope.getId(), envelope);
+            }
+            // 有原文文件的邮件直接从文件发送，其余邮件才读取正文；TOP 0只需要邮件头
+            Set<Long> bodies = new HashSet<>();
+            for (int i = 0; i < pendingFetches.size(); i++) {
+                Fetch fetch = pendingFetches.get(i);
+                fileBytes[i] = rawFileBytes(fetch, envelopes.get(messageIds[fetch.index()]));
+                if (fileBytes[i] < 0 && fetch.bodyLines() != 0 && bodyIds[fetch.index()] != 0) {
+                    bodies.add(bodyIds[fetch.index()]);
+                }
+            }
+            if (!bodies.isEmpty()) {
+                contents = dbExecutor.call(() -> mailBodyService.loadContents(bodies));
+            }
+        } catch (RuntimeException e) {
+            // 未取回的邮件逐个回复错误，会话继续
+            log.error("读取POP3邮件失败: {}", e.getMessage());
+            envelopes.clear();
+        }
+
+        for (int i = 0; i < pendingFetches.size(); i++) {
+            Fetch fetch = pendingFetches.get(i);
+            writeMessage(fetch, envelopes.get(messageIds[fetch.index()]), contents, fileBytes[i]);
+        }
+        pendingFetches.clear();
+    }
+
+    /**
+     * 原文文件中需要发送的字节数；没有原文文件或文件不可读时返回-1，改为由数据库字段生成邮件
+     */
+    private long rawFileBytes(Fetch fetch, MailRepository.MessageEnvelope envelope) {
+        if (envelope == null || envelope.getRawFile() == null) {
+            return -1;
+        }
+        Path file = fileStore.resolve(envelope.getRawFile());
+        try {
+            return fetch.bodyLines() < 0 ? Files.size(file) : MessageFileStore.topLength(file, fetch.bodyLines());
+        } catch (IOException e) {
+            log.warn("读取邮件原文失败，改为由数据库字段生成邮件: {} - {}", file, e.getMessage());
+            return -1;
+        }
+    }
+
+    /**
+     * 写出一封邮件（RETR）或邮件头和前几行正文（TOP）
+     * @param fileBytes 从原文文件发送的字节数，为-1时由信封字段和正文生成
+     */
+    private void writeMessage(Fetch fetch, MailRepository.MessageEnvelope envelope, Map<Long, String> contents,
+                              long fileBytes) {
+        int index = fetch.index();
+        if (envelope == null) {
+            channel.write("-ERR 邮件不存在");
+            return;
+        }
+        channel.write(fetch.bodyLines() < 0 ? "+OK " + messageSizes[index] + " octets" : "+OK 邮件头 follows");
+        if (fileBytes >= 0) {
+            // 原文文件已做点转义且以CRLF结尾，原样发送后只需结束标记
+            channel.writeFile(fileStore.resolve(envelope.getRawFile()), fileBytes);
+            channel.write(".");
+            return;
+        }
+        for (String text : Pop3Message.headerLines(envelope.getSenderEmail(), envelope.getReceiverEmail(),
+                envelope.getSubject(), envelope.getSentAt())) {
+            writeStuffed(text);
+        }
+        channel.write("");
+        if (fetch.bodyLines() != 0) {
+            String[] body = Pop3Message.bodyLines(contents.getOrDefault(bodyIds[index], ""));
+            int count = fetch.bodyLines() < 0 ? body.length : Math.min(fetch.bodyLines(), body.length);
+            for (int i = 0; i < count; i++) {
+                writeStuffed(body[i]);
+            }
+        }
+        channel.write(".");
+    }
+
+    // 以.开头的行加一个.转义（RFC 1939），避免被当作结束标记
+    private void writeStuffed(String text) {
+        channel.write(text.startsWith(".") ? "." + text : text);
+    }
+
+    /**
+     * 处理DELE命令
+     */
+    private void handleDeleCommand(CommandLine line) {
+        if (!line.hasArg()) {
+            sendResponse("-ERR 请指定邮件ID");
+            return;
+        }
+
+        loadUserMessages();
+        int index = messageIndex(line);
+        if (index >= 0) {
+            deletedMessages.set(index);
+            sendResponse("+OK 邮件已标记为删除");
+        }
+    }
+
+    /**
+     * 把命令参数中的邮件编号转换为下标，编号无效、不存在或已标记删除时回复错误
+     * @return 下标，出错时返回-1
+     */
+    private int messageIndex(CommandLine line) {
+        return messageIndex(line.argAsInt());
+    }
+
+    private int messageIndex(long msgId) {
+        if (msgId < 0) {
+            sendResponse("-ERR 无效的邮件ID");
+            return -1;
+        }
+        if (msgId == 0 || msgId > messageIds.length) {
+            sendResponse("-ERR 邮件不存在");
+            return -1;
+        }
+        if (deletedMessages.get((int) msgId - 1)) {
+            sendResponse("-ERR 邮件已标记为删除");
+            return -1;
+        }
+        return (int) msgId - 1;
+    }
+
+    /**
+     * 处理NOOP命令
+     */
+    private void handleNoopCommand() {
+        sendResponse("+OK");
+    }
+
+    /**
+     * 处理RSET命令
+     */
+    private void handleRsetCommand() {
+        deletedMessages.clear();
+        sendResponse("+OK 删除标记已重置");
+    }
+
+    /**
+     * 处理QUIT命令
+     */
+    private void handleQuitCommand() {
+        sendResponse("+OK POP3服务器关闭连接");
+
+        // 如果在事务状态，进入更新状态并处理删除操作
+        if (state == Pop3State.TRANSACTION) {
+            state = Pop3State.UPDATE;
+            processDeletedMessages();
+        }
+
+        closed = true;
+        channel.close();
+    }
+
+    /**
+     * 发送响应给客户端
+     */
+    private void sendResponse(String response) {
+        // 保证延迟的RETR/TOP响应先于后续响应发出
+        resolvePendingFetches();
+        channel.write(response);
+    }
+
+    /**
+     * 第一次调用时取得用户邮件列表：先查共享的清单缓存，未命中时一次投影查询，只取ID、正文ID和大小
+     */
+    private void loadUserMessages() {
+        if (listingLoaded) {
+            return;
+        }
+        Long owner = userId;
+        useListing(maildropCache.get(owner, () -> dbExecutor.call(() -> mailRepository.findMaildrop(owner))));
+    }
+
+    /**
+     * 固定本会话的邮件编号；清单中的数组不可变，可以直接引用
+     */
+    private void useListing(MaildropCache.Manifest manifest) {
+        listingLoaded = true;
+        messageIds = manifest.ids();
+        bodyIds = manifest.bodyIds();
+        messageSizes = manifest.sizes();
+        deletedMessages = new BitSet(manifest.size());
+    }
+
+    /**
+     * 处理已标记为删除的邮件
+     */
+    private void processDeletedMessages() {
+        if (deletedMessages.isEmpty()) {
+            return;
+        }
+        List<Long> mailIds = new ArrayList<>(deletedMessages.cardinality());
+        for (int i = deletedMessages.nextSetBit(0); i >= 0; i = deletedMessages.nextSetBit(i + 1)) {
+            mailIds.add(messageIds[i]);
+            log.info("删除邮件: {} (ID: {})", i + 1, messageIds[i]);
+        }
+        // 在一个事务中删除邮件并释放正文引用
+        dbExecutor.run(() -> deliveryService.expunge(mailIds));
+    }
+
+    /**
+     * 延迟到本批命令处理完毕时读取的邮件
+     * @param bodyLines TOP请求的正文行数，RETR为-1
+     */
+    private record Fetch(int index, int bodyLines) {
+    }
+
+    /**
+     * POP3协议状态
+     */
+    private enum Pop3State {
+        AUTHORIZATION, // 认证阶段
+        TRANSACTION,   // 事务阶段
+        UPDATE         // 更新阶段
+    }
+}
@@ -15,15 +15,18 @@ public class ServiceManager {
   private final Pop3Service pop3Service; // POP3客户端服务
   private final Pop3Server pop3Server;   // POP3服务器
   private final SmtpServer smtpServer;   // SMTP服务器
+  private final OutboundMailQueue outboundQueue; // 外发邮件队列
   
   @Autowired
   public ServiceManager(SystemConfigService configService, LogService logService,
-                       Pop3Service pop3Service, Pop3Server pop3Server, SmtpServer smtpServer) {
+                       Pop3Service pop3Service, Pop3Server pop3Server, SmtpServer smtpServer,
+                       OutboundMailQueue outboundQueue) {
       this.configService = configService;
       this.logService = logService;
       this.pop3Service = pop3Service;
       this.pop3Server = pop3Server;
       this.smtpServer = smtpServer;
+      this.outboundQueue = outboundQueue;
   }
 
   // SMTP服务状态
@@ -49,6 +52,9 @@ public class ServiceManager {
     smtpServerEnabled = Boolean.parseBoolean(
         configService.getConfigValue(SystemConfig.SMTP_SERVER_ENABLED, "true"));
 
+    // 重新排队上次运行中未发送完成的外发邮件
+    outboundQueue.recover();
+
     // 根据配置启动或停止服务
     if (!pop3ServiceEnabled) {
       pop3Service.stop();
@@ -0,0 +1,726 @@
+package com.hnu.mail.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import com.hnu.mail.model.Mail;
+import com.hnu.mail.model.MailHeaders;
+import com.hnu.mail.model.User;
+import com.hnu.mail.repository.UserRepository;
+import com.hnu.mail.server.CommandLine;
+import com.hnu.mail.server.MessageHeaderParser;
+import com.hnu.mail.server.MessageSpool;
+import com.hnu.mail.server.ProtocolSession;
+import com.hnu.mail.server.SessionChannel;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * SMTP会话状态机，与I/O模型无关，阻塞引擎和NIO引擎共用。
+ * 支持CHUNKING（RFC 3030）：BDAT数据块按声明的字节数原样写入暂存文件，不做行切分和字符解码。
+ * 同一状态机也用于LMTP（RFC 2033）：以LHLO代替EHLO，邮件数据接收完毕后按收件人逐个回复投递结果
+ */
+@Slf4j
+class SmtpSession implements ProtocolSession {
+
+    // 一批流水线命令中最多延迟解析的收件人数量
+    private static final int MAX_PENDING_RECIPIENTS = 500;
+    // 与mails表的列长度一致
+    private static final int MAX_SUBJECT_LENGTH = 200;
+    private static final int MAX_HEADER_LENGTH = 255;
+
+    // 命令名编码，见CommandLine.verb()
+    private static final int HELO = 'H' << 24 | 'E' << 16 | 'L' << 8 | 'O';
+    private static final int EHLO = 'E' << 24 | 'H' << 16 | 'L' << 8 | 'O';
+    private static final int LHLO = 'L' << 24 | 'H' << 16 | 'L' << 8 | 'O';
+    private static final int MAIL = 'M' << 24 | 'A' << 16 | 'I' << 8 | 'L';
+    private static final int RCPT = 'R' << 24 | 'C' << 16 | 'P' << 8 | 'T';
+    private static final int DATA = 'D' << 24 | 'A' << 16 | 'T' << 8 | 'A';
+    private static final int BDAT = 'B' << 24 | 'D' << 16 | 'A' << 8 | 'T';
+    private static final int RSET = 'R' << 24 | 'S' << 16 | 'E' << 8 | 'T';
+    private static final int QUIT = 'Q' << 24 | 'U' << 16 | 'I' << 8 | 'T';
+
+    private final SessionChannel channel;
+    private final SmtpSettings settings;
+    private final UserRepository userRepository;
+    private final DeliveryQueue deliveryQueue;
+    private final DatabaseCallExecutor dbExecutor;
+    private final boolean lmtp;
+    private final CommandLine command = new CommandLine();
+
+    private SmtpState state;
+    private String sender;
+    private List<Recipient> recipients;
+    private List<String> pendingRecipients;
+    private MessageSpool spool;
+    private boolean dataMode;
+    private boolean dataOversized;
+    private boolean dataWriteFailed; // 暂存文件写入失败，结束标记时回复451
+    private boolean binaryMime;
+    private long chunkRemaining; // 当前BDAT数据块尚未接收的字节数
+    private boolean chunkLast;
+    private String chunkError;   // 数据块接收完毕后代替250发送的错误响应
+    private boolean closed;
+
+    SmtpSession(SessionChannel channel, SmtpSettings settings,
+                UserRepository userRepository, DeliveryQueue deliveryQueue,
+                DatabaseCallExecutor dbExecutor) {
+        this(channel, settings, userRepository, deliveryQueue, dbExecutor, false);
+    }
+
+    /**
+     * @param lmtp 为true时按LMTP协议工作
+     */
+    SmtpSession(SessionChannel channel, SmtpSettings settings,
+                UserRepository userRepository, DeliveryQueue deliveryQueue,
+                DatabaseCallExecutor dbExecutor, boolean lmtp) {
+        this.channel = channel;
+        this.settings = settings;
+        this.userRepository = userRepository;
+        this.deliveryQueue = deliveryQueue;
+        this.dbExecutor = dbExecutor;
+        this.lmtp = lmtp;
+        this.state = SmtpState.CONNECTION;
+        this.recipients = new ArrayList<>();
+        this.pendingRecipients = new ArrayList<>();
+        this.dataMode = false;
+    }
+
+    @Override
+    public void start() {
+        // 发送欢迎消息
+        sendResponse("220 " + settings.getDomain() + " " + protocol() + " Server Ready");
+    }
+
+    @Override
+    public void onLine(byte[] buf, int off, int len) {
+        if (dataMode) {
+            handleDataLine(buf, off, len);
+            return;
+        }
+
+        command.parse(buf, off, len);
+        log.debug("收到SMTP命令: {}", command);
+        handleCommand(command);
+    }
+
+    @Override
+    public long binaryBytesExpected() {
+        return chunkRemaining;
+    }
+
+    @Override
+    public void onBinary(ByteBuffer data) {
+        chunkRemaining -= data.remaining();
+        if (chunkError == null) {
+            try {
+                spool.writeChunk(data);
+            } catch (IOException e) {
+                // 继续接收完本数据块，再向客户端报告错误
+                log.error("写入SMTP暂存文件失败: {}", e.getMessage());
+                chunkError = "451 本地处理错误，请稍后重试";
+                discardSpool();
+            }
+        }
+        if (chunkRemaining == 0) {
+            finishChunk();
+        }
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void onInputDrained() {
+        resolvePendingRecipients();
+    }
+
+    @Override
+    public long readTimeoutMillis() {
+        if (dataMode || chunkRemaining > 0) {
+            return settings.getDataTimeout();
+        }
+        return state == SmtpState.CONNECTION ? settings.getGreetingTimeout() : settings.getCommandTimeout();
+    }
+
+    @Override
+    public void onTimeout() {
+        // 超时不投递未完成的邮件，暂存文件在onClose中删除
+        channel.write("421 " + settings.getDomain() + " 等待超时，关闭连接");
+        closed = true;
+    }
+
+    @Override
+    public void onClose() {
+        discardSpool();
+    }
+
+    /**
+     * 处理SMTP命令
+     * @param line 解析后的命令行，只在本次调用期间有效
+     */
+    private void handleCommand(CommandLine line) {
+        int cmd = line.verb();
+
+        try {
+            // 除RCPT外的命令都依赖之前收件人的结果，先完成延迟的收件人解析
+            if (cmd != RCPT) {
+                resolvePendingRecipients();
+            }
+            // 语法正确的BDAT无论当前状态如何都要读完数据块，否则后续数据会被当作命令
+            if (cmd == BDAT) {
+                handleBdat(line);
+                return;
+            }
+
+            switch (state) {
+                case CONNECTION:
+                    if (lmtp ? cmd == LHLO : cmd == EHLO || cmd == HELO) {
+                        handleEhloHelo(cmd, line);
+                        state = SmtpState.MAIL;
+                    } else {
+                        sendResponse(lmtp ? "503 请先发送LHLO命令" : "503 请先发送EHLO或HELO命令");
+                    }
+                    break;
+                case MAIL:
+                    if (cmd == MAIL) {
+                        handleMailFrom(line);
+                    } else if (line.verbIs("STARTTLS")) {
+                        handleStartTls(line);
+                    } else if (cmd == RSET) {
+                        handleRset();
+                    } else if (cmd == QUIT) {
+                        handleQuit();
+                    } else {
+                        sendResponse("503 请先发送MAIL FROM命令");
+                    }
+                    break;
+                case RCPT:
+                    if (cmd == RCPT) {
+                        handleRcptTo(line);
+                    } else if (cmd == DATA) {
+                        if (recipients.isEmpty()) {
+                            sendResponse("503 请先发送RCPT TO命令");
+                        } else if (binaryMime) {
+                            sendResponse("503 BODY=BINARYMIME的邮件必须使用BDAT发送");
+                        } else {
+                            handleData();
+                        }
+                    } else if (cmd == RSET) {
+                        handleRset();
+                    } else if (cmd == QUIT) {
+                        handleQuit();
+                    } else {
+                        sendResponse("503 请先发送RCPT TO或DATA命令");
+                    }
+                    break;
+                case DATA:
+                    // 数据模式下的命令处理在handleDataLine中
+                    break;
+                case BDAT:
+                    if (cmd == RSET) {
+                        handleRset();
+                    } else if (cmd == QUIT) {
+                        handleQuit();
+                    } else {
+                        sendResponse("503 请继续发送BDAT数据块");
+                    }
+                    break;
+            }
+        } catch (Exception e) {
+            log.error("处理SMTP命令失败: {}", e.getMessage());
+            sendResponse("500 处理命令时发生错误");
+        }
+    }
+
+    /**
+     * 处理数据模式下的行，数据直接写入暂存文件
+     */
+    private void handleDataLine(byte[] buf, int off, int len) {
+        if (len == 1 && buf[off] == '.') {
+            // 数据结束标记
+            dataMode = false;
+
+            if (dataOversized) {
+                dataOversized = false;
+                replyForMessage("552 邮件大小超过限制 " + settings.getMaxMailSize() + " 字节");
+                endTransaction();
+                return;
+            }
+            if (dataWriteFailed) {
+                dataWriteFailed = false;
+                replyForMessage("451 本地处理错误，请稍后重试");
+                endTransaction();
+                return;
+            }
+            acceptMessage();
+            return;
+        }
+
+        if (dataOversized || dataWriteFailed) {
+            // 超出大小限制或写入失败后只读取并丢弃剩余数据，直到结束标记
+            return;
+        }
+        if (spool.size() + len + 2 > settings.getMaxMailSize()) {
+            log.warn("SMTP邮件超过大小限制 {} 字节，丢弃剩余数据: {}", settings.getMaxMailSize(), channel.remoteAddress());
+            dataOversized = true;
+            discardSpool();
+            return;
+        }
+
+        try {
+            spool.writeDataLine(buf, off, len);
+        } catch (IOException e) {
+            // 写入失败后继续读取直到结束标记，再向客户端报告错误
+            log.error("写入SMTP暂存文件失败: {}", e.getMessage());
+            dataWriteFailed = true;
+            discardSpool();
+        }
+    }
+
+    /**
+     * 处理EHLO/HELO命令，LMTP的LHLO与EHLO相同
+     */
+    private void handleEhloHelo(int cmd, CommandLine line) {
+        if (!line.hasArg()) {
+            sendResponse("501 参数不能为空");
+            return;
+        }
+
+        if (cmd == EHLO || cmd == LHLO) {
+            // EHLO命令，支持扩展SMTP；LMTP客户端总是流水线发送命令
+            sendResponse("250-" + settings.getDomain());
+            sendResponse("250-SIZE " + settings.getMaxMailSize());
+            sendResponse("250-8BITMIME");
+            sendResponse("250-PIPELINING");
+            sendResponse("250-CHUNKING");
+            sendResponse("250-BINARYMIME");
+            if (channel.canStartTls()) {
+                sendResponse("250-STARTTLS");
+            }
+            sendResponse("250 HELP");
+        } else {
+            // HELO命令，基本SMTP
+            sendResponse("250 " + settings.getDomain() + " Hello " + line.arg());
+        }
+    }
+
+    /**
+     * 处理MAIL FROM命令，支持SIZE参数（RFC 1870）
+     */
+    private void handleMailFrom(CommandLine line) {
+        if (!line.parsePath("FROM:")) {
+            sendResponse("501 无效的MAIL FROM命令");
+            return;
+        }
+
+        // 声明的大小超过限制时在传输数据之前拒绝
+        boolean binary = false;
+        while (line.nextToken()) {
+            if (line.tokenKeyIs("BODY")) {
+                if (!line.tokenValueIs("7BIT") && !line.tokenValueIs("8BITMIME")
+                        && !line.tokenValueIs("BINARYMIME")) {
+                    sendResponse("501 无效的BODY参数");
+                    return;
+                }
+                binary = line.tokenValueIs("BINARYMIME");
+            } else if (line.tokenKeyIs("SIZE")) {
+                long declaredSize = line.tokenValueAsLong();
+                if (declaredSize < 0) {
+                    sendResponse("501 无效的SIZE参数");
+                    return;
+                }
+                if (declaredSize > settings.getMaxMailSize()) {
+                    sendResponse("552 邮件大小超过限制 " + settings.getMaxMailSize() + " 字节");
+                    return;
+                }
+            }
+        }
+
+        this.sender = line.path();
+        this.binaryMime = binary;
+        state = SmtpState.RCPT;
+        sendResponse("250 OK");
+    }
+
+    /**
+     * 处理RCPT TO命令
+     */
+    private void handleRcptTo(CommandLine line) {
+        if (!line.parsePath("TO:") || line.pathLength() == 0) {
+            sendResponse("501 无效的RCPT TO命令");
+            return;
+        }
+
+        // 收件人在本批命令处理完毕时统一查询，响应按命令顺序补发
+        pendingRecipients.add(line.path());
+        if (pendingRecipients.size() >= MAX_PENDING_RECIPIENTS) {
+            resolvePendingRecipients();
+        }
+    }
+
+    /**
+     * 用一次查询解析本批流水线命令中的所有收件人，并按顺序写出RCPT响应
+     */
+    private void resolvePendingRecipients() {
+        if (pendingRecipients.isEmpty()) {
+            return;
+        }
+
+        Set<String> usernames = new HashSet<>();
+        for (String address : pendingRecipients) {
+            usernames.add(extractUsername(address));
+        }
+        Map<String, User> existing = new HashMap<>();
+        for (User user : dbExecutor.call(() -> userRepository.findByUsernameIn(usernames))) {
+            existing.put(user.getUsername().toLowerCase(Locale.ROOT), user);
+        }
+
+        // 解析到的用户随收件人一起保存，投递时不再重复查询
+        for (String address : pendingRecipients) {
+            User user = existing.get(extractUsername(address).toLowerCase(Locale.ROOT));
+            if (user != null) {
+                recipients.add(new Recipient(address, user));
+                channel.write("250 OK");
+            } else {
+                channel.write("550 收件人不存在");
+            }
+        }
+        pendingRecipients.clear();
+    }
+
+    /**
+     * 处理DATA命令
+     */
+    private void handleData() {
+        try {
+            spool = MessageSpool.create(settings.getSpoolDir());
+        } catch (IOException e) {
+            log.error("创建SMTP暂存文件失败: {}", e.getMessage());
+            sendResponse("451 本地处理错误，请稍后重试");
+            return;
+        }
+        dataMode = true;
+        state = SmtpState.DATA;
+        sendResponse("354 开始邮件输入，以.结束");
+    }
+
+    /**
+     * 处理BDAT命令：记录数据块大小，随后的字节由onBinary原样接收
+     */
+    private void handleBdat(CommandLine line) {
+        long size = line.nextToken() ? line.tokenAsLong() : -1;
+        boolean last = false;
+        if (size >= 0 && line.nextToken()) {
+            last = line.tokenIs("LAST");
+            if (!last || line.nextToken()) {
+                size = -1;
+            }
+        }
+        if (size < 0) {
+            // 无法确定数据块长度，只能按命令错误处理
+            sendResponse("501 语法错误，应为 BDAT <大小> [LAST]");
+            return;
+        }
+
+        chunkRemaining = size;
+        chunkLast = last;
+        chunkError = null;
+        if (state == SmtpState.RCPT && !recipients.isEmpty()) {
+            // 第一个数据块开始一封新邮件
+            try {
+                spool = MessageSpool.create(settings.getSpoolDir());
+                state = SmtpState.BDAT;
+            } catch (IOException e) {
+                log.error("创建SMTP暂存文件失败: {}", e.getMessage());
+                chunkError = "451 本地处理错误，请稍后重试";
+            }
+        } else if (state != SmtpState.BDAT) {
+            chunkError = state == SmtpState.RCPT ? "503 请先发送RCPT TO命令" : "503 请先发送MAIL FROM命令";
+        }
+        if (chunkError == null && spool.size() + size > settings.getMaxMailSize()) {
+            log.warn("SMTP邮件超过大小限制 {} 字节，丢弃剩余数据: {}", settings.getMaxMailSize(), channel.remoteAddress());
+            chunkError = "552 邮件大小超过限制 " + settings.getMaxMailSize() + " 字节";
+            discardSpool();
+        }
+        if (size == 0) {
+            finishChunk();
+        }
+    }
+
+    /**
+     * 一个BDAT数据块接收完毕：出错时结束本次事务，最后一块时提交邮件
+     */
+    private void finishChunk() {
+        if (chunkError != null) {
+            String error = chunkError;
+            chunkError = null;
+            // 数据块出错后发送方不会再发送后续数据块，本次事务作废
+            if (state == SmtpState.BDAT) {
+                if (chunkLast) {
+                    replyForMessage(error);
+                } else {
+                    sendResponse(error);
+                }
+                endTransaction();
+            } else {
+                sendResponse(error);
+            }
+            return;
+        }
+        if (!chunkLast) {
+            sendResponse("250 OK 已接收 " + spool.size() + " 字节");
+            return;
+        }
+        acceptMessage();
+    }
+
+    /**
+     * 邮件数据接收完毕，落盘后交给投递队列并回复客户端；DATA和BDAT共用。
+     * LMTP按RCPT顺序为每个收件人回复一次，邮箱不可用的收件人单独拒绝，不影响其他收件人
+     */
+    private void acceptMessage() {
+        String[] rejections = new String[recipients.size()];
+        String failure = null;
+        try {
+            spool.finish();
+            List<Recipient> accepted = lmtp ? checkMailboxes(rejections) : recipients;
+            // 邮件已落盘，交给投递队列后即可确认接收
+            if (!accepted.isEmpty() && !saveMail(accepted)) {
+                failure = "451 服务器繁忙，请稍后重试";
+            }
+        } catch (IOException | RuntimeException e) {
+            log.error("保存SMTP邮件失败: {}", e.getMessage());
+            failure = "451 本地处理错误，请稍后重试";
+        }
+
+        if (!lmtp) {
+            sendResponse(failure != null ? failure : "250 OK 邮件已接收");
+        } else {
+            for (int i = 0; i < rejections.length; i++) {
+                if (rejections[i] != null) {
+                    sendResponse(rejections[i]);
+                } else if (failure != null) {
+                    sendResponse(failure);
+                } else {
+                    sendResponse("250 OK <" + recipients.get(i).address() + "> 邮件已投递");
+                }
+            }
+        }
+        // 事务结束，下一封邮件重新指定发件人和收件人
+        endTransaction();
+    }
+
+    /**
+     * LMTP在数据接收完毕时逐个检查收件人邮箱：账户停用或容量不足的收件人不投递
+     * @param rejections 按收件人顺序填入拒绝响应，可投递的收件人为null
+     * @return 可投递的收件人
+     */
+    private List<Recipient> checkMailboxes(String[] rejections) {
+        long sizeKb = (spool.size() + 1023) / 1024;
+        List<Recipient> accepted = new ArrayList<>(recipients.size());
+        for (int i = 0; i < recipients.size(); i++) {
+            Recipient recipient = recipients.get(i);
+            User user = recipient.user();
+            if (user.getStatus() != User.UserStatus.ACTIVE) {
+                rejections[i] = "550 <" + recipient.address() + "> 邮箱已停用";
+            } else if (user.getMailboxSize() != null && user.getUsedSize() != null
+                    && user.getUsedSize() + sizeKb > user.getMailboxSize() * 1024L) {
+                // 容量不足是临时错误，上游MTA稍后会重试这个收件人
+                rejections[i] = "452 <" + recipient.address() + "> 邮箱空间不足";
+            } else {
+                accepted.add(recipient);
+            }
+        }
+        return accepted;
+    }
+
+    /**
+     * 对整封邮件作出同一个回复：SMTP只回复一次，LMTP为每个收件人各回复一次
+     */
+    private void replyForMessage(String response) {
+        int count = lmtp ? Math.max(recipients.size(), 1) : 1;
+        for (int i = 0; i < count; i++) {
+            sendResponse(response);
+        }
+    }
+
+    private String protocol() {
+        return lmtp ? "LMTP" : "SMTP";
+    }
+
+    /**
+     * 结束当前邮件事务，回到等待MAIL FROM的状态
+     */
+    private void endTransaction() {
+        discardSpool();
+        sender = null;
+        recipients.clear();
+        binaryMime = false;
+        state = SmtpState.MAIL;
+    }
+
+    /**
+     * 处理RSET命令
+     */
+    private void handleRset() {
+        pendingRecipients.clear();
+        endTransaction();
+        dataMode = false;
+        dataOversized = false;
+        dataWriteFailed = false;
+        sendResponse("250 OK");
+    }
+
+    /**
+     * 处理STARTTLS命令（RFC 3207）：升级后丢弃之前的所有状态，客户端必须重新发送EHLO
+     */
+    private void handleStartTls(CommandLine line) {
+        if (line.hasArg()) {
+            sendResponse("501 STARTTLS不接受参数");
+            return;
+        }
+        if (!channel.canStartTls()) {
+            sendResponse(channel.isSecure() ? "503 连接已加密" : "502 不支持STARTTLS");
+            return;
+        }
+        sendResponse("220 Ready to start TLS");
+        channel.startTls();
+        endTransaction();
+        state = SmtpState.CONNECTION;
+    }
+
+    /**
+     * 处理QUIT命令
+     */
+    private void handleQuit() {
+        sendResponse("221 " + settings.getDomain() + " " + protocol() + " Server Closing Connection");
+        closed = true;
+        channel.close();
+    }
+
+    /**
+     * 处理NOOP命令
+     */
+    private void handleNoop() {
+        sendResponse("250 OK");
+    }
+
+    /**
+     * 处理VRFY命令
+     */
+    private void handleVrfy(String arg) {
+        if (arg == null || arg.isEmpty()) {
+            sendResponse("501 参数不能为空");
+            return;
+        }
+
+        String username = extractUsername(arg);
+        if (dbExecutor.call(() -> userRepository.existsByUsername(username))) {
+            sendResponse("252 无法验证，但将尝试投递");
+        } else {
+            sendResponse("550 收件人不存在");
+        }
+    }
+
+    /**
+     * 发送响应给客户端
+     */
+    private void sendResponse(String response) {
+        // 保证延迟的RCPT响应先于后续响应发出
+        resolvePendingRecipients();
+        channel.write(response);
+    }
+
+    /**
+     * 把已落盘的邮件交给投递队列
+     * @return 队列已满时返回false
+     */
+    private boolean saveMail(List<Recipient> accepted) throws IOException {
+        // 邮件头在接收数据时已解析完成
+        MessageHeaderParser parsed = spool.headers();
+        String subject = parsed.subject() != null ? truncate(parsed.subject(), MAX_SUBJECT_LENGTH) : "无主题";
+        long size = spool.size();
+        LocalDateTime now = LocalDateTime.now();
+
+        // 为每个收件人创建邮件，收件人用户已在RCPT TO阶段解析
+        List<Mail> mails = new ArrayList<>(accepted.size());
+        for (Recipient recipient : accepted) {
+            Mail mail = new Mail();
+            mail.setSenderEmail(sender); // 设置发件人邮箱地址
+            mail.setReceiverEmail(recipient.address()); // 设置收件人邮箱地址
+            mail.setReceiver(recipient.user()); // 设置收件人用户对象
+            mail.setSubject(subject);
+            mail.setSentAt(now);
+            mail.setReceivedAt(now);
+            mail.setFolder(Mail.MailFolder.INBOX);
+            mail.setIsRead(false);
+            mail.setHeaders(new MailHeaders(truncate(parsed.from(), MAX_HEADER_LENGTH), parsed.date(),
+                    truncate(parsed.messageId(), MAX_HEADER_LENGTH), truncate(parsed.inReplyTo(), MAX_HEADER_LENGTH)));
+
+            // 计算邮件大小
+            mail.setSize((int) ((size + 1023) / 1024)); // 转换为KB
+            mails.add(mail);
+        }
+
+        // 暂存文件交给投递队列，由投递线程写入数据库后删除
+        if (!deliveryQueue.submit(spool.detach(), mails)) {
+            return false;
+        }
+        spool = null;
+        log.info("已接收邮件: {} 从 {} 到 {} 个收件人", subject, sender, mails.size());
+        return true;
+    }
+
+    private static String truncate(String value, int maxLength) {
+        return value == null || value.length() <= maxLength ? value : value.substring(0, maxLength);
+    }
+
+    /**
+     * 从邮件地址中提取用户名
+     */
+    private String extractUsername(String emailAddress) {
+        int atIndex = emailAddress.indexOf('@');
+        if (atIndex > 0) {
+            return emailAddress.substring(0, atIndex);
+        }
+        return emailAddress;
+    }
+
+    /**
+     * 删除当前的暂存文件
+     */
+    private void discardSpool() {
+        if (spool != null) {
+            spool.discard();
+            spool = null;
+        }
+    }
+
+    /**
+     * 已通过校验的收件人及其对应的本地用户
+     */
+    private record Recipient(String address, User user) {
+    }
+
+    /**
+     * SMTP协议状态
+     */
+    private enum SmtpState {
+        CONNECTION, // 连接阶段
+        MAIL,       // 等待MAIL FROM命令
+        RCPT,       // 等待RCPT TO命令
+        DATA,       // 数据传输阶段
+        BDAT        // BDAT分块传输阶段，等待后续数据块
+    }
+}
@@ -0,0 +1,26 @@
+package com.hnu.mail.service;
+
+import java.nio.file.Path;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * SMTP服务器启动时读取的配置快照，由所有会话共享，避免每个连接都查询配置表
+ */
+@Getter
+@AllArgsConstructor
+class SmtpSettings {
+
+    private final String domain;
+
+    private final Path spoolDir;
+
+    private final long maxMailSize; // 最大邮件大小(字节)
+
+    private final long greetingTimeout; // 连接后等待首个命令的超时(毫秒)
+
+    private final long commandTimeout; // 等待命令的超时(毫秒)
+
+    private final long dataTimeout; // DATA阶段等待数据的超时(毫秒)
+}
@@ -128,12 +128,40 @@ public class SystemConfigService {
     addDefaultConfig(SystemConfig.POP3_SERVER_ENABLED, "true", "是否启用POP3服务器", adminUsername);
     addDefaultConfig(SystemConfig.POP3_SERVER_PORT, "110", "POP3服务器监听端口", adminUsername);
     addDefaultConfig(SystemConfig.POP3_SERVER_MAX_CONNECTIONS, "100", "POP3服务器最大连接数", adminUsername);
+    addDefaultConfig(SystemConfig.POP3_SERVER_MAX_CONNECTIONS_PER_IP, "10", "POP3服务器单个IP最大连接数", adminUsername);
+    addDefaultConfig(SystemConfig.POP3_SERVER_IO_MODE, "blocking", "POP3服务器I/O模式(blocking/virtual)", adminUsername);
+    addDefaultConfig(SystemConfig.POP3_SERVER_TIMEOUT_IDLE, "600", "POP3服务器空闲超时(秒)", adminUsername);
 
     // SMTP服务器默认配置
     addDefaultConfig(SystemConfig.SMTP_SERVER_ENABLED, "true", "是否启用SMTP服务器", adminUsername);
     addDefaultConfig(SystemConfig.SMTP_SERVER_PORT, "25", "SMTP服务器监听端口", adminUsername);
     addDefaultConfig(SystemConfig.SMTP_SERVER_DOMAIN, "localhost", "SMTP服务器域名", adminUsername);
     addDefaultConfig(SystemConfig.SMTP_SERVER_MAX_CONNECTIONS, "100", "SMTP服务器最大连接数", adminUsername);
+    addDefaultConfig(SystemConfig.SMTP_SERVER_MAX_CONNECTIONS_PER_IP, "10", "SMTP服务器单个IP最大连接数", adminUsername);
+    addDefaultConfig(SystemConfig.SMTP_SERVER_IO_MODE, "blocking", "SMTP服务器I/O模式(blocking/virtual/nio)", adminUsername);
+    addDefaultConfig(SystemConfig.SMTP_SERVER_NIO_THREADS,
+        String.valueOf(Runtime.getRuntime().availableProcessors()), "SMTP服务器NIO事件循环线程数", adminUsername);
+    addDefaultConfig(SystemConfig.SMTP_SERVER_NIO_WORKERS, "16", "SMTP服务器NIO会话工作线程数", adminUsername);
+    addDefaultConfig(SystemConfig.SMTP_SERVER_SPOOL_DIR,
+        java.nio.file.Paths.get(System.getProperty("java.io.tmpdir"), "mail-spool").toString(),
+        "SMTP服务器邮件暂存目录", adminUsername);
+    addDefaultConfig(SystemConfig.SMTP_SERVER_TIMEOUT_GREETING, "60", "SMTP服务器连接后等待首个命令的超时(秒)", adminUsername);
+    addDefaultConfig(SystemConfig.SMTP_SERVER_TIMEOUT_COMMAND, "300", "SMTP服务器等待命令的超时(秒)", adminUsername);
+    addDefaultConfig(SystemConfig.SMTP_SERVER_TIMEOUT_DATA, "180", "SMTP服务器DATA阶段等待数据的超时(秒)", adminUsername);
+    addDefaultConfig(SystemConfig.SMTP_SERVER_STARTTLS_ENABLED, "true", "SMTP服务器是否提供STARTTLS(需配置密钥库)", adminUsername);
+    addDefaultConfig(SystemConfig.POP3_SERVER_STLS_ENABLED, "true", "POP3服务器是否提供STLS(需配置密钥库)", adminUsername);
+
+    // LMTP默认配置
+    addDefaultConfig(SystemConfig.LMTP_SERVER_ENABLED, "false", "是否启用LMTP服务器(RFC 2033)", adminUsername);
+    addDefaultConfig(SystemConfig.LMTP_SERVER_PORT, "24", "LMTP服务器监听端口", adminUsername);
+    addDefaultConfig(SystemConfig.LMTP_SERVER_MAX_CONNECTIONS, "50", "LMTP服务器最大连接数(不限制单个IP)", adminUsername);
+
+    // TLS默认配置
+    addDefaultConfig(SystemConfig.TLS_KEYSTORE_PATH, "", "TLS密钥库路径，为空时不提供STARTTLS/STLS", adminUsername);
+    addDefaultConfig(SystemConfig.TLS_KEYSTORE_PASSWORD, "", "TLS密钥库密码", adminUsername);
+    addDefaultConfig(SystemConfig.TLS_KEYSTORE_TYPE, "PKCS12", "TLS密钥库类型(PKCS12/JKS)", adminUsername);
+    addDefaultConfig(SystemConfig.TLS_SESSION_CACHE_SIZE, "10000", "TLS服务端会话缓存最大数量", adminUsername);
+    addDefaultConfig(SystemConfig.TLS_SESSION_TIMEOUT, "3600", "TLS会话缓存过期时间(秒)", adminUsername);
   }
 
   private void addDefaultConfig(String key, String value, String description, String username) {
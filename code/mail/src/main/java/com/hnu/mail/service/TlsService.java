@@ -0,0 +1,68 @@
+package com.hnu.mail.service;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.springframework.stereotype.Service;
+
+import com.hnu.mail.model.SystemConfig;
+import com.hnu.mail.server.TlsContext;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 协议服务器共用的TLS配置：SMTP和POP3使用同一个SSLContext，
+ * 因此共享会话缓存，客户端在两个服务之间切换时也能复用会话
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class TlsService {
+
+  private final SystemConfigService configService;
+
+  private TlsContext context;
+  private boolean loaded;
+
+  /**
+   * 按系统配置加载密钥库，只在第一次调用时加载
+   * @return 未配置密钥库或加载失败时返回null，此时服务器不提供STARTTLS/STLS
+   */
+  public synchronized TlsContext context() {
+    if (loaded) {
+      return context;
+    }
+    loaded = true;
+    String path = configService.getConfigValue(SystemConfig.TLS_KEYSTORE_PATH, "");
+    if (path.isBlank()) {
+      log.info("未配置TLS密钥库，STARTTLS/STLS不可用");
+      return null;
+    }
+    try {
+      context = TlsContext.load(Paths.get(path),
+          configService.getConfigValue(SystemConfig.TLS_KEYSTORE_PASSWORD, ""),
+          configService.getConfigValue(SystemConfig.TLS_KEYSTORE_TYPE, "PKCS12"),
+          Integer.parseInt(configService.getConfigValue(SystemConfig.TLS_SESSION_CACHE_SIZE, "10000")),
+          Integer.parseInt(configService.getConfigValue(SystemConfig.TLS_SESSION_TIMEOUT, "3600")));
+      log.info("已加载TLS密钥库: {}", path);
+    } catch (IOException | RuntimeException e) {
+      log.error("加载TLS密钥库失败，STARTTLS/STLS不可用: {}", e.getMessage());
+    }
+    return context;
+  }
+
+  /**
+   * 握手次数和会话复用命中率，用于评估会话缓存大小
+   */
+  public synchronized Map<String, Object> report() {
+    Map<String, Object> report = new LinkedHashMap<>();
+    report.put("enabled", context != null);
+    if (context != null) {
+      report.putAll(context.report());
+    }
+    return report;
+  }
+}
@@ -0,0 +1,114 @@
+package com.hnu.mail.service;
+
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import jakarta.annotation.PreDestroy;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordingStream;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 虚拟线程载体钉住（pinning）监控。
+ * 协议服务器以虚拟线程模式启动时开启JFR事件流，统计jdk.VirtualThreadPinned事件，
+ * 按发生位置汇总，供管理接口输出报告。
+ */
+@Service
+@Slf4j
+public class VirtualThreadPinningMonitor {
+
+  private static final int REPORT_TOP_SITES = 20;
+
+  private final Duration threshold;
+  private final LongAdder eventCount = new LongAdder();
+  private final LongAdder totalPinnedNanos = new LongAdder();
+  private final Map<String, LongAdder> eventsBySite = new ConcurrentHashMap<>();
+  private RecordingStream stream;
+
+  public VirtualThreadPinningMonitor(@Value("${app.server.pinning-threshold-ms:20}") long thresholdMs) {
+    this.threshold = Duration.ofMillis(thresholdMs);
+  }
+
+  /**
+   * 开始监控，重复调用无副作用
+   */
+  public synchronized void start() {
+    if (stream != null) {
+      return;
+    }
+    stream = new RecordingStream();
+    stream.enable("jdk.VirtualThreadPinned").withThreshold(threshold).withStackTrace();
+    stream.onEvent("jdk.VirtualThreadPinned", this::onPinned);
+    stream.startAsync();
+    log.info("虚拟线程钉住监控已启动，阈值: {} ms", threshold.toMillis());
+  }
+
+  @PreDestroy
+  public synchronized void stop() {
+    if (stream != null) {
+      stream.close();
+      stream = null;
+    }
+  }
+
+  public boolean isRunning() {
+    return stream != null;
+  }
+
+  /**
+   * 生成钉住事件报告
+   */
+  public Map<String, Object> report() {
+    Map<String, Object> report = new LinkedHashMap<>();
+    report.put("monitoring", isRunning());
+    report.put("thresholdMs", threshold.toMillis());
+    report.put("pinnedEvents", eventCount.sum());
+    report.put("totalPinnedMs", Duration.ofNanos(totalPinnedNanos.sum()).toMillis());
+
+    Map<String, Long> topSites = new LinkedHashMap<>();
+    eventsBySite.entrySet().stream()
+        .sorted(Comparator.comparingLong((Map.Entry<String, LongAdder> e) -> e.getValue().sum()).reversed())
+        .limit(REPORT_TOP_SITES)
+        .forEach(e -> topSites.put(e.getKey(), e.getValue().sum()));
+    report.put("topSites", topSites);
+    return report;
+  }
+
+  private void onPinned(RecordedEvent event) {
+    eventCount.increment();
+    totalPinnedNanos.add(event.getDuration().toNanos());
+    String site = pinnedSite(event);
+    eventsBySite.computeIfAbsent(site, key -> new LongAdder()).increment();
+    log.warn("虚拟线程被钉住 {} ms: {}", event.getDuration().toMillis(), site);
+  }
+
+  /**
+   * 取调用栈中第一个应用代码帧作为钉住位置，找不到时取栈顶
+   */
+  private String pinnedSite(RecordedEvent event) {
+    if (event.getStackTrace() == null) {
+      return "unknown";
+    }
+    List<RecordedFrame> frames = event.getStackTrace().getFrames();
+    for (RecordedFrame frame : frames) {
+      if (frame.getMethod().getType().getName().startsWith("com.hnu.mail")) {
+        return describe(frame);
+      }
+    }
+    return frames.isEmpty() ? "unknown" : describe(frames.get(0));
+  }
+
+  private String describe(RecordedFrame frame) {
+    return frame.getMethod().getType().getName() + "." + frame.getMethod().getName()
+        + ":" + frame.getLineNumber();
+  }
+}
@@ -4,8 +4,12 @@ CREATE DATABASE IF NOT EXISTS mail_system DEFAULT CHARACTER SET utf8mb4;
 USE mail_system;
 
 -- 删除现有表（按依赖顺序）
+DROP TABLE IF EXISTS outbound_mail_attachments;
+DROP TABLE IF EXISTS outbound_mails;
 DROP TABLE IF EXISTS attachments;
+DROP TABLE IF EXISTS mailbox_stats;
 DROP TABLE IF EXISTS mails;
+DROP TABLE IF EXISTS mail_bodies;
 DROP TABLE IF EXISTS filter_rules;
 DROP TABLE IF EXISTS system_logs;
 DROP TABLE IF EXISTS users;
@@ -29,13 +33,23 @@ CREATE TABLE users (
                        INDEX idx_username (username)
 ) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4;
 
+-- 邮件正文表（按内容哈希单实例存储，多封邮件共用）
+CREATE TABLE mail_bodies (
+                       id BIGINT PRIMARY KEY AUTO_INCREMENT,
+                       hash CHAR(64) NOT NULL UNIQUE,
+                       content LONGTEXT,
+                       size BIGINT,
+                       ref_count INT NOT NULL DEFAULT 0,
+                       created_at DATETIME DEFAULT CURRENT_TIMESTAMP
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4;
+
 -- 邮件表
 CREATE TABLE mails (
                        id BIGINT PRIMARY KEY AUTO_INCREMENT,
                        subject VARCHAR(200) NOT NULL,
-                       content TEXT,
+                       body_id BIGINT,
                        sender_id BIGINT NOT NULL,
-                       receiver_id BIGINT NOT NULL,
+                       receiver_id BIGINT,
                        sender_email VARCHAR(100),
                        receiver_email VARCHAR(100),
                        is_read BOOLEAN DEFAULT FALSE,
@@ -45,13 +59,33 @@ CREATE TABLE mails (
                        sent_at DATETIME DEFAULT CURRENT_TIMESTAMP,
                        received_at DATETIME,
                        size INT,
+                       octets BIGINT,
+                       raw_file VARCHAR(100),
                        folder ENUM('INBOX', 'SENT', 'DRAFT', 'TRASH', 'SPAM') DEFAULT 'INBOX',
+                       header_from VARCHAR(255),
+                       header_date DATETIME,
+                       message_id VARCHAR(255),
+                       in_reply_to VARCHAR(255),
                        FOREIGN KEY (sender_id) REFERENCES users(id) ON DELETE CASCADE,
                        FOREIGN KEY (receiver_id) REFERENCES users(id) ON DELETE CASCADE,
+                       FOREIGN KEY (body_id) REFERENCES mail_bodies(id),
+                       INDEX idx_body (body_id),
                        INDEX idx_sender (sender_id),
                        INDEX idx_receiver (receiver_id),
                        INDEX idx_folder (folder),
-                       INDEX idx_sent_at (sent_at)
+                       INDEX idx_sent_at (sent_at),
+                       INDEX idx_message_id (message_id),
+                       INDEX idx_in_reply_to (in_reply_to),
+                       -- 覆盖POP3邮件列表查询，按ID顺序扫描，不回表
+                       INDEX idx_maildrop (receiver_id, folder, is_deleted, id, body_id, octets)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4;
+
+-- POP3邮箱计数器（收件箱中未删除的邮件），随投递和删除增量维护
+CREATE TABLE mailbox_stats (
+                               user_id BIGINT PRIMARY KEY,
+                               message_count BIGINT NOT NULL DEFAULT 0,
+                               total_octets BIGINT NOT NULL DEFAULT 0,
+                               FOREIGN KEY (user_id) REFERENCES users(id) ON DELETE CASCADE
 ) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4;
 
 -- 附件表
@@ -98,6 +132,32 @@ CREATE TABLE filter_rules (
                               INDEX idx_active (is_active)
 ) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4;
 
+-- 发件箱表（待外发的邮件，发送成功后删除）
+CREATE TABLE outbound_mails (
+                                id BIGINT PRIMARY KEY AUTO_INCREMENT,
+                                lane ENUM('INTERACTIVE', 'BULK') NOT NULL DEFAULT 'INTERACTIVE',
+                                status ENUM('PENDING', 'FAILED') NOT NULL DEFAULT 'PENDING',
+                                from_address VARCHAR(100),
+                                to_address VARCHAR(100) NOT NULL,
+                                subject VARCHAR(200),
+                                content LONGTEXT,
+                                attempts INT DEFAULT 0,
+                                next_attempt_at DATETIME DEFAULT CURRENT_TIMESTAMP,
+                                last_error VARCHAR(500),
+                                created_at DATETIME DEFAULT CURRENT_TIMESTAMP,
+                                INDEX idx_status_next (status, next_attempt_at)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4;
+
+-- 发件箱附件表（引用已保存在本地的附件文件）
+CREATE TABLE outbound_mail_attachments (
+                                           outbound_mail_id BIGINT NOT NULL,
+                                           filename VARCHAR(255),
+                                           file_type VARCHAR(100),
+                                           file_path VARCHAR(500),
+                                           FOREIGN KEY (outbound_mail_id) REFERENCES outbound_mails(id) ON DELETE CASCADE,
+                                           INDEX idx_outbound_mail (outbound_mail_id)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4;
+
 -- 插入默认管理员账户 (密码: admin123)
 INSERT INTO users (username, email, password, nickname, role)
 VALUES ('admin', 'admin@test.com',
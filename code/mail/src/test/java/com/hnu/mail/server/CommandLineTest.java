@@ -0,0 +1,184 @@
+package com.hnu.mail.server;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+class CommandLineTest {
+
+    private static final int MAIL = 'M' << 24 | 'A' << 16 | 'I' << 8 | 'L';
+    private static final int RCPT = 'R' << 24 | 'C' << 16 | 'P' << 8 | 'T';
+    private static final int TOP = 'T' << 24 | 'O' << 16 | 'P' << 8;
+
+    private static final byte[][] COMMANDS = {
+            bytes("MAIL FROM:<sender@remote.com> SIZE=1024 BODY=8BITMIME"),
+            bytes("RCPT TO:<user1@test.com>"),
+            bytes("DATA"),
+            bytes("RETR 17"),
+            bytes("LIST"),
+    };
+
+    private final CommandLine line = new CommandLine();
+
+    @Test
+    void testVerbIsCaseInsensitiveAndPacked() {
+        assertEquals(MAIL, parse("mail FROM:<a@b>").verb());
+        assertEquals(RCPT, parse("  RcPt TO:<a@b>  ").verb());
+        assertEquals(TOP, parse("top 1 10").verb());
+        assertEquals(0, parse("STARTTLS").verb());
+        assertTrue(line.verbIs("STARTTLS"));
+        assertEquals(0, parse("").verb());
+        assertEquals(0, parse("HEL0 x").verb());
+    }
+
+    @Test
+    void testArguments() {
+        parse("USER   alice  ");
+        assertTrue(line.hasArg());
+        assertEquals("alice", line.arg());
+
+        parse("LIST");
+        assertFalse(line.hasArg());
+        assertNull(line.arg());
+
+        assertEquals(42, parse("RETR 42").argAsInt());
+        assertEquals(-1, parse("RETR -1").argAsInt());
+        assertEquals(-1, parse("RETR abc").argAsInt());
+        assertEquals(-1, parse("RETR 99999999999").argAsInt());
+    }
+
+    @Test
+    void testPathAndParameters() {
+        parse("MAIL from: <sender@remote.com> size=2048 BODY=binarymime");
+        assertTrue(line.parsePath("FROM:"));
+        assertEquals("sender@remote.com", line.path());
+
+        assertTrue(line.nextToken());
+        assertTrue(line.tokenKeyIs("SIZE"));
+        assertEquals(2048, line.tokenValueAsLong());
+        assertTrue(line.nextToken());
+        assertTrue(line.tokenKeyIs("BODY"));
+        assertTrue(line.tokenValueIs("BINARYMIME"));
+        assertFalse(line.nextToken());
+
+        // 不带尖括号的地址和空的反向路径
+        parse("MAIL FROM:bare@remote.com");
+        assertTrue(line.parsePath("FROM:"));
+        assertEquals("bare@remote.com", line.path());
+        parse("MAIL FROM:<>");
+        assertTrue(line.parsePath("FROM:"));
+        assertEquals(0, line.pathLength());
+
+        assertFalse(parse("MAIL TO:<a@b>").parsePath("FROM:"));
+        assertFalse(parse("MAIL FROM:<a@b").parsePath("FROM:"));
+    }
+
+    @Test
+    void testTokens() {
+        parse("BDAT 1000 LAST");
+        assertTrue(line.nextToken());
+        assertEquals(1000, line.tokenAsLong());
+        assertTrue(line.nextToken());
+        assertTrue(line.tokenIs("LAST"));
+        assertFalse(line.nextToken());
+    }
+
+    /**
+     * 对比原先基于String.split的解析方式，比较每条命令分配的字节数
+     */
+    @Test
+    void testParsingDoesNotAllocate() {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().threadId();
+        int iterations = 200_000;
+
+        // 预热，让两种实现都完成JIT编译
+        runByteParser(iterations);
+        runStringParser(iterations);
+
+        long before = threads.getThreadAllocatedBytes(threadId);
+        long sink = runByteParser(iterations);
+        long byteAllocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        before = threads.getThreadAllocatedBytes(threadId);
+        runStringParser(iterations);
+        long stringAllocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        // 解析本身不分配对象，只允许测量调用本身的少量开销
+        assertTrue(sink > 0);
+        assertTrue(byteAllocated < 4096, "解析过程中分配了 " + byteAllocated + " 字节");
+        assertTrue(stringAllocated > byteAllocated);
+    }
+
+    private long runByteParser(int iterations) {
+        long sink = 0;
+        for (int i = 0; i < iterations; i++) {
+            for (byte[] command : COMMANDS) {
+                line.parse(command, 0, command.length);
+                int verb = line.verb();
+                sink += verb;
+                if (verb == MAIL && line.parsePath("FROM:")) {
+                    sink += line.pathLength();
+                    while (line.nextToken()) {
+                        if (line.tokenKeyIs("SIZE")) {
+                            sink += line.tokenValueAsLong();
+                        }
+                    }
+                } else if (verb == RCPT && line.parsePath("TO:")) {
+                    sink += line.pathLength();
+                } else if (line.hasArg()) {
+                    sink += line.argAsInt();
+                }
+            }
+        }
+        return sink;
+    }
+
+    /**
+     * 原先会话中的解析方式：trim、正则split、toUpperCase和substring
+     */
+    private long runStringParser(int iterations) {
+        long sink = 0;
+        for (int i = 0; i < iterations; i++) {
+            for (byte[] command : COMMANDS) {
+                String text = new String(command, StandardCharsets.UTF_8).trim();
+                String[] parts = text.split("\\s+", 2);
+                String cmd = parts[0].toUpperCase();
+                String arg = parts.length > 1 ? parts[1] : null;
+                sink += cmd.hashCode();
+                if ("MAIL".equals(cmd) && arg.toUpperCase(Locale.ROOT).startsWith("FROM:")) {
+                    String rest = arg.substring(5).trim();
+                    int close = rest.indexOf('>');
+                    sink += rest.substring(1, close).length();
+                    for (String param : rest.substring(close + 1).trim().split("\\s+")) {
+                        if (param.toUpperCase(Locale.ROOT).startsWith("SIZE=")) {
+                            sink += Long.parseLong(param.substring(5));
+                        }
+                    }
+                } else if ("RCPT".equals(cmd) && arg.startsWith("TO:")) {
+                    String to = arg.substring(3).trim();
+                    sink += to.substring(1, to.length() - 1).length();
+                } else if (arg != null) {
+                    sink += Integer.parseInt(arg);
+                }
+            }
+        }
+        return sink;
+    }
+
+    private CommandLine parse(String text) {
+        byte[] bytes = bytes(text);
+        return line.parse(bytes, 0, bytes.length);
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+}
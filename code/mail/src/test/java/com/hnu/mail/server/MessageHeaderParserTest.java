@@ -0,0 +1,104 @@
+package com.hnu.mail.server;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+class MessageHeaderParserTest {
+
+    @Test
+    void testParsesIndexedHeaders() {
+        MessageHeaderParser parser = feed(
+                "Received: from relay.example.com",
+                "  by mx.test.com; Mon, 6 May 2024 10:00:00 +0000",
+                "From: Alice <alice@example.com>",
+                "Subject: weekly",
+                "  report",
+                "Date: Mon, 6 May 2024 18:30:00 +0800 (CST)",
+                "Message-ID: <abc.123@example.com>",
+                "In-Reply-To: <root@example.com> <other@example.com>",
+                "",
+                "Subject: not a header");
+
+        assertEquals("weekly  report", parser.subject());
+        assertEquals("Alice <alice@example.com>", parser.from());
+        assertEquals("abc.123@example.com", parser.messageId());
+        assertEquals("root@example.com", parser.inReplyTo());
+        LocalDateTime expected = ZonedDateTime.of(2024, 5, 6, 10, 30, 0, 0, ZoneId.of("UTC"))
+                .withZoneSameInstant(ZoneId.systemDefault()).toLocalDateTime();
+        assertEquals(expected, parser.date());
+    }
+
+    @Test
+    void testStopsAtBodyAndKeepsFirstOccurrence() {
+        MessageHeaderParser parser = new MessageHeaderParser();
+        assertTrue(feedLine(parser, "Subject: first"));
+        assertTrue(feedLine(parser, "Subject: second"));
+        assertFalse(feedLine(parser, ""));
+        assertFalse(feedLine(parser, "Message-ID: <body@example.com>"));
+        parser.finish();
+
+        assertEquals("first", parser.subject());
+        assertNull(parser.messageId());
+    }
+
+    @Test
+    void testHeadersWithoutBodyAreCompletedOnFinish() {
+        MessageHeaderParser parser = new MessageHeaderParser();
+        feedLine(parser, "Subject: only headers");
+        assertNull(parser.subject());
+        parser.finish();
+        assertEquals("only headers", parser.subject());
+    }
+
+    @Test
+    void testDecodesEncodedWords() {
+        // Base64和Q编码，相邻编码字之间的空白被去掉，编码字与普通文本之间的空白保留
+        assertEquals("你好 world", MessageHeaderParser.decodeWords("=?UTF-8?B?5L2g?= =?UTF-8?B?5aW9?= world"));
+        assertEquals("café au lait", MessageHeaderParser.decodeWords("=?ISO-8859-1?Q?caf=E9_au?= lait"));
+        assertEquals("Re: 周报", MessageHeaderParser.decodeWords("Re: =?gb2312?B?1tyxqA==?="));
+
+        // 一个多字节字符被拆到两个编码字中
+        assertEquals("中", MessageHeaderParser.decodeWords("=?UTF-8?Q?=E4=B8?=\r\n =?UTF-8?Q?=AD?="));
+
+        // 无法识别的编码字保持原样
+        assertEquals("=?unknown-charset?B?AAAA?= x", MessageHeaderParser.decodeWords("=?unknown-charset?B?AAAA?= x"));
+        assertEquals("a =? b", MessageHeaderParser.decodeWords("a =? b"));
+    }
+
+    @Test
+    void testDecodesEncodedSubjectFromStream() {
+        MessageHeaderParser parser = feed(
+                "subject: =?UTF-8?B?5rWL6K+V?=",
+                "\t=?UTF-8?B?6YKu5Lu2?=",
+                "");
+        assertEquals("测试邮件", parser.subject());
+    }
+
+    @Test
+    void testInvalidDateIsIgnored() {
+        MessageHeaderParser parser = feed("Date: yesterday", "");
+        assertNull(parser.date());
+    }
+
+    private static MessageHeaderParser feed(String... lines) {
+        MessageHeaderParser parser = new MessageHeaderParser();
+        for (String line : lines) {
+            feedLine(parser, line);
+        }
+        parser.finish();
+        return parser;
+    }
+
+    private static boolean feedLine(MessageHeaderParser parser, String line) {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        return parser.feed(bytes, 0, bytes.length);
+    }
+}
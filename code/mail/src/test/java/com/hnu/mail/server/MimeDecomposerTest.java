@@ -0,0 +1,168 @@
+package com.hnu.mail.server;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MimeDecomposerTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testPlainMessageIsKeptAsBody() throws Exception {
+        Path spool = spool("msg-1.eml",
+                "Subject: hello",
+                "",
+                "line one",
+                "line two");
+
+        MimeDecomposer.Result result = MimeDecomposer.decompose(spool, tempDir.resolve("att"));
+
+        assertEquals("Subject: hello\n\nline one\nline two\n", result.body());
+        assertTrue(result.attachments().isEmpty());
+    }
+
+    @Test
+    void testBase64AttachmentIsDecodedToFile() throws Exception {
+        byte[] data = new byte[10_000];
+        new Random(42).nextBytes(data);
+        String encoded = Base64.getMimeEncoder(76, "\r\n".getBytes(StandardCharsets.US_ASCII)).encodeToString(data);
+
+        Path spool = spool("msg-2.eml",
+                "Subject: report",
+                "Content-Type: multipart/mixed; boundary=\"b1\"",
+                "",
+                "preamble",
+                "--b1",
+                "Content-Type: text/plain; charset=UTF-8",
+                "",
+                "see attached",
+                "--b1",
+                "Content-Type: application/octet-stream; name=\"data.bin\"",
+                "Content-Disposition: attachment; filename=\"data.bin\"",
+                "Content-Transfer-Encoding: base64",
+                "",
+                encoded,
+                "--b1--",
+                "epilogue");
+
+        MimeDecomposer.Result result = MimeDecomposer.decompose(spool, tempDir.resolve("att"));
+
+        assertEquals(1, result.attachments().size());
+        MimeDecomposer.StoredPart part = result.attachments().get(0);
+        assertEquals("data.bin", part.filename());
+        assertEquals("application/octet-stream", part.contentType());
+        assertEquals(data.length, part.size());
+        assertArrayEquals(data, Files.readAllBytes(part.path()));
+        assertEquals("msg-2-1-data.bin", part.path().getFileName().toString());
+
+        String body = result.body();
+        assertTrue(body.contains("see attached\n--b1\n"));
+        assertTrue(body.contains("Content-Type: message/external-body; access-type=x-mail-attachment\n\n"
+                + "Content-Type: application/octet-stream; name=\"data.bin\"\n"
+                + "Content-Disposition: attachment; filename=\"data.bin\"\n\n--b1--\nepilogue\n"));
+        assertFalse(body.contains("Content-Transfer-Encoding: base64"));
+        assertFalse(body.contains(encoded.substring(0, 76)));
+    }
+
+    @Test
+    void testNestedMultipartAndQuotedPrintable() throws Exception {
+        Path spool = spool("msg-3.eml",
+                "Content-Type: multipart/mixed; boundary=outer",
+                "",
+                "--outer",
+                "Content-Type: multipart/alternative; boundary=\"inner\"",
+                "",
+                "--inner",
+                "Content-Type: text/plain",
+                "",
+                "plain text",
+                "--inner",
+                "Content-Type: text/html",
+                "",
+                "<p>html</p>",
+                "--inner--",
+                "--outer",
+                "Content-Type: text/csv",
+                "Content-Disposition: attachment; filename*=UTF-8''%E6%8A%A5%E8%A1%A8.csv",
+                "Content-Transfer-Encoding: quoted-printable",
+                "",
+                "a,b=",
+                ",c",
+                "caf=C3=A9,2",
+                "--outer--");
+
+        MimeDecomposer.Result result = MimeDecomposer.decompose(spool, tempDir.resolve("att"));
+
+        assertEquals(1, result.attachments().size());
+        MimeDecomposer.StoredPart part = result.attachments().get(0);
+        assertEquals("报表.csv", part.filename());
+        assertEquals("a,b,c\r\ncafé,2", Files.readString(part.path(), StandardCharsets.UTF_8));
+
+        // 内层的文本部分原样保留
+        assertTrue(result.body().contains("--inner\nContent-Type: text/html\n\n<p>html</p>\n--inner--\n--outer\n"));
+    }
+
+    @Test
+    void testInlineImageWithEncodedNameAndRawEncoding() throws Exception {
+        Path spool = spool("msg-4.eml",
+                "Content-Type: multipart/related; boundary=r",
+                "",
+                "--r",
+                "Content-Type: image/png;",
+                " name=\"=?UTF-8?B?5Zu+54mH?=.png\"",
+                "",
+                "first",
+                "second",
+                "--r--");
+
+        MimeDecomposer.Result result = MimeDecomposer.decompose(spool, tempDir.resolve("att"));
+
+        MimeDecomposer.StoredPart part = result.attachments().get(0);
+        assertEquals("图片.png", part.filename());
+        assertEquals("image/png", part.contentType());
+        // 分隔线之前的换行属于分隔线
+        assertEquals("first\r\nsecond", Files.readString(part.path()));
+        assertTrue(result.body().contains("Content-Type: image/png;\n name="));
+    }
+
+    @Test
+    void testDecomposingAgainOverwritesAttachments() throws Exception {
+        Path spool = spool("msg-5.eml",
+                "Content-Type: multipart/mixed; boundary=x",
+                "",
+                "--x",
+                "Content-Type: application/pdf",
+                "Content-Disposition: attachment; filename=\"../../etc/a b.pdf\"",
+                "",
+                "pdf",
+                "--x--");
+        Path dir = tempDir.resolve("att");
+
+        MimeDecomposer.Result first = MimeDecomposer.decompose(spool, dir);
+        MimeDecomposer.Result second = MimeDecomposer.decompose(spool, dir);
+
+        assertEquals(first.attachments().get(0).path(), second.attachments().get(0).path());
+        assertEquals(dir, second.attachments().get(0).path().getParent());
+        assertEquals("msg-5-1-_.._.._etc_a_b.pdf", second.attachments().get(0).path().getFileName().toString());
+        try (var files = Files.list(dir)) {
+            assertEquals(1, files.count());
+        }
+    }
+
+    private Path spool(String name, String... lines) throws Exception {
+        Path file = tempDir.resolve(name);
+        Files.writeString(file, String.join("\r\n", lines) + "\r\n", StandardCharsets.UTF_8);
+        return file;
+    }
+}
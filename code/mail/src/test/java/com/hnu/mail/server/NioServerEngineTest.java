@@ -0,0 +1,99 @@
+package com.hnu.mail.server;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class NioServerEngineTest {
+
+    private static final int COMMANDS = 500;
+    private static final String REPLY = "x".repeat(64 * 1024);
+
+    private final AtomicInteger processed = new AtomicInteger();
+    private NioServerEngine engine;
+    private int port;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        engine = new NioServerEngine("TEST", port, 1, Executors.newFixedThreadPool(2), this::newSession);
+        engine.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        engine.stop();
+    }
+
+    @Test
+    void testClientThatNeverReadsStopsCommandProcessing() throws Exception {
+        try (Socket socket = new Socket()) {
+            socket.setReceiveBufferSize(8 * 1024);
+            socket.connect(new InetSocketAddress("localhost", port));
+
+            // 客户端只发送命令不读取响应；服务器停止读取后写入会阻塞，因此在单独的线程中发送
+            Thread writer = new Thread(() -> {
+                try {
+                    OutputStream out = socket.getOutputStream();
+                    String command = "CMD " + "a".repeat(1000) + "\r\n";
+                    for (int i = 0; i < COMMANDS; i++) {
+                        out.write(command.getBytes(StandardCharsets.US_ASCII));
+                    }
+                    out.flush();
+                } catch (Exception e) {
+                    // 连接在测试结束时关闭
+                }
+            });
+            writer.setDaemon(true);
+            writer.start();
+
+            // 待发送数据超过高水位后不再处理新命令，未发送的响应只有高水位加上套接字缓冲区的量
+            Thread.sleep(1000);
+            int stalled = processed.get();
+            Thread.sleep(300);
+            assertEquals(stalled, processed.get());
+            assertTrue(stalled < COMMANDS / 2, "积压期间仍处理了 " + stalled + " 条命令");
+
+            // 客户端开始读取后继续处理剩余命令，所有响应按顺序到达
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+            for (int i = 0; i < COMMANDS; i++) {
+                assertEquals(REPLY.length(), in.readLine().length());
+            }
+            assertEquals(COMMANDS, processed.get());
+        }
+    }
+
+    private ProtocolSession newSession(SessionChannel channel) {
+        return new ProtocolSession() {
+            @Override
+            public void start() {
+            }
+
+            @Override
+            public void onLine(byte[] buf, int off, int len) {
+                processed.incrementAndGet();
+                channel.write(REPLY);
+            }
+
+            @Override
+            public boolean isClosed() {
+                return false;
+            }
+        };
+    }
+}
@@ -0,0 +1,41 @@
+package com.hnu.mail.server;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class WriteAheadJournalTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void testUnfinishedRecordDoesNotBlockCompaction() throws Exception {
+        Path file = dir.resolve("test.journal");
+        byte[] poison = "poison".getBytes(StandardCharsets.UTF_8);
+        // 一条始终无法完成的记录，其余记录写入后即完成
+        WriteAheadJournal journal = WriteAheadJournal.open(file, List.of(poison), () -> List.of(poison), 1024);
+        try {
+            byte[] done = new byte[100];
+            for (int i = 0; i < 200; i++) {
+                journal.append(done).join();
+            }
+            // 写入了约20KB，重写后只剩未完成的记录和之后追加的少量记录
+            assertTrue(Files.size(file) < 4096, "日志大小 " + Files.size(file));
+        } finally {
+            journal.close();
+        }
+
+        List<byte[]> recovered = WriteAheadJournal.recover(file);
+        assertEquals("poison", new String(recovered.get(0), StandardCharsets.UTF_8));
+        for (byte[] record : recovered.subList(1, recovered.size())) {
+            assertEquals(100, record.length);
+        }
+    }
+}
@@ -30,6 +30,7 @@ import com.hnu.mail.dto.BroadcastMailRequest;
 import com.hnu.mail.dto.StatisticsDto;
 import com.hnu.mail.dto.SystemLogDto;
 import com.hnu.mail.model.Mail;
+import com.hnu.mail.model.OutboundMail;
 import com.hnu.mail.model.SystemLog;
 import com.hnu.mail.model.User;
 import com.hnu.mail.repository.MailRepository;
@@ -52,6 +53,15 @@ class AdminServiceTest {
     @Mock
     private LogService logService;
 
+    @Mock
+    private MailBodyService mailBodyService;
+
+    @Mock
+    private MailDeliveryService deliveryService;
+
+    @Mock
+    private MaildropCache maildropCache;
+
     @InjectMocks
     private AdminService adminService;
 
@@ -232,7 +242,11 @@ class AdminServiceTest {
         assertDoesNotThrow(() -> adminService.deleteUser(userId));
 
         // 验证依赖方法调用
+        verify(mailBodyService, times(1)).releaseByUser(userId);
         verify(userRepository, times(1)).deleteById(userId);
+        verify(mailBodyService, times(1)).purgeUnreferenced();
+        verify(deliveryService, times(1)).releaseRawFiles(any());
+        verify(maildropCache, times(1)).invalidate(userId);
     }
 
     @Test
@@ -265,7 +279,7 @@ class AdminServiceTest {
         when(userRepository.findById(2L)).thenReturn(Optional.of(user1));
         when(userRepository.findById(3L)).thenReturn(Optional.of(user2));
 
-        when(mailService.sendMail(any(), eq(adminId), anyList())).thenReturn(new Mail());
+        when(mailService.sendMail(any(), eq(adminId), anyList(), eq(OutboundMail.Lane.BULK))).thenReturn(new Mail());
 
         // 执行测试
         assertDoesNotThrow(() -> adminService.broadcastMail(request, adminId));
@@ -275,7 +289,7 @@ class AdminServiceTest {
         verify(userRepository, times(1)).findAllUserIds();
         verify(userRepository, times(1)).findById(2L);
         verify(userRepository, times(1)).findById(3L);
-        verify(mailService, times(2)).sendMail(any(), eq(adminId), anyList());
+        verify(mailService, times(2)).sendMail(any(), eq(adminId), anyList(), eq(OutboundMail.Lane.BULK));
     }
 
     @Test
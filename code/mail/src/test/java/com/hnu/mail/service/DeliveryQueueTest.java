@@ -0,0 +1,282 @@
+package com.hnu.mail.service;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import org.mockito.MockitoAnnotations;
+
+import com.hnu.mail.model.Attachment;
+import com.hnu.mail.model.Mail;
+import com.hnu.mail.model.MailHeaders;
+import com.hnu.mail.model.User;
+
+class DeliveryQueueTest {
+
+    @Mock
+    private MailDeliveryService deliveryService;
+
+    @TempDir
+    Path spoolDir;
+
+    private DeliveryQueue deliveryQueue;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        MockitoAnnotations.openMocks(this);
+        deliveryQueue = newQueue();
+        deliveryQueue.openJournal(spoolDir);
+    }
+
+    @AfterEach
+    void tearDown() {
+        deliveryQueue.shutdown();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void testRawFileIsStoredDotStuffedWithCrlf() throws Exception {
+        Path file = spool("Subject: raw\r\n\r\n.dot\nlast");
+        assertTrue(deliveryQueue.submit(file,
+                List.of(mail("user1@test.com", 2L, "raw"), mail("user2@test.com", 3L, "raw"))));
+
+        ArgumentCaptor<List<MailDeliveryService.Delivery>> captor = ArgumentCaptor.forClass(List.class);
+        verify(deliveryService, timeout(2000).atLeastOnce()).deliverBatch(captor.capture());
+        MailDeliveryService.Delivery delivery = captor.getValue().get(0);
+
+        // 两个分区中的收件人共用同一份原文；行首的点已转义，裸LF和缺少的行尾补成CRLF
+        String expected = "Subject: raw\r\n\r\n..dot\r\nlast\r\n";
+        assertNotNull(delivery.raw());
+        assertEquals(expected.length(), delivery.raw().size());
+        assertEquals(expected, Files.readString(spoolDir.resolve("messages").resolve(delivery.raw().name())));
+        for (List<MailDeliveryService.Delivery> batch : captor.getAllValues()) {
+            assertEquals(delivery.raw(), batch.get(0).raw());
+        }
+        // TOP 0只发送邮件头和空行
+        assertEquals("Subject: raw\r\n\r\n".length(),
+                MessageFileStore.topLength(spoolDir.resolve("messages").resolve(delivery.raw().name()), 0));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void testUndeliveredMailIsReplayedAfterRestart() throws Exception {
+        // 数据库不可用：邮件已确认接收但没有投递成功
+        doThrow(new RuntimeException("database down")).when(deliveryService).deliverBatch(any());
+        Path file = spool("Subject: replay\r\n\r\nbody\r\n");
+        assertTrue(deliveryQueue.submit(file, List.of(mail("user1@test.com", 2L, "replay"))));
+        verify(deliveryService, timeout(2000).times(2)).deliverBatch(any());
+
+        // 模拟重启：新的队列从日志中恢复该邮件
+        deliveryQueue.shutdown();
+        reset(deliveryService);
+        deliveryQueue = newQueue();
+        deliveryQueue.openJournal(spoolDir);
+
+        ArgumentCaptor<List<MailDeliveryService.Delivery>> captor = ArgumentCaptor.forClass(List.class);
+        verify(deliveryService, timeout(2000)).deliverBatch(captor.capture());
+        MailDeliveryService.Delivery delivery = captor.getValue().get(0);
+        assertEquals("Subject: replay\n\nbody\n", delivery.content());
+        Mail mail = delivery.mails().get(0);
+        assertEquals("user1@test.com", mail.getReceiverEmail());
+        assertEquals(2L, mail.getReceiver().getId());
+        assertEquals("replay", mail.getSubject());
+        assertEquals("sender@remote.com", mail.getSenderEmail());
+        assertEquals("replay-2@remote.com", mail.getHeaders().getMessageId());
+        assertNull(mail.getHeaders().getDate());
+
+        awaitDeleted(file);
+    }
+
+    @Test
+    void testFailedDeliveryIsRetriedWithBackoff() throws Exception {
+        // 第一次投递失败，退避后重试成功
+        doThrow(new RuntimeException("deadlock")).doNothing().when(deliveryService).deliverBatch(any());
+        Path file = spool("Subject: retry\r\n\r\nbody\r\n");
+        assertTrue(deliveryQueue.submit(file, List.of(mail("user1@test.com", 2L, "retry"))));
+
+        verify(deliveryService, timeout(2000).times(2)).deliverBatch(any());
+        awaitDeleted(file);
+        assertEquals(1L, deliveryQueue.report().get("retriedMails"));
+        assertEquals(1L, deliveryQueue.report().get("deliveredMails"));
+        assertEquals(0L, deliveryQueue.report().get("failedMails"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void testOnlyFailedPartitionIsReplayedAfterRestart() throws Exception {
+        // 两个收件人分在两个分区，只有发往user2的部分一直失败
+        doAnswer(invocation -> {
+            List<MailDeliveryService.Delivery> batch = invocation.getArgument(0);
+            if (batch.get(0).mails().get(0).getReceiver().getId() == 3L) {
+                throw new RuntimeException("database down");
+            }
+            return null;
+        }).when(deliveryService).deliverBatch(any());
+        Path file = spool("Subject: partial\r\n\r\nbody\r\n");
+        assertTrue(deliveryQueue.submit(file,
+                List.of(mail("user1@test.com", 2L, "partial"), mail("user2@test.com", 3L, "partial"))));
+        verify(deliveryService, timeout(2000).times(3)).deliverBatch(any());
+        awaitFailed(1L);
+        awaitJournalRecords(2L);
+        assertTrue(Files.exists(file));
+
+        deliveryQueue.shutdown();
+        reset(deliveryService);
+        deliveryQueue = newQueue();
+        deliveryQueue.openJournal(spoolDir);
+
+        // 重启后只为user2重新投递，user1不会收到重复邮件
+        ArgumentCaptor<List<MailDeliveryService.Delivery>> captor = ArgumentCaptor.forClass(List.class);
+        verify(deliveryService, timeout(2000)).deliverBatch(captor.capture());
+        List<Mail> mails = captor.getValue().get(0).mails();
+        assertEquals(1, mails.size());
+        assertEquals("user2@test.com", mails.get(0).getReceiverEmail());
+        awaitDeleted(file);
+        verify(deliveryService, after(300).times(1)).deliverBatch(any());
+    }
+
+    @Test
+    void testDeliveredMailIsNotReplayed() throws Exception {
+        Path file = spool("Subject: done\r\n\r\nbody\r\n");
+        assertTrue(deliveryQueue.submit(file, List.of(mail("user1@test.com", 2L, "done"), mail("user2@test.com", 3L, "done"))));
+        awaitDeleted(file);
+
+        deliveryQueue.shutdown();
+        reset(deliveryService);
+        deliveryQueue = newQueue();
+        deliveryQueue.openJournal(spoolDir);
+
+        verify(deliveryService, after(300).never()).deliverBatch(any());
+        assertEquals(0, deliveryQueue.report().get("journalOutstanding"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void testAttachmentsAreStoredForEachRecipient() throws Exception {
+        Path file = spool("Subject: files\r\n"
+                + "Content-Type: multipart/mixed; boundary=b\r\n\r\n"
+                + "--b\r\nContent-Type: text/plain\r\n\r\nhello\r\n"
+                + "--b\r\nContent-Type: application/pdf; name=a.pdf\r\nContent-Transfer-Encoding: base64\r\n\r\n"
+                + "JVBERi0=\r\n--b--\r\n");
+        assertTrue(deliveryQueue.submit(file, List.of(mail("user1@test.com", 2L, "files"), mail("user2@test.com", 3L, "files"))));
+
+        // 两个收件人在不同分区投递，共用同一次拆分的结果
+        ArgumentCaptor<List<MailDeliveryService.Delivery>> captor = ArgumentCaptor.forClass(List.class);
+        verify(deliveryService, timeout(2000).times(2)).deliverBatch(captor.capture());
+        Path stored = null;
+        for (List<MailDeliveryService.Delivery> batch : captor.getAllValues()) {
+            MailDeliveryService.Delivery delivery = batch.get(0);
+            assertTrue(delivery.content().contains("hello\n"));
+            assertFalse(delivery.content().contains("JVBERi0="));
+            Mail mail = delivery.mails().get(0);
+            assertEquals(1, mail.getAttachments().size());
+            Attachment attachment = mail.getAttachments().iterator().next();
+            assertEquals("a.pdf", attachment.getFilename());
+            assertEquals("application/pdf", attachment.getFileType());
+            assertEquals(5L, attachment.getFileSize());
+            assertEquals(mail, attachment.getMail());
+            stored = Path.of(attachment.getFilePath());
+        }
+        assertEquals("%PDF-", Files.readString(stored));
+        awaitDeleted(file);
+    }
+
+    @Test
+    void testConcurrentAcceptsShareSyncs() throws Exception {
+        int sessions = 32;
+        ExecutorService pool = Executors.newFixedThreadPool(sessions);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < sessions; i++) {
+                Path file = spool("Subject: mail" + i + "\r\n\r\nbody\r\n");
+                long receiverId = i;
+                results.add(pool.submit(() -> deliveryQueue.submit(file, List.of(mail("user@test.com", receiverId, "mail")))));
+            }
+            for (Future<Boolean> result : results) {
+                assertTrue(result.get());
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        verify(deliveryService, timeout(2000).atLeastOnce()).deliverBatch(any());
+        long records = (Long) deliveryQueue.report().get("journalRecords");
+        long syncs = (Long) deliveryQueue.report().get("journalSyncs");
+        assertTrue(records >= sessions);
+        assertTrue(syncs <= records);
+    }
+
+    private DeliveryQueue newQueue() {
+        return new DeliveryQueue(deliveryService, new MessageFileStore(spoolDir.toString()), 2, 1000, 2, 20,
+                spoolDir.resolve("attachments").toString());
+    }
+
+    private Path spool(String content) throws Exception {
+        Path file = Files.createTempFile(spoolDir, "mail-", ".eml");
+        Files.writeString(file, content);
+        return file;
+    }
+
+    private Mail mail(String address, long receiverId, String subject) {
+        User receiver = new User();
+        receiver.setId(receiverId);
+        Mail mail = new Mail();
+        mail.setSenderEmail("sender@remote.com");
+        mail.setReceiverEmail(address);
+        mail.setReceiver(receiver);
+        mail.setSubject(subject);
+        mail.setReceivedAt(LocalDateTime.now());
+        mail.setSentAt(mail.getReceivedAt());
+        mail.setSize(1);
+        mail.setHeaders(new MailHeaders("Sender <sender@remote.com>", null, subject + "-" + receiverId + "@remote.com", null));
+        return mail;
+    }
+
+    private void awaitFailed(long mails) throws Exception {
+        for (int i = 0; i < 100 && !deliveryQueue.report().get("failedMails").equals(mails); i++) {
+            Thread.sleep(20);
+        }
+        assertEquals(mails, deliveryQueue.report().get("failedMails"));
+    }
+
+    private void awaitJournalRecords(long records) throws Exception {
+        for (int i = 0; i < 100 && (Long) deliveryQueue.report().get("journalRecords") < records; i++) {
+            Thread.sleep(20);
+        }
+        assertEquals(records, deliveryQueue.report().get("journalRecords"));
+    }
+
+    private void awaitDeleted(Path file) throws Exception {
+        for (int i = 0; i < 100; i++) {
+            if (!Files.exists(file)) {
+                return;
+            }
+            Thread.sleep(20);
+        }
+        throw new AssertionError("暂存文件未被删除");
+    }
+}
@@ -0,0 +1,98 @@
+package com.hnu.mail.service;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertSame;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import org.mockito.MockitoAnnotations;
+
+import com.hnu.mail.model.MailBody;
+import com.hnu.mail.repository.MailBodyRepository;
+
+class MailBodyServiceTest {
+
+    @Mock
+    private MailBodyRepository mailBodyRepository;
+
+    @InjectMocks
+    private MailBodyService mailBodyService;
+
+    @BeforeEach
+    void setUp() {
+        MockitoAnnotations.openMocks(this);
+    }
+
+    @Test
+    void testStore_ExistingBodyOnlyAddsReferences() {
+        MailBody body = new MailBody();
+        body.setId(7L);
+        when(mailBodyRepository.findIdByHash(anyString())).thenReturn(Optional.of(7L));
+        when(mailBodyRepository.adjustRefCount(7L, 3)).thenReturn(1);
+        when(mailBodyRepository.getReferenceById(7L)).thenReturn(body);
+
+        MailBody result = mailBodyService.store("群发正文", 3);
+
+        assertSame(body, result);
+        verify(mailBodyRepository, times(1)).adjustRefCount(7L, 3);
+        verify(mailBodyRepository, never()).upsert(anyString(), anyString(), anyLong(), anyInt());
+    }
+
+    @Test
+    void testStore_NewBodyIsInsertedOnce() {
+        MailBody body = new MailBody();
+        body.setId(8L);
+        when(mailBodyRepository.findIdByHash(anyString()))
+            .thenReturn(Optional.empty())
+            .thenReturn(Optional.of(8L));
+        when(mailBodyRepository.getReferenceById(8L)).thenReturn(body);
+
+        MailBody result = mailBodyService.store("你好", 2);
+
+        assertSame(body, result);
+        // "你好"的UTF-8编码为6字节
+        verify(mailBodyRepository, times(1)).upsert(anyString(), eq("你好"), eq(6L), eq(2));
+        verify(mailBodyRepository, never()).adjustRefCount(anyLong(), anyInt());
+    }
+
+    @Test
+    void testStore_BodyDeletedConcurrentlyIsInsertedAgain() {
+        MailBody body = new MailBody();
+        body.setId(10L);
+        // 查到的正文在增加引用前被并发删除，重新插入后得到新的ID
+        when(mailBodyRepository.findIdByHash(anyString()))
+            .thenReturn(Optional.of(7L))
+            .thenReturn(Optional.of(10L));
+        when(mailBodyRepository.adjustRefCount(7L, 2)).thenReturn(0);
+        when(mailBodyRepository.getReferenceById(10L)).thenReturn(body);
+
+        MailBody result = mailBodyService.store("已回收的正文", 2);
+
+        assertSame(body, result);
+        verify(mailBodyRepository, times(1)).upsert(anyString(), eq("已回收的正文"), anyLong(), eq(2));
+        verify(mailBodyRepository, never()).getReferenceById(7L);
+    }
+
+    @Test
+    void testRelease_DeletesBodiesWithoutReferences() {
+        MailBody body = new MailBody();
+        body.setId(9L);
+
+        mailBodyService.release(List.of(body, body));
+
+        verify(mailBodyRepository, times(1)).adjustRefCount(9L, -2);
+        verify(mailBodyRepository, times(1)).deleteUnreferenced(Set.of(9L));
+    }
+}
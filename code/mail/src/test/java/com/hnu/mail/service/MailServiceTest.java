@@ -8,24 +8,31 @@ import java.util.Optional;
 import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import org.mockito.MockitoAnnotations;
-import org.springframework.mail.javamail.JavaMailSender;
 import org.springframework.mail.javamail.MimeMessageHelper;
 import org.springframework.web.multipart.MultipartFile;
 
 import com.hnu.mail.dto.SendMailRequest;
 import com.hnu.mail.model.FilterResult;
 import com.hnu.mail.model.Mail;
+import com.hnu.mail.model.MailBody;
+import com.hnu.mail.model.OutboundMail;
+import com.hnu.mail.model.SystemConfig;
 import com.hnu.mail.model.User;
 import com.hnu.mail.repository.MailRepository;
 import com.hnu.mail.repository.UserRepository;
@@ -41,13 +48,25 @@ class MailServiceTest {
     private UserRepository userRepository;
 
     @Mock
-    private JavaMailSender mailSender;
+    private OutboundMailQueue outboundQueue;
+
+    @Mock
+    private SystemConfigService configService;
+
+    @Mock
+    private MailboxStatsService statsService;
+
+    @Mock
+    private MessageFileStore fileStore;
 
     @Mock
     private FilterService filterService;
 
     @Mock
     private LogService logService;
+
+    @Mock
+    private MailBodyService mailBodyService;
     
     @Mock
     private MimeMessage mimeMessage;
@@ -64,6 +83,7 @@ class MailServiceTest {
     @BeforeEach
     void setUp() {
         MockitoAnnotations.openMocks(this);
+        when(configService.getConfigValue(eq(SystemConfig.MAIL_DOMAIN), any())).thenReturn("example.com");
     }
 
     @Test
@@ -98,7 +118,9 @@ class MailServiceTest {
         Mail savedMail = new Mail();
         savedMail.setId(1L);
         savedMail.setSubject("测试邮件");
-        savedMail.setContent("这是一封测试邮件");
+        MailBody body = new MailBody();
+        body.setContent("这是一封测试邮件");
+        savedMail.setBody(body);
         savedMail.setSender(sender);
         savedMail.setReceiver(receiver);
         savedMail.setSenderEmail(sender.getEmail());
@@ -107,14 +129,12 @@ class MailServiceTest {
         savedMail.setSentAt(LocalDateTime.now());
         savedMail.setSize(1024);
 
+        when(mailBodyService.store("这是一封测试邮件", 2)).thenReturn(body);
         when(mailRepository.save(any(Mail.class))).thenReturn(savedMail);
-        when(mailSender.createMimeMessage()).thenReturn(mimeMessage);
+        when(fileStore.storeLines(any())).thenReturn(new MessageFileStore.Stored("0a/mail.eml", 180L));
 
         // 执行测试
         Mail result = mailService.sendMail(request, senderId, attachments);
-        
-        // 等待异步线程执行完成
-        Thread.sleep(500);
 
         // 验证结果
         assertNotNull(result);
@@ -127,9 +147,52 @@ class MailServiceTest {
         verify(userRepository, times(1)).findById(senderId);
         verify(userRepository, times(1)).findByEmail("receiver@example.com");
         verify(filterService, times(1)).applyFilters(request, sender);
+        // 本域收件人只在数据库中投递，不经过外部中继
+        verify(outboundQueue, never()).enqueue(any(), any(), any(), any(), any(), any());
+        // 收件箱副本计入收件人的POP3计数器
+        verify(statsService, times(1)).added(any());
+        // 本地收件人的邮件保存一份原文供POP3发送
+        verify(fileStore, times(1)).storeLines(any());
+        // 本域投递分别保存收件人的收件箱副本和发件人的已发送副本
+        verify(mailRepository, times(1)).save(argThat(mail -> mail.getFolder() == Mail.MailFolder.INBOX));
+        verify(mailRepository, times(1)).save(argThat(mail -> mail.getFolder() == Mail.MailFolder.SENT));
+    }
+
+    @Test
+    void testSendMail_RemoteRecipientIsRelayed() throws Exception {
+        SendMailRequest request = new SendMailRequest();
+        request.setTo("friend@remote.org");
+        request.setSubject("外部邮件");
+        request.setContent("正文");
+        Long senderId = 1L;
+
+        User sender = new User();
+        sender.setId(senderId);
+        sender.setEmail("sender@example.com");
+        sender.setUsername("sender");
+        when(userRepository.findById(senderId)).thenReturn(Optional.of(sender));
+        when(userRepository.findByEmail("friend@remote.org")).thenReturn(Optional.empty());
+
+        FilterResult filterResult = new FilterResult();
+        filterResult.setBlocked(false);
+        when(filterService.applyFilters(request, sender)).thenReturn(filterResult);
+        when(mailBodyService.store("正文", 1)).thenReturn(new MailBody());
+        when(mailRepository.save(any(Mail.class))).thenAnswer(invocation -> invocation.getArgument(0));
+
+        Mail result = mailService.sendMail(request, senderId, new ArrayList<>());
+
+        // 外部收件人不需要本地用户，只保存发件箱副本并写入发件箱
+        assertEquals(Mail.MailFolder.SENT, result.getFolder());
+        assertNull(result.getReceiver());
+        assertEquals("friend@remote.org", result.getReceiverEmail());
+        // 只有发件箱副本引用正文
+        verify(mailBodyService, times(1)).store("正文", 1);
         verify(mailRepository, times(1)).save(any(Mail.class));
-        verify(mailSender, times(1)).createMimeMessage();
-        verify(mailSender, times(1)).send(any(MimeMessage.class));
+        verify(userRepository, never()).save(any(User.class));
+        verify(statsService, never()).added(any());
+        verify(fileStore, never()).storeLines(any());
+        verify(outboundQueue, times(1)).enqueue(eq(OutboundMail.Lane.INTERACTIVE), any(),
+                eq("friend@remote.org"), eq("外部邮件"), eq("正文"), isNull());
     }
 
     @Test
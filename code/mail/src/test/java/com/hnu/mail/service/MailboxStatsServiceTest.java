@@ -0,0 +1,99 @@
+package com.hnu.mail.service;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.mockito.ArgumentMatchers.anyLong;
+import org.mockito.InOrder;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import org.mockito.MockitoAnnotations;
+
+import com.hnu.mail.model.Mail;
+import com.hnu.mail.model.User;
+import com.hnu.mail.repository.MailboxStatsRepository;
+
+class MailboxStatsServiceTest {
+
+    @Mock
+    private MailboxStatsRepository statsRepository;
+
+    @Mock
+    private MaildropCache maildropCache;
+
+    @InjectMocks
+    private MailboxStatsService statsService;
+
+    @BeforeEach
+    void setUp() {
+        MockitoAnnotations.openMocks(this);
+    }
+
+    @Test
+    void testAdded_UpdatesEachUserOnceInIdOrder() {
+        Mail spam = mail(3L, 50L);
+        spam.setFolder(Mail.MailFolder.SPAM);
+
+        statsService.added(List.of(mail(7L, 100L), mail(3L, 20L), mail(7L, 30L), spam));
+
+        // 垃圾邮件不属于POP3邮箱；计数行按用户ID顺序更新
+        InOrder order = inOrder(statsRepository);
+        order.verify(statsRepository).adjust(3L, 1, 20L);
+        order.verify(statsRepository).adjust(7L, 2, 130L);
+        order.verifyNoMoreInteractions();
+    }
+
+    @Test
+    void testChanged_OnlyAdjustsWhenMaildropMembershipChanges() {
+        Mail mail = mail(5L, 40L);
+        mail.setFolder(Mail.MailFolder.SPAM);
+        statsService.changed(mail, false);
+        verify(statsRepository, never()).adjust(anyLong(), anyLong(), anyLong());
+
+        mail.setFolder(Mail.MailFolder.INBOX);
+        statsService.changed(mail, false);
+        verify(statsRepository).adjust(5L, 1, 40L);
+        verify(maildropCache).added(List.of(mail));
+
+        mail.setId(90L);
+        mail.setIsDeleted(true);
+        statsService.changed(mail, true);
+        verify(statsRepository).adjust(5L, -1, -40L);
+        verify(maildropCache).removed(5L, List.of(90L), 1);
+    }
+
+    @Test
+    void testOctets_MatchRetrLines() {
+        Mail mail = new Mail();
+        mail.setSenderEmail("a@b.com");
+        mail.setReceiverEmail("c@d.com");
+        mail.setSubject("主题");
+        mail.setSentAt(LocalDateTime.of(2024, 1, 2, 3, 4, 5));
+
+        long expected = 0;
+        for (String line : Pop3Message.lines("a@b.com", "c@d.com", "主题", mail.getSentAt(), "第一行\r\n.two")) {
+            expected += line.getBytes(StandardCharsets.UTF_8).length + 2;
+        }
+        assertEquals(expected, Pop3Message.octets(mail, "第一行\n.two"));
+        // 秒以下的差异（数据库DATETIME舍入）不改变邮件大小
+        mail.setSentAt(mail.getSentAt().plusNanos(600_000_000));
+        assertEquals(expected, Pop3Message.octets(mail, "第一行\n.two"));
+    }
+
+    private static Mail mail(Long userId, long octets) {
+        User receiver = new User();
+        receiver.setId(userId);
+        Mail mail = new Mail();
+        mail.setReceiver(receiver);
+        mail.setFolder(Mail.MailFolder.INBOX);
+        mail.setOctets(octets);
+        return mail;
+    }
+}
@@ -0,0 +1,93 @@
+package com.hnu.mail.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.hnu.mail.model.Mail;
+import com.hnu.mail.model.User;
+import com.hnu.mail.repository.MailRepository;
+
+class MaildropCacheTest {
+
+    @Test
+    void testAddedAndRemovedUpdateCachedManifest() {
+        MaildropCache cache = new MaildropCache(100);
+        cache.get(1L, () -> List.of(new Entry(10L, 100L, 120L), new Entry(11L, 101L, 300L)));
+
+        cache.added(List.of(mail(1L, 13L, 50L), mail(1L, 12L, 40L)));
+        MaildropCache.Manifest manifest = cache.peek(1L);
+        assertArrayEquals(new long[] {10L, 11L, 12L, 13L}, manifest.ids());
+        assertArrayEquals(new long[] {120L, 300L, 40L, 50L}, manifest.sizes());
+        assertEquals(1L, manifest.version());
+
+        cache.removed(1L, List.of(11L, 99L), 1);
+        manifest = cache.peek(1L);
+        assertArrayEquals(new long[] {10L, 12L, 13L}, manifest.ids());
+        assertArrayEquals(new long[] {100L, 0L, 0L}, manifest.bodyIds());
+        assertEquals(2L, manifest.version());
+    }
+
+    @Test
+    void testUnverifiableUpdatesDropManifest() {
+        MaildropCache cache = new MaildropCache(100);
+        cache.get(1L, () -> List.of(new Entry(10L, 100L, 120L), new Entry(11L, 101L, 300L)));
+
+        // 追加的ID不大于清单中的最大ID，说明有更早的提交尚未应用
+        cache.added(List.of(mail(1L, 5L, 10L)));
+        assertNull(cache.peek(1L));
+
+        cache.get(1L, () -> List.of(new Entry(5L, 0L, 10L), new Entry(10L, 100L, 120L)));
+        // 实际移除的数量与调用方统计的数量不一致
+        cache.removed(1L, List.of(7L), 1);
+        assertNull(cache.peek(1L));
+    }
+
+    @Test
+    void testChangeCommittedDuringLoadIsNotCached() {
+        MaildropCache cache = new MaildropCache(100);
+
+        MaildropCache.Manifest loaded = cache.get(1L, () -> {
+            cache.added(List.of(mail(1L, 11L, 300L)));
+            return List.of(new Entry(10L, 100L, 120L));
+        });
+
+        assertEquals(1, loaded.size());
+        assertNull(cache.peek(1L));
+        assertEquals(2, cache.get(1L, () -> List.of(
+                new Entry(10L, 100L, 120L), new Entry(11L, 101L, 300L))).size());
+        assertNotNull(cache.peek(1L));
+    }
+
+    @Test
+    void testLeastRecentlyUsedManifestIsEvicted() {
+        MaildropCache cache = new MaildropCache(4);
+        cache.get(1L, () -> List.of(new Entry(1L, 0L, 1L), new Entry(2L, 0L, 1L)));
+        cache.get(2L, () -> List.of(new Entry(3L, 0L, 1L), new Entry(4L, 0L, 1L)));
+        cache.peek(1L);
+
+        cache.get(3L, () -> List.of(new Entry(5L, 0L, 1L)));
+
+        assertNotNull(cache.peek(1L));
+        assertNull(cache.peek(2L));
+        assertNotNull(cache.peek(3L));
+    }
+
+    private static Mail mail(Long userId, Long id, Long octets) {
+        User receiver = new User();
+        receiver.setId(userId);
+        Mail mail = new Mail();
+        mail.setId(id);
+        mail.setReceiver(receiver);
+        mail.setOctets(octets);
+        return mail;
+    }
+
+    private record Entry(Long getId, Long getBodyId, Long getSize) implements MailRepository.MaildropEntry {
+    }
+}
@@ -0,0 +1,392 @@
+package com.hnu.mail.service;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import org.hibernate.collection.spi.PersistentBag;
+import org.mockito.MockitoAnnotations;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+
+import com.hnu.mail.model.Attachment;
+import com.hnu.mail.model.OutboundMail;
+import com.hnu.mail.repository.OutboundMailRepository;
+
+class OutboundMailQueueTest {
+
+    @Mock
+    private OutboundMailRepository repository;
+
+    @TempDir
+    Path tempDir;
+
+    private final AtomicLong ids = new AtomicLong();
+    private FakeSmtpSink sink;
+    private OutboundMailQueue queue;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        MockitoAnnotations.openMocks(this);
+        when(repository.save(any(OutboundMail.class))).thenAnswer(invocation -> {
+            OutboundMail mail = invocation.getArgument(0);
+            if (mail.getId() == null) {
+                mail.setId(ids.incrementAndGet());
+            }
+            return mail;
+        });
+        sink = new FakeSmtpSink();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        if (queue != null) {
+            queue.shutdown();
+        }
+        sink.close();
+    }
+
+    @Test
+    void testConsecutiveMailsReuseOneConnection() throws Exception {
+        queue = newQueue(1, 3, 50);
+        for (int i = 0; i < 5; i++) {
+            queue.enqueue(OutboundMail.Lane.INTERACTIVE, "admin@test.com", "user" + i + "@remote.com",
+                    "主题" + i, "<p>正文</p>", null);
+        }
+
+        sink.awaitMessages(5);
+        verify(repository, timeout(2000).times(5)).deleteById(any());
+        assertEquals(1, sink.connections.get());
+        assertEquals(5L, queue.report().get("sentMails"));
+        assertEquals(1L, queue.report().get("connections"));
+        assertTrue(sink.messages.get(0).contains("user0@remote.com"));
+    }
+
+    @Test
+    void testAttachmentsAreSentFromLocalFiles() throws Exception {
+        Path file = tempDir.resolve("report.txt");
+        Files.writeString(file, "attachment-body");
+        Attachment attachment = new Attachment();
+        attachment.setFilename("report.txt");
+        attachment.setFileType("text/plain");
+        attachment.setFilePath(file.toString());
+
+        queue = newQueue(1, 3, 50);
+        queue.enqueue(OutboundMail.Lane.INTERACTIVE, "admin@test.com", "user@remote.com",
+                "附件", "正文", List.of(attachment));
+
+        sink.awaitMessages(1);
+        String message = sink.messages.get(0);
+        assertTrue(message.contains("filename=report.txt"));
+        assertTrue(message.contains("attachment-body"));
+    }
+
+    @Test
+    void testTransientFailureIsRetriedWithBackoff() throws Exception {
+        sink.rejectNext.set(1);
+        queue = newQueue(1, 3, 50);
+        queue.enqueue(OutboundMail.Lane.INTERACTIVE, "admin@test.com", "user@remote.com", "重试", "正文", null);
+
+        sink.awaitMessages(1);
+        verify(repository, timeout(2000)).deleteById(1L);
+        assertEquals(1L, queue.report().get("retriedMails"));
+
+        // 第一次失败后记录了重试次数和下次重试时间
+        ArgumentCaptor<OutboundMail> captor = ArgumentCaptor.forClass(OutboundMail.class);
+        verify(repository, times(2)).save(captor.capture());
+        OutboundMail retried = captor.getAllValues().get(1);
+        assertEquals(1, retried.getAttempts());
+        assertTrue(retried.getLastError().contains("451"));
+    }
+
+    @Test
+    void testMailIsMarkedFailedAfterMaxAttempts() throws Exception {
+        sink.rejectNext.set(Integer.MAX_VALUE);
+        queue = newQueue(1, 2, 20);
+        OutboundMail mail = queue.enqueue(OutboundMail.Lane.INTERACTIVE, "admin@test.com", "user@remote.com",
+                "失败", "正文", null);
+
+        verify(repository, timeout(2000).times(3)).save(any(OutboundMail.class));
+        assertEquals(OutboundMail.Status.FAILED, mail.getStatus());
+        assertEquals(2, mail.getAttempts());
+        assertEquals(1L, queue.report().get("failedMails"));
+        verify(repository, times(0)).deleteById(any());
+    }
+
+    @Test
+    void testIdenticalMailsToOneDomainShareOneTransaction() throws Exception {
+        queue = newQueue(1, 3, 60_000);
+        // 第一封邮件阻塞在对端期间，其余邮件在队列中按域名聚合
+        CountDownLatch hold = sink.hold("blocker.com");
+        queue.enqueue(OutboundMail.Lane.BULK, "admin@test.com", "user@blocker.com", "通知", "正文", null);
+        sink.awaitTransactions(0);
+        for (String to : List.of("a@remote.com", "b@remote.com", "reject@remote.com", "c@remote.com",
+                "d@other.com")) {
+            queue.enqueue(OutboundMail.Lane.BULK, "admin@test.com", to, "通知", "正文", null);
+        }
+        queue.enqueue(OutboundMail.Lane.BULK, "admin@test.com", "e@remote.com", "另一封", "正文", null);
+        hold.countDown();
+
+        sink.awaitMessages(4);
+        assertEquals(List.of("user@blocker.com"), sink.transactions.get(0));
+        assertEquals(List.of("a@remote.com", "b@remote.com", "c@remote.com"), sink.transactions.get(1));
+        assertEquals(List.of("e@remote.com"), sink.transactions.get(2));
+        assertEquals(List.of("d@other.com"), sink.transactions.get(3));
+        assertEquals(1, sink.connections.get());
+
+        // 多个收件人共用的邮件不暴露其他收件人，被拒绝的收件人单独重试
+        assertTrue(sink.messages.get(1).contains("To: undisclosed-recipients:;"));
+        verify(repository, timeout(2000).times(6)).deleteById(any());
+        assertEquals(1L, queue.report().get("retriedMails"));
+        assertEquals(6L, queue.report().get("sentMails"));
+        assertEquals(4L, queue.report().get("transactions"));
+    }
+
+    @Test
+    void testMailsWithPersistedAttachmentsShareOneTransaction() throws Exception {
+        // 与Hibernate保存后一样，附件列表被替换为按对象标识比较的PersistentBag
+        when(repository.save(any(OutboundMail.class))).thenAnswer(invocation -> {
+            OutboundMail mail = invocation.getArgument(0);
+            if (mail.getId() == null) {
+                mail.setId(ids.incrementAndGet());
+                mail.setAttachments(new PersistentBag<>(null, new ArrayList<>(mail.getAttachments())));
+            }
+            return mail;
+        });
+        Path file = Files.writeString(tempDir.resolve("report.txt"), "report");
+        Attachment attachment = new Attachment();
+        attachment.setFilename("report.txt");
+        attachment.setFileType("text/plain");
+        attachment.setFilePath(file.toString());
+
+        queue = newQueue(1, 3, 60_000);
+        CountDownLatch hold = sink.hold("blocker.com");
+        queue.enqueue(OutboundMail.Lane.BULK, "admin@test.com", "user@blocker.com", "通知", "正文", null);
+        sink.awaitTransactions(0);
+        for (String to : List.of("a@remote.com", "b@remote.com")) {
+            queue.enqueue(OutboundMail.Lane.BULK, "admin@test.com", to, "报表", "正文", List.of(attachment));
+        }
+        hold.countDown();
+
+        sink.awaitMessages(2);
+        assertEquals(List.of("a@remote.com", "b@remote.com"), sink.transactions.get(1));
+        assertTrue(sink.messages.get(1).contains("report.txt"));
+    }
+
+    @Test
+    void testDomainConcurrencyIsLimited() throws Exception {
+        queue = newQueue(3, 3, 50, 1);
+        CountDownLatch hold = sink.hold("first@slow.com");
+        queue.enqueue(OutboundMail.Lane.INTERACTIVE, "admin@test.com", "first@slow.com", "1", "正文", null);
+        sink.awaitTransactions(0);
+        queue.enqueue(OutboundMail.Lane.INTERACTIVE, "admin@test.com", "second@slow.com", "2", "正文", null);
+        queue.enqueue(OutboundMail.Lane.INTERACTIVE, "admin@test.com", "user@fast.com", "3", "正文", null);
+
+        // slow.com已有一个线程在发送，第二封等待；其他域名不受影响
+        sink.awaitMessages(1);
+        assertTrue(sink.messages.get(0).contains("user@fast.com"));
+        assertEquals(1, queue.report().get("interactiveQueued"));
+
+        hold.countDown();
+        sink.awaitMessages(3);
+        assertTrue(sink.messages.get(2).contains("second@slow.com"));
+    }
+
+    @Test
+    void testBulkMailLeavesAWorkerForInteractiveMail() throws Exception {
+        CountDownLatch hold = sink.hold("bulk");
+        queue = newQueue(2, 3, 50);
+        for (int i = 0; i < 3; i++) {
+            queue.enqueue(OutboundMail.Lane.BULK, "admin@test.com", "user@bulk" + i + ".com", "群发", "正文", null);
+        }
+        // 群发邮件阻塞在对端时，交互邮件仍然由另一个线程立即发出
+        queue.enqueue(OutboundMail.Lane.INTERACTIVE, "admin@test.com", "user@remote.com", "交互", "正文", null);
+        sink.awaitMessages(1);
+        assertTrue(sink.messages.get(0).contains("user@remote.com"));
+        assertEquals(1, queue.report().get("bulkActive"));
+        assertEquals(2, queue.report().get("bulkQueued"));
+
+        hold.countDown();
+        sink.awaitMessages(4);
+    }
+
+    @Test
+    void testPendingMailsAreRecovered() throws Exception {
+        OutboundMail pending = new OutboundMail();
+        pending.setId(42L);
+        pending.setToAddress("user@remote.com");
+        pending.setSubject("恢复");
+        pending.setContent("正文");
+        pending.setNextAttemptAt(LocalDateTime.now().minusMinutes(1));
+        when(repository.findByStatusOrderByNextAttemptAtAsc(OutboundMail.Status.PENDING))
+                .thenReturn(List.of(pending));
+
+        queue = newQueue(1, 3, 50);
+        queue.recover();
+
+        sink.awaitMessages(1);
+        verify(repository, timeout(2000)).deleteById(42L);
+    }
+
+    private OutboundMailQueue newQueue(int workers, int maxAttempts, long retryBaseMillis) {
+        return newQueue(workers, maxAttempts, retryBaseMillis, 2);
+    }
+
+    private OutboundMailQueue newQueue(int workers, int maxAttempts, long retryBaseMillis, int domainConcurrency) {
+        JavaMailSenderImpl sender = new JavaMailSenderImpl();
+        sender.setHost("localhost");
+        sender.setPort(sink.port());
+        return new OutboundMailQueue(repository, sender, workers, maxAttempts, retryBaseMillis, 5000,
+                domainConcurrency);
+    }
+
+    /**
+     * 本地SMTP接收端：统计连接数，保存收到的邮件和每个事务的收件人。
+     * 可以让指定数量的邮件以451拒绝，以550拒绝地址含reject的收件人，或在DATA后阻塞含指定内容的邮件
+     */
+    private static final class FakeSmtpSink implements AutoCloseable {
+        private final ServerSocket server = new ServerSocket(0);
+        private final AtomicInteger connections = new AtomicInteger();
+        private final AtomicInteger rejectNext = new AtomicInteger();
+        private final List<String> messages = new CopyOnWriteArrayList<>();
+        private final List<List<String>> transactions = new CopyOnWriteArrayList<>();
+        private volatile String holdMarker;
+        private volatile CountDownLatch holdLatch;
+        private volatile CountDownLatch holding = new CountDownLatch(1);
+
+        FakeSmtpSink() throws IOException {
+            Thread acceptor = new Thread(() -> {
+                while (!server.isClosed()) {
+                    try {
+                        Socket socket = server.accept();
+                        connections.incrementAndGet();
+                        Thread session = new Thread(() -> serve(socket));
+                        session.setDaemon(true);
+                        session.start();
+                    } catch (IOException e) {
+                        return;
+                    }
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        int port() {
+            return server.getLocalPort();
+        }
+
+        CountDownLatch hold(String marker) {
+            holdLatch = new CountDownLatch(1);
+            holdMarker = marker;
+            return holdLatch;
+        }
+
+        /**
+         * 等待第一封被阻塞的邮件到达，此时已完成的事务数为count
+         */
+        void awaitTransactions(int count) throws InterruptedException {
+            assertTrue(holding.await(5, TimeUnit.SECONDS));
+            assertEquals(count, transactions.size());
+        }
+
+        void awaitMessages(int count) throws InterruptedException {
+            for (int i = 0; i < 200 && messages.size() < count; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(count, messages.size());
+        }
+
+        private void serve(Socket socket) {
+            try (socket;
+                 BufferedReader in = new BufferedReader(
+                         new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+                OutputStream out = socket.getOutputStream();
+                reply(out, "220 sink ESMTP");
+                String line;
+                List<String> recipients = new ArrayList<>();
+                while ((line = in.readLine()) != null) {
+                    String verb = line.length() >= 4 ? line.substring(0, 4).toUpperCase() : line.toUpperCase();
+                    switch (verb) {
+                        case "EHLO" -> reply(out, "250-sink\r\n250 8BITMIME");
+                        case "MAIL", "RSET" -> {
+                            recipients = new ArrayList<>();
+                            reply(out, "250 OK");
+                        }
+                        case "RCPT" -> {
+                            String address = line.substring(line.indexOf('<') + 1, line.indexOf('>'));
+                            if (address.contains("reject")) {
+                                reply(out, "550 no such user");
+                            } else {
+                                recipients.add(address);
+                                reply(out, "250 OK");
+                            }
+                        }
+                        case "DATA" -> {
+                            reply(out, "354 go ahead");
+                            StringBuilder message = new StringBuilder();
+                            while (!(line = in.readLine()).equals(".")) {
+                                message.append(line).append('\n');
+                            }
+                            if (rejectNext.getAndUpdate(n -> n > 0 ? n - 1 : 0) > 0) {
+                                reply(out, "451 try again later");
+                                continue;
+                            }
+                            String marker = holdMarker;
+                            if (marker != null && message.toString().contains(marker)) {
+                                holding.countDown();
+                                holdLatch.await(5, TimeUnit.SECONDS);
+                            }
+                            messages.add(message.toString());
+                            transactions.add(recipients);
+                            reply(out, "250 queued");
+                        }
+                        case "QUIT" -> {
+                            reply(out, "221 bye");
+                            return;
+                        }
+                        default -> reply(out, "250 OK");
+                    }
+                }
+            } catch (IOException | InterruptedException e) {
+                // 连接被客户端关闭
+            }
+        }
+
+        private static void reply(OutputStream out, String line) throws IOException {
+            out.write((line + "\r\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            server.close();
+        }
+    }
+}
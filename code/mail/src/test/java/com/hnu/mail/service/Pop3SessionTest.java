@@ -0,0 +1,415 @@
+package com.hnu.mail.service;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import org.mockito.MockitoAnnotations;
+import org.springframework.security.crypto.password.PasswordEncoder;
+
+import com.hnu.mail.model.Mail;
+import com.hnu.mail.model.MailboxStats;
+import com.hnu.mail.model.User;
+import com.hnu.mail.repository.MailRepository;
+import com.hnu.mail.repository.UserRepository;
+import com.hnu.mail.server.BlockingServerEngine;
+import com.hnu.mail.server.ServerEngine;
+import com.hnu.mail.server.SessionChannel;
+
+class Pop3SessionTest {
+
+    @Mock
+    private UserRepository userRepository;
+
+    @Mock
+    private MailRepository mailRepository;
+
+    @Mock
+    private MailBodyService mailBodyService;
+
+    @Mock
+    private MailDeliveryService deliveryService;
+
+    @Mock
+    private MailboxStatsService statsService;
+
+    @Mock
+    private PasswordEncoder passwordEncoder;
+
+    private final DatabaseCallExecutor dbExecutor = new DatabaseCallExecutor(2);
+
+    @TempDir
+    Path storeDir;
+
+    private MessageFileStore fileStore;
+    private MaildropCache maildropCache;
+
+    private ServerEngine engine;
+    private int port;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        MockitoAnnotations.openMocks(this);
+        fileStore = new MessageFileStore(storeDir.toString());
+        maildropCache = new MaildropCache(1000);
+        User user = new User();
+        user.setId(2L);
+        user.setUsername("user1");
+        user.setPassword("hash");
+        when(userRepository.findByUsername("user1")).thenReturn(Optional.of(user));
+        when(passwordEncoder.matches("secret", "hash")).thenReturn(true);
+        when(statsService.find(2L)).thenReturn(new MailboxStats(2L, 3L, 420L));
+
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        engine = new BlockingServerEngine("POP3", port, Executors.newCachedThreadPool(), this::newSession);
+        engine.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        engine.stop();
+        dbExecutor.shutdown();
+    }
+
+    @Test
+    void testStatIsAnsweredFromCounters() throws Exception {
+        try (Socket socket = new Socket("localhost", port);
+             OutputStream out = socket.getOutputStream();
+             BufferedReader in = new BufferedReader(
+                     new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+
+            assertTrue(in.readLine().startsWith("+OK"));
+            login(out, in);
+            send(out, "STAT\r\nQUIT\r\n");
+            assertEquals("+OK 3 420", in.readLine());
+            assertTrue(in.readLine().startsWith("+OK"));
+        }
+
+        // 只轮询STAT的客户端不查询邮件表
+        verify(mailRepository, never()).findMaildrop(any());
+        verify(deliveryService, never()).expunge(any());
+    }
+
+    @Test
+    void testListingIsLoadedOnDemandWithoutBodies() throws Exception {
+        when(mailRepository.findMaildrop(2L)).thenReturn(List.of(
+                new Entry(10L, 100L, 120L), new Entry(11L, null, null), new Entry(12L, 101L, 300L)));
+        when(mailRepository.findEnvelopes(Set.of(12L))).thenReturn(List.of(new Envelope(
+                12L, "sender@remote.com", "user1@test.com", "hello", LocalDateTime.of(2024, 1, 2, 3, 4), null)));
+        when(mailBodyService.loadContents(Set.of(101L))).thenReturn(Map.of(101L, "body text\n.hidden"));
+
+        try (Socket socket = new Socket("localhost", port);
+             OutputStream out = socket.getOutputStream();
+             BufferedReader in = new BufferedReader(
+                     new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+
+            assertTrue(in.readLine().startsWith("+OK"));
+            login(out, in);
+
+            send(out, "LIST\r\n");
+            assertTrue(in.readLine().startsWith("+OK"));
+            assertEquals("1 120", in.readLine());
+            assertEquals("2 0", in.readLine());
+            assertEquals("3 300", in.readLine());
+            assertEquals(".", in.readLine());
+
+            // 登录和LIST都不读取正文
+            verify(mailBodyService, never()).loadContents(any());
+
+            send(out, "RETR 3\r\n");
+            assertEquals("+OK 300 octets", in.readLine());
+            assertEquals("From: sender@remote.com", in.readLine());
+            assertEquals("To: user1@test.com", in.readLine());
+            assertEquals("Subject: hello", in.readLine());
+            assertTrue(in.readLine().startsWith("Date: Tue, 02 Jan 2024 03:04:00 "));
+            assertEquals("", in.readLine());
+            assertEquals("body text", in.readLine());
+            assertEquals("..hidden", in.readLine());
+            assertEquals(".", in.readLine());
+
+            send(out, "LIST 4\r\n");
+            assertTrue(in.readLine().startsWith("-ERR"));
+        }
+
+        verify(mailRepository, times(1)).findMaildrop(2L);
+        verify(mailBodyService, times(1)).loadContents(Set.of(101L));
+    }
+
+    @Test
+    void testRepeatLoginIsServedFromManifestCache() throws Exception {
+        when(mailRepository.findMaildrop(2L)).thenReturn(List.of(
+                new Entry(10L, 100L, 120L), new Entry(11L, 101L, 300L)));
+
+        try (Socket socket = new Socket("localhost", port);
+             OutputStream out = socket.getOutputStream();
+             BufferedReader in = new BufferedReader(
+                     new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+
+            assertTrue(in.readLine().startsWith("+OK"));
+            login(out, in);
+            send(out, "UIDL\r\nQUIT\r\n");
+            assertTrue(in.readLine().startsWith("+OK"));
+            assertEquals("1 10", in.readLine());
+            assertEquals("2 11", in.readLine());
+            assertEquals(".", in.readLine());
+            assertTrue(in.readLine().startsWith("+OK"));
+        }
+
+        // 提交后的新邮件追加到共享清单
+        User receiver = new User();
+        receiver.setId(2L);
+        Mail delivered = new Mail();
+        delivered.setId(12L);
+        delivered.setReceiver(receiver);
+        delivered.setOctets(50L);
+        maildropCache.added(List.of(delivered));
+
+        try (Socket socket = new Socket("localhost", port);
+             OutputStream out = socket.getOutputStream();
+             BufferedReader in = new BufferedReader(
+                     new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+
+            assertTrue(in.readLine().startsWith("+OK"));
+            login(out, in);
+            send(out, "STAT\r\nUIDL 3\r\nQUIT\r\n");
+            assertEquals("+OK 3 470", in.readLine());
+            assertEquals("+OK 3 12", in.readLine());
+            assertTrue(in.readLine().startsWith("+OK"));
+        }
+
+        // 第二次登录既不读取计数器也不查询邮件表
+        verify(statsService, times(1)).find(2L);
+        verify(mailRepository, times(1)).findMaildrop(2L);
+    }
+
+    @Test
+    void testCapaAdvertisesExtensions() throws Exception {
+        try (Socket socket = new Socket("localhost", port);
+             OutputStream out = socket.getOutputStream();
+             BufferedReader in = new BufferedReader(
+                     new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+
+            assertTrue(in.readLine().startsWith("+OK"));
+            send(out, "CAPA\r\n");
+            assertTrue(in.readLine().startsWith("+OK"));
+            List<String> capabilities = new ArrayList<>();
+            String line;
+            while (!(line = in.readLine()).equals(".")) {
+                capabilities.add(line);
+            }
+            assertEquals(List.of("USER", "TOP", "UIDL", "PIPELINING"), capabilities);
+        }
+    }
+
+    @Test
+    void testUidlAndTopWithoutReadingBodies() throws Exception {
+        when(mailRepository.findMaildrop(2L)).thenReturn(List.of(
+                new Entry(10L, 100L, 120L), new Entry(11L, 101L, 120L), new Entry(12L, 102L, 300L)));
+        when(mailRepository.findEnvelopes(any())).thenReturn(List.of(
+                new Envelope(10L, "a@remote.com", "user1@test.com", "first", null, null),
+                new Envelope(12L, "b@remote.com", "user1@test.com", "third", null, null)));
+
+        try (Socket socket = new Socket("localhost", port);
+             OutputStream out = socket.getOutputStream();
+             BufferedReader in = new BufferedReader(
+                     new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+
+            assertTrue(in.readLine().startsWith("+OK"));
+            login(out, in);
+
+            // 流水线发送的命令按顺序回复
+            send(out, "DELE 2\r\nUIDL\r\nUIDL 3\r\nTOP 1 0\r\nTOP 3 0\r\nTOP 2 0\r\nTOP 1\r\nNOOP\r\n");
+            assertTrue(in.readLine().startsWith("+OK"));
+            assertTrue(in.readLine().startsWith("+OK"));
+            assertEquals("1 10", in.readLine());
+            assertEquals("3 12", in.readLine());
+            assertEquals(".", in.readLine());
+            assertEquals("+OK 3 12", in.readLine());
+
+            assertTrue(in.readLine().startsWith("+OK"));
+            assertEquals("From: a@remote.com", in.readLine());
+            assertEquals("To: user1@test.com", in.readLine());
+            assertEquals("Subject: first", in.readLine());
+            assertEquals("", in.readLine());
+            assertEquals(".", in.readLine());
+            assertTrue(in.readLine().startsWith("+OK"));
+            assertEquals("From: b@remote.com", in.readLine());
+            in.readLine();
+            assertEquals("Subject: third", in.readLine());
+            assertEquals("", in.readLine());
+            assertEquals(".", in.readLine());
+            assertTrue(in.readLine().startsWith("-ERR"));
+            assertTrue(in.readLine().startsWith("-ERR"));
+            assertEquals("+OK", in.readLine());
+        }
+
+        // 两个TOP在一次查询中取回邮件头，且不读取正文
+        verify(mailRepository, times(1)).findEnvelopes(Set.of(10L, 12L));
+        verify(mailBodyService, never()).loadContents(any());
+    }
+
+    @Test
+    void testPipelinedRetrLoadsBodiesInOneQuery() throws Exception {
+        when(mailRepository.findMaildrop(2L)).thenReturn(List.of(
+                new Entry(10L, 100L, 120L), new Entry(11L, 101L, 120L)));
+        when(mailRepository.findEnvelopes(any())).thenReturn(List.of(
+                new Envelope(10L, "a@remote.com", "user1@test.com", "first", null, null),
+                new Envelope(11L, "b@remote.com", "user1@test.com", "second", null, null)));
+        when(mailBodyService.loadContents(any())).thenReturn(Map.of(100L, "one\ntwo\nthree", 101L, "other"));
+
+        try (Socket socket = new Socket("localhost", port);
+             OutputStream out = socket.getOutputStream();
+             BufferedReader in = new BufferedReader(
+                     new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+
+            assertTrue(in.readLine().startsWith("+OK"));
+            login(out, in);
+
+            send(out, "RETR 1\r\nTOP 2 1\r\nTOP 1 2\r\n");
+            assertEquals("+OK 120 octets", in.readLine());
+            assertEquals(List.of("one", "two", "three"), readBody(in));
+            assertTrue(in.readLine().startsWith("+OK"));
+            assertEquals(List.of("other"), readBody(in));
+            assertTrue(in.readLine().startsWith("+OK"));
+            assertEquals(List.of("one", "two"), readBody(in));
+        }
+
+        verify(mailRepository, times(1)).findEnvelopes(any());
+        verify(mailBodyService, times(1)).loadContents(Set.of(100L, 101L));
+    }
+
+    @Test
+    void testDeletedMessagesAreHiddenAndExpungedOnQuit() throws Exception {
+        when(mailRepository.findMaildrop(2L)).thenReturn(List.of(
+                new Entry(10L, 100L, 120L), new Entry(11L, 100L, 120L), new Entry(12L, 101L, 300L)));
+
+        try (Socket socket = new Socket("localhost", port);
+             OutputStream out = socket.getOutputStream();
+             BufferedReader in = new BufferedReader(
+                     new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+
+            assertTrue(in.readLine().startsWith("+OK"));
+            login(out, in);
+
+            // 加载邮件列表之后STAT按本会话的列表和删除标记计算
+            send(out, "DELE 1\r\nDELE 3\r\nDELE 3\r\nRETR 1\r\nSTAT\r\nLIST\r\n");
+            assertTrue(in.readLine().startsWith("+OK"));
+            assertTrue(in.readLine().startsWith("+OK"));
+            assertTrue(in.readLine().startsWith("-ERR"));
+            assertTrue(in.readLine().startsWith("-ERR"));
+            assertEquals("+OK 1 120", in.readLine());
+            assertTrue(in.readLine().startsWith("+OK"));
+            assertEquals("2 120", in.readLine());
+            assertEquals(".", in.readLine());
+
+            send(out, "QUIT\r\n");
+            assertTrue(in.readLine().startsWith("+OK"));
+        }
+
+        // 删除按邮件ID进行，不需要加载邮件实体
+        verify(deliveryService, timeout(2000)).expunge(List.of(10L, 12L));
+        verify(mailRepository, never()).findById(any());
+    }
+
+    private Pop3Session newSession(SessionChannel channel) {
+        return new Pop3Session(channel, userRepository, mailRepository, mailBodyService, fileStore, deliveryService,
+                statsService, maildropCache, passwordEncoder, dbExecutor, 60_000);
+    }
+
+    private static void login(OutputStream out, BufferedReader in) throws IOException {
+        send(out, "USER user1\r\nPASS secret\r\n");
+        assertTrue(in.readLine().startsWith("+OK"));
+        assertTrue(in.readLine().startsWith("+OK"));
+    }
+
+    @Test
+    void testRetrAndTopAreSentFromRawFile() throws Exception {
+        MessageFileStore.Stored raw = fileStore.storeLines(
+                List.of("Subject: raw", "X-Original: kept", "", ".dot", "body"));
+        when(mailRepository.findMaildrop(2L)).thenReturn(List.of(new Entry(20L, 200L, raw.size())));
+        when(mailRepository.findEnvelopes(any())).thenReturn(List.of(
+                new Envelope(20L, "a@remote.com", "user1@test.com", "raw", null, raw.name())));
+
+        try (Socket socket = new Socket("localhost", port);
+             OutputStream out = socket.getOutputStream();
+             BufferedReader in = new BufferedReader(
+                     new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+
+            assertTrue(in.readLine().startsWith("+OK"));
+            login(out, in);
+
+            send(out, "RETR 1\r\nTOP 1 1\r\nNOOP\r\n");
+            assertEquals("+OK " + raw.size() + " octets", in.readLine());
+            // 原文原样发送，文件中已做点转义
+            assertEquals("Subject: raw", in.readLine());
+            assertEquals("X-Original: kept", in.readLine());
+            assertEquals("", in.readLine());
+            assertEquals("..dot", in.readLine());
+            assertEquals("body", in.readLine());
+            assertEquals(".", in.readLine());
+            assertTrue(in.readLine().startsWith("+OK"));
+            assertEquals("Subject: raw", in.readLine());
+            assertEquals("X-Original: kept", in.readLine());
+            assertEquals("", in.readLine());
+            assertEquals("..dot", in.readLine());
+            assertEquals(".", in.readLine());
+            assertEquals("+OK", in.readLine());
+        }
+
+        verify(mailBodyService, never()).loadContents(any());
+    }
+
+    /**
+     * 跳过邮件头，读取正文直到结束标记
+     */
+    private static List<String> readBody(BufferedReader in) throws IOException {
+        while (!in.readLine().isEmpty()) {
+            // 邮件头
+        }
+        List<String> body = new ArrayList<>();
+        String line;
+        while (!(line = in.readLine()).equals(".")) {
+            body.add(line);
+        }
+        return body;
+    }
+
+    private static void send(OutputStream out, String data) throws IOException {
+        out.write(data.getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    private record Entry(Long getId, Long getBodyId, Long getSize) implements MailRepository.MaildropEntry {
+    }
+
+    private record Envelope(Long getId, String getSenderEmail, String getReceiverEmail, String getSubject,
+                            LocalDateTime getSentAt, String getRawFile) implements MailRepository.MessageEnvelope {
+    }
+}
@@ -0,0 +1,798 @@
+package com.hnu.mail.service;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.cert.X509Certificate;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import org.mockito.MockitoAnnotations;
+
+import com.hnu.mail.model.Mail;
+import com.hnu.mail.model.User;
+import com.hnu.mail.repository.UserRepository;
+import com.hnu.mail.server.AdmissionController;
+import com.hnu.mail.server.BlockingServerEngine;
+import com.hnu.mail.server.NioServerEngine;
+import com.hnu.mail.server.ServerEngine;
+import com.hnu.mail.server.TlsContext;
+
+class SmtpSessionTest {
+
+    @Mock
+    private UserRepository userRepository;
+
+    @Mock
+    private MailDeliveryService deliveryService;
+
+    private final DatabaseCallExecutor dbExecutor = new DatabaseCallExecutor(2);
+
+    @TempDir
+    Path keyDir;
+
+    @TempDir
+    Path spoolDir;
+
+    @TempDir
+    Path storeDir;
+
+    private ServerEngine engine;
+    private int port;
+    private long maxMailSize = 1024 * 1024;
+    private long commandTimeout = 60_000;
+    private DeliveryQueue deliveryQueue;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        MockitoAnnotations.openMocks(this);
+        User receiver = new User();
+        receiver.setId(2L);
+        receiver.setUsername("user1");
+        when(userRepository.findByUsername("user1")).thenReturn(Optional.of(receiver));
+        when(userRepository.findByUsername("nobody")).thenReturn(Optional.empty());
+        when(userRepository.findByUsernameIn(any())).thenAnswer(invocation -> {
+            Collection<String> names = invocation.getArgument(0);
+            return names.contains("user1") ? List.of(receiver) : List.of();
+        });
+
+        deliveryQueue = new DeliveryQueue(deliveryService, new MessageFileStore(storeDir.toString()), 2, 1000, 1, 0,
+                spoolDir.resolve("attachments").toString());
+
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (engine != null) {
+            engine.stop();
+        }
+        dbExecutor.shutdown();
+        deliveryQueue.shutdown();
+    }
+
+    @Test
+    void testBlockingEngineDeliversMail() throws Exception {
+        engine = new BlockingServerEngine("SMTP", port, Executors.newCachedThreadPool(), this::newSession);
+        engine.start();
+        runDialogue();
+    }
+
+    @Test
+    void testVirtualThreadEngineDeliversMail() throws Exception {
+        engine = new BlockingServerEngine("SMTP", port, Executors.newVirtualThreadPerTaskExecutor(),
+                this::newSession);
+        engine.start();
+        runDialogue();
+    }
+
+    @Test
+    void testNioEngineDeliversMail() throws Exception {
+        engine = new NioServerEngine("SMTP", port, 2, Executors.newFixedThreadPool(2), this::newSession);
+        engine.start();
+        runDialogue();
+    }
+
+    @Test
+    void testPipelinedTransactionResolvesRecipientsInOneQuery() throws Exception {
+        engine = new BlockingServerEngine("SMTP", port, Executors.newCachedThreadPool(), this::newSession);
+        engine.start();
+
+        try (Socket socket = new Socket("localhost", port);
+             PrintWriter out = new PrintWriter(socket.getOutputStream(), true, StandardCharsets.UTF_8);
+             BufferedReader in = new BufferedReader(
+                     new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+
+            assertTrue(in.readLine().startsWith("220"));
+            out.print("HELO client\r\n");
+            out.flush();
+            assertTrue(in.readLine().startsWith("250"));
+
+            // 一次写出整个事务的信封命令
+            out.print("MAIL FROM:<sender@remote.com>\r\n"
+                    + "RCPT TO:<user1@test.com>\r\n"
+                    + "RCPT TO:<nobody@test.com>\r\n"
+                    + "RCPT TO:<USER1@test.com>\r\n"
+                    + "DATA\r\n");
+            out.flush();
+            assertTrue(in.readLine().startsWith("250"));
+            assertTrue(in.readLine().startsWith("250"));
+            assertTrue(in.readLine().startsWith("550"));
+            assertTrue(in.readLine().startsWith("250"));
+            assertTrue(in.readLine().startsWith("354"));
+
+            out.print("Subject: pipelined\r\n\r\nbody\r\n.\r\nQUIT\r\n");
+            out.flush();
+            assertTrue(in.readLine().startsWith("250"));
+            assertTrue(in.readLine().startsWith("221"));
+        }
+
+        verify(userRepository, times(1)).findByUsernameIn(any());
+
+        // 两个有效收件人在一次调用中批量投递，且不再逐个查询用户
+        ArgumentCaptor<List<MailDeliveryService.Delivery>> captor = deliveryListCaptor();
+        verify(deliveryService, timeout(2000).times(1)).deliverBatch(captor.capture());
+        assertEquals(1, captor.getValue().size());
+        assertEquals(2, captor.getValue().get(0).mails().size());
+        verify(userRepository, never()).findByUsername(any());
+    }
+
+    @Test
+    void testOversizedMailIsRejected() throws Exception {
+        maxMailSize = 100;
+        engine = new BlockingServerEngine("SMTP", port, Executors.newCachedThreadPool(), this::newSession);
+        engine.start();
+
+        try (Socket socket = new Socket("localhost", port);
+             PrintWriter out = new PrintWriter(socket.getOutputStream(), true, StandardCharsets.UTF_8);
+             BufferedReader in = new BufferedReader(
+                     new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+
+            assertTrue(in.readLine().startsWith("220"));
+            out.print("EHLO client\r\n");
+            out.flush();
+            String line;
+            boolean sizeAdvertised = false;
+            while ((line = in.readLine()).startsWith("250-")) {
+                sizeAdvertised |= line.equals("250-SIZE 100");
+            }
+            assertTrue(sizeAdvertised);
+
+            // 声明的大小超过限制，在传输数据之前被拒绝
+            out.print("MAIL FROM:<sender@remote.com> SIZE=5000\r\n");
+            out.flush();
+            assertTrue(in.readLine().startsWith("552"));
+
+            // 未声明大小，数据阶段超过限制
+            out.print("MAIL FROM:<sender@remote.com> SIZE=50\r\nRCPT TO:<user1@test.com>\r\nDATA\r\n");
+            out.flush();
+            assertTrue(in.readLine().startsWith("250"));
+            assertTrue(in.readLine().startsWith("250"));
+            assertTrue(in.readLine().startsWith("354"));
+            out.print("Subject: big\r\n\r\n" + "x".repeat(200) + "\r\n.\r\n");
+            out.flush();
+            assertTrue(in.readLine().startsWith("552"));
+
+            out.print("QUIT\r\n");
+            out.flush();
+            assertTrue(in.readLine().startsWith("221"));
+        }
+
+        verify(deliveryService, never()).deliverBatch(any());
+        try (var files = Files.list(spoolDir)) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    @Test
+    void testBlockingEngineAcceptsBdatChunks() throws Exception {
+        engine = new BlockingServerEngine("SMTP", port, Executors.newCachedThreadPool(), this::newSession);
+        engine.start();
+        runBdatDialogue();
+    }
+
+    @Test
+    void testNioEngineAcceptsBdatChunks() throws Exception {
+        engine = new NioServerEngine("SMTP", port, 2, Executors.newFixedThreadPool(2), this::newSession);
+        engine.start();
+        runBdatDialogue();
+    }
+
+    @Test
+    void testBdatErrorsConsumeChunk() throws Exception {
+        maxMailSize = 100;
+        engine = new BlockingServerEngine("SMTP", port, Executors.newCachedThreadPool(), this::newSession);
+        engine.start();
+
+        try (Socket socket = new Socket("localhost", port);
+             OutputStream out = socket.getOutputStream();
+             BufferedReader in = new BufferedReader(
+                     new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+
+            assertTrue(in.readLine().startsWith("220"));
+            send(out, "HELO client\r\n");
+            assertTrue(in.readLine().startsWith("250"));
+
+            // 没有事务时的数据块也要读完，数据中的内容不能被当作命令
+            send(out, "BDAT 6\r\nQUIT\r\n");
+            assertTrue(in.readLine().startsWith("503"));
+
+            // BINARYMIME邮件不能使用DATA
+            send(out, "MAIL FROM:<sender@remote.com> BODY=BINARYMIME\r\nRCPT TO:<user1@test.com>\r\nDATA\r\n");
+            assertTrue(in.readLine().startsWith("250"));
+            assertTrue(in.readLine().startsWith("250"));
+            assertTrue(in.readLine().startsWith("503"));
+
+            // 超过大小限制的数据块被读完后拒绝，事务作废
+            send(out, "BDAT 200 LAST\r\n" + "x".repeat(200));
+            assertTrue(in.readLine().startsWith("552"));
+            send(out, "BDAT 2 LAST\r\nok");
+            assertTrue(in.readLine().startsWith("503"));
+
+            send(out, "MAIL FROM:<sender@remote.com> BODY=UNKNOWN\r\nQUIT\r\n");
+            assertTrue(in.readLine().startsWith("501"));
+            assertTrue(in.readLine().startsWith("221"));
+        }
+
+        verify(deliveryService, never()).deliverBatch(any());
+        try (var files = Files.list(spoolDir)) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    @Test
+    void testFullDeliveryQueueDefersMail() throws Exception {
+        deliveryQueue.shutdown();
+        deliveryQueue = new DeliveryQueue(deliveryService, new MessageFileStore(storeDir.toString()), 1, 0, 1, 0,
+                spoolDir.resolve("attachments").toString());
+        engine = new BlockingServerEngine("SMTP", port, Executors.newCachedThreadPool(), this::newSession);
+        engine.start();
+
+        try (Socket socket = new Socket("localhost", port);
+             PrintWriter out = new PrintWriter(socket.getOutputStream(), true, StandardCharsets.UTF_8);
+             BufferedReader in = new BufferedReader(
+                     new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+
+            assertTrue(in.readLine().startsWith("220"));
+            out.print("HELO client\r\nMAIL FROM:<sender@remote.com>\r\nRCPT TO:<user1@test.com>\r\nDATA\r\n");
+            out.flush();
+            assertTrue(in.readLine().startsWith("250"));
+            assertTrue(in.readLine().startsWith("250"));
+            assertTrue(in.readLine().startsWith("250"));
+            assertTrue(in.readLine().startsWith("354"));
+
+            // 队列没有空间时回复临时错误，发送方稍后重试
+            out.print("Subject: busy\r\n\r\nbody\r\n.\r\n");
+            out.flush();
+            assertTrue(in.readLine().startsWith("451"));
+        }
+
+        verify(deliveryService, never()).deliverBatch(any());
+        awaitSpoolEmpty();
+    }
+
+    @Test
+    void testLmtpRepliesPerRecipientAfterData() throws Exception {
+        User receiver = new User();
+        receiver.setId(2L);
+        receiver.setUsername("user1");
+        User full = new User();
+        full.setId(3L);
+        full.setUsername("full");
+        full.setMailboxSize(1);
+        full.setUsedSize(1024);
+        User disabled = new User();
+        disabled.setId(4L);
+        disabled.setUsername("disabled");
+        disabled.setStatus(User.UserStatus.DISABLED);
+        doReturn(List.of(receiver, full, disabled)).when(userRepository).findByUsernameIn(any());
+
+        engine = new NioServerEngine("LMTP", port, 2, Executors.newFixedThreadPool(2), this::newLmtpSession);
+        engine.start();
+
+        try (Socket socket = new Socket("localhost", port);
+             OutputStream out = socket.getOutputStream();
+             BufferedReader in = new BufferedReader(
+                     new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+
+            assertTrue(in.readLine().startsWith("220 localhost LMTP"));
+            send(out, "EHLO client\r\n");
+            assertTrue(in.readLine().startsWith("503"));
+            send(out, "LHLO client\r\n");
+            readEhlo(in);
+
+            // 上游MTA一次写出整个事务，数据结束后每个被接受的收件人各有一个响应
+            send(out, "MAIL FROM:<sender@remote.com>\r\n"
+                    + "RCPT TO:<user1@test.com>\r\n"
+                    + "RCPT TO:<nobody@test.com>\r\n"
+                    + "RCPT TO:<full@test.com>\r\n"
+                    + "RCPT TO:<disabled@test.com>\r\n"
+                    + "DATA\r\n");
+            assertTrue(in.readLine().startsWith("250"));
+            assertTrue(in.readLine().startsWith("250"));
+            assertTrue(in.readLine().startsWith("550"));
+            assertTrue(in.readLine().startsWith("250"));
+            assertTrue(in.readLine().startsWith("250"));
+            assertTrue(in.readLine().startsWith("354"));
+
+            send(out, "Subject: lmtp\r\n\r\nbody\r\n.\r\n");
+            assertTrue(in.readLine().startsWith("250 OK <user1@test.com>"));
+            assertTrue(in.readLine().startsWith("452 <full@test.com>"));
+            assertTrue(in.readLine().startsWith("550 <disabled@test.com>"));
+
+            // 同一连接上的下一个事务使用BDAT，LAST数据块之后同样按收件人回复
+            send(out, "MAIL FROM:<sender@remote.com>\r\n"
+                    + "RCPT TO:<user1@test.com>\r\n"
+                    + "BDAT 23 LAST\r\nSubject: bdat\r\n\r\nbody\r\n"
+                    + "QUIT\r\n");
+            assertTrue(in.readLine().startsWith("250"));
+            assertTrue(in.readLine().startsWith("250"));
+            assertTrue(in.readLine().startsWith("250 OK <user1@test.com>"));
+            assertTrue(in.readLine().startsWith("221"));
+        }
+
+        // 只有可投递的收件人进入投递队列；两个事务可能分两批投递，等暂存文件都清理后再检查
+        awaitSpoolEmpty();
+        ArgumentCaptor<List<MailDeliveryService.Delivery>> captor = deliveryListCaptor();
+        verify(deliveryService, atLeastOnce()).deliverBatch(captor.capture());
+        List<Mail> delivered = captor.getAllValues().stream()
+                .flatMap(List::stream)
+                .flatMap(delivery -> delivery.mails().stream())
+                .toList();
+        assertEquals(2, delivered.size());
+        assertTrue(delivered.stream().allMatch(mail -> mail.getReceiver().getId() == 2L));
+    }
+
+    @Test
+    void testLmtpRejectsOversizedMailForEveryRecipient() throws Exception {
+        maxMailSize = 16;
+        engine = new BlockingServerEngine("LMTP", port, Executors.newCachedThreadPool(), this::newLmtpSession);
+        engine.start();
+
+        try (Socket socket = new Socket("localhost", port);
+             OutputStream out = socket.getOutputStream();
+             BufferedReader in = new BufferedReader(
+                     new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+
+            assertTrue(in.readLine().startsWith("220"));
+            send(out, "LHLO client\r\n");
+            readEhlo(in);
+            send(out, "MAIL FROM:<sender@remote.com>\r\n"
+                    + "RCPT TO:<user1@test.com>\r\n"
+                    + "RCPT TO:<USER1@test.com>\r\n"
+                    + "DATA\r\n");
+            assertTrue(in.readLine().startsWith("250"));
+            assertTrue(in.readLine().startsWith("250"));
+            assertTrue(in.readLine().startsWith("250"));
+            assertTrue(in.readLine().startsWith("354"));
+
+            send(out, "Subject: too large for the limit\r\n\r\nbody\r\n.\r\nQUIT\r\n");
+            assertTrue(in.readLine().startsWith("552"));
+            assertTrue(in.readLine().startsWith("552"));
+            assertTrue(in.readLine().startsWith("221"));
+        }
+
+        verify(deliveryService, never()).deliverBatch(any());
+        awaitSpoolEmpty();
+    }
+
+    @Test
+    void testBlockingEngineRejectsConnectionsOverLimit() throws Exception {
+        engine = new BlockingServerEngine("SMTP", port, Executors.newCachedThreadPool(), this::newSession,
+                new AdmissionController(10, 1, "421 localhost busy"));
+        engine.start();
+        assertSecondConnectionRejected();
+    }
+
+    @Test
+    void testNioEngineRejectsConnectionsOverLimit() throws Exception {
+        engine = new NioServerEngine("SMTP", port, 1, Executors.newFixedThreadPool(2), this::newSession,
+                new AdmissionController(10, 1, "421 localhost busy"));
+        engine.start();
+        assertSecondConnectionRejected();
+    }
+
+    @Test
+    void testBlockingEngineClosesSilentClient() throws Exception {
+        commandTimeout = 300;
+        engine = new BlockingServerEngine("SMTP", port, Executors.newCachedThreadPool(), this::newSession);
+        engine.start();
+        assertDribblingClientTimesOut();
+    }
+
+    @Test
+    void testNioEngineClosesSilentClient() throws Exception {
+        commandTimeout = 300;
+        engine = new NioServerEngine("SMTP", port, 1, Executors.newFixedThreadPool(2), this::newSession);
+        engine.start();
+        assertDribblingClientTimesOut();
+    }
+
+    @Test
+    void testBlockingEngineStartTls() throws Exception {
+        TlsContext tls = newTlsContext();
+        engine = new BlockingServerEngine("SMTP", port, Executors.newCachedThreadPool(), this::newSession,
+                new AdmissionController(100, 100, "421 localhost busy"), tls);
+        engine.start();
+        assertStartTlsDialogue(tls);
+    }
+
+    @Test
+    void testNioEngineStartTls() throws Exception {
+        TlsContext tls = newTlsContext();
+        engine = new NioServerEngine("SMTP", port, 2, Executors.newFixedThreadPool(2), this::newSession,
+                new AdmissionController(100, 100, "421 localhost busy"), tls);
+        engine.start();
+        assertStartTlsDialogue(tls);
+    }
+
+    @Test
+    void testStartTlsIsRejectedWithoutCertificate() throws Exception {
+        engine = new BlockingServerEngine("SMTP", port, Executors.newCachedThreadPool(), this::newSession);
+        engine.start();
+        try (Socket socket = new Socket("localhost", port);
+             OutputStream out = socket.getOutputStream();
+             BufferedReader in = new BufferedReader(
+                     new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+            assertTrue(in.readLine().startsWith("220"));
+            send(out, "EHLO client\r\n");
+            String line;
+            while ((line = in.readLine()).startsWith("250-")) {
+                assertFalse(line.contains("STARTTLS"));
+            }
+            send(out, "STARTTLS\r\n");
+            assertTrue(in.readLine().startsWith("502"));
+        }
+    }
+
+    /**
+     * 客户端只发送半行数据，不会续期命令超时，最终收到421并被断开
+     */
+    private void assertDribblingClientTimesOut() throws Exception {
+        try (Socket socket = new Socket("localhost", port);
+             PrintWriter out = new PrintWriter(socket.getOutputStream(), true, StandardCharsets.UTF_8);
+             BufferedReader in = new BufferedReader(
+                     new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+            socket.setSoTimeout(5000);
+            assertTrue(in.readLine().startsWith("220"));
+            out.print("EHLO client\r\n");
+            out.flush();
+            String line;
+            while ((line = in.readLine()).startsWith("250-")) {
+                // 读取多行EHLO响应
+            }
+            assertTrue(line.startsWith("250 "));
+
+            for (char c : "NOOP".toCharArray()) {
+                out.print(c);
+                out.flush();
+                Thread.sleep(100);
+            }
+            assertTrue(in.readLine().startsWith("421"));
+            assertNull(in.readLine());
+        }
+    }
+
+    /**
+     * 单个IP限制为1个连接：第二个连接立即收到421，第一个连接关闭后名额被释放
+     */
+    private void assertSecondConnectionRejected() throws Exception {
+        try (Socket first = new Socket("localhost", port);
+             BufferedReader firstIn = new BufferedReader(
+                     new InputStreamReader(first.getInputStream(), StandardCharsets.UTF_8))) {
+            assertTrue(firstIn.readLine().startsWith("220"));
+
+            try (Socket second = new Socket("localhost", port);
+                 BufferedReader secondIn = new BufferedReader(
+                         new InputStreamReader(second.getInputStream(), StandardCharsets.UTF_8))) {
+                assertEquals("421 localhost busy", secondIn.readLine());
+                assertNull(secondIn.readLine());
+            }
+        }
+
+        // 名额在连接关闭后异步释放
+        for (int i = 0; i < 50; i++) {
+            try (Socket third = new Socket("localhost", port);
+                 BufferedReader thirdIn = new BufferedReader(
+                         new InputStreamReader(third.getInputStream(), StandardCharsets.UTF_8))) {
+                if (thirdIn.readLine().startsWith("220")) {
+                    return;
+                }
+            }
+            Thread.sleep(20);
+        }
+        throw new AssertionError("连接关闭后名额未释放");
+    }
+
+    private SmtpSession newSession(com.hnu.mail.server.SessionChannel channel) {
+        return new SmtpSession(channel, new SmtpSettings("localhost", spoolDir, maxMailSize,
+                commandTimeout, commandTimeout, commandTimeout),
+                userRepository, deliveryQueue, dbExecutor);
+    }
+
+    private SmtpSession newLmtpSession(com.hnu.mail.server.SessionChannel channel) {
+        return new SmtpSession(channel, new SmtpSettings("localhost", spoolDir, maxMailSize,
+                commandTimeout, commandTimeout, commandTimeout),
+                userRepository, deliveryQueue, dbExecutor, true);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ArgumentCaptor<List<MailDeliveryService.Delivery>> deliveryListCaptor() {
+        return ArgumentCaptor.forClass(List.class);
+    }
+
+    private void runDialogue() throws Exception {
+        try (Socket socket = new Socket("localhost", port);
+             PrintWriter out = new PrintWriter(socket.getOutputStream(), true, StandardCharsets.UTF_8);
+             BufferedReader in = new BufferedReader(
+                     new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+
+            assertTrue(in.readLine().startsWith("220"));
+
+            out.print("EHLO client\r\n");
+            out.flush();
+            String line;
+            while ((line = in.readLine()).startsWith("250-")) {
+                // 读取多行EHLO响应
+            }
+            assertTrue(line.startsWith("250 "));
+
+            out.print("MAIL FROM:<sender@remote.com>\r\n");
+            out.flush();
+            assertTrue(in.readLine().startsWith("250"));
+
+            out.print("RCPT TO:<nobody@test.com>\r\n");
+            out.flush();
+            assertTrue(in.readLine().startsWith("550"));
+
+            out.print("RCPT TO:<user1@test.com>\r\n");
+            out.flush();
+            assertTrue(in.readLine().startsWith("250"));
+
+            out.print("DATA\r\n");
+            out.flush();
+            assertTrue(in.readLine().startsWith("354"));
+
+            out.print("Subject: 你好\r\nMessage-ID: <m1@remote.com>\r\n\r\n..leading dot\r\nbody\r\n.\r\n");
+            out.flush();
+            assertTrue(in.readLine().startsWith("250"));
+
+            out.print("QUIT\r\n");
+            out.flush();
+            assertTrue(in.readLine().startsWith("221"));
+        }
+
+        ArgumentCaptor<List<MailDeliveryService.Delivery>> captor = deliveryListCaptor();
+        verify(deliveryService, timeout(2000).times(1)).deliverBatch(captor.capture());
+        assertEquals(1, captor.getValue().size());
+        MailDeliveryService.Delivery delivery = captor.getValue().get(0);
+        assertEquals(1, delivery.mails().size());
+        Mail mail = delivery.mails().get(0);
+        assertEquals("你好", mail.getSubject());
+        assertEquals("m1@remote.com", mail.getHeaders().getMessageId());
+        assertEquals("user1@test.com", mail.getReceiverEmail());
+        assertEquals(2L, mail.getReceiver().getId());
+        assertTrue(delivery.content().contains("\n.leading dot\n"));
+        assertEquals(1, mail.getSize());
+
+        // 投递完成后暂存文件被清理
+        awaitSpoolEmpty();
+    }
+
+    /**
+     * 第一个连接完整握手并在加密后投递邮件，STARTTLS之后以明文注入的命令被丢弃；
+     * 第二个连接使用同一个客户端上下文，复用第一个连接的会话
+     */
+    private void assertStartTlsDialogue(TlsContext tls) throws Exception {
+        SSLContext client = trustAllClientContext();
+        try (Socket plain = new Socket("localhost", port)) {
+            plain.setSoTimeout(5000);
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(plain.getInputStream(), StandardCharsets.UTF_8));
+            assertTrue(in.readLine().startsWith("220"));
+            send(plain.getOutputStream(), "EHLO client\r\n");
+            assertTrue(readEhlo(in).contains("250-STARTTLS"));
+
+            send(plain.getOutputStream(), "STARTTLS\r\nMAIL FROM:<injected@evil.com>\r\n");
+            assertTrue(in.readLine().startsWith("220"));
+
+            try (SSLSocket socket = startTls(client, plain)) {
+                OutputStream out = socket.getOutputStream();
+                BufferedReader secure = new BufferedReader(
+                        new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+
+                // 升级后回到初始状态，必须重新EHLO，且不再提供STARTTLS
+                send(out, "MAIL FROM:<sender@remote.com>\r\n");
+                assertTrue(secure.readLine().startsWith("503"));
+                send(out, "EHLO client\r\n");
+                assertFalse(readEhlo(secure).contains("STARTTLS"));
+                send(out, "STARTTLS\r\n");
+                assertTrue(secure.readLine().startsWith("503"));
+
+                send(out, "MAIL FROM:<sender@remote.com>\r\nRCPT TO:<user1@test.com>\r\nDATA\r\n");
+                assertTrue(secure.readLine().startsWith("250"));
+                assertTrue(secure.readLine().startsWith("250"));
+                assertTrue(secure.readLine().startsWith("354"));
+                send(out, "Subject: secure\r\n\r\nbody\r\n.\r\nQUIT\r\n");
+                assertTrue(secure.readLine().startsWith("250"));
+                assertTrue(secure.readLine().startsWith("221"));
+            }
+        }
+
+        ArgumentCaptor<List<MailDeliveryService.Delivery>> captor = deliveryListCaptor();
+        verify(deliveryService, timeout(2000).times(1)).deliverBatch(captor.capture());
+        Mail mail = captor.getValue().get(0).mails().get(0);
+        assertEquals("secure", mail.getSubject());
+        assertEquals("sender@remote.com", mail.getSenderEmail());
+
+        try (Socket plain = new Socket("localhost", port)) {
+            plain.setSoTimeout(5000);
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(plain.getInputStream(), StandardCharsets.UTF_8));
+            assertTrue(in.readLine().startsWith("220"));
+            send(plain.getOutputStream(), "EHLO client\r\n");
+            readEhlo(in);
+            send(plain.getOutputStream(), "STARTTLS\r\n");
+            assertTrue(in.readLine().startsWith("220"));
+            try (SSLSocket socket = startTls(client, plain)) {
+                send(socket.getOutputStream(), "EHLO client\r\nQUIT\r\n");
+                BufferedReader secure = new BufferedReader(
+                        new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                readEhlo(secure);
+                assertTrue(secure.readLine().startsWith("221"));
+            }
+        }
+
+        Map<String, Object> report = tls.report();
+        assertEquals(2L, report.get("handshakes"));
+        assertEquals(1L, report.get("fullHandshakes"));
+        assertEquals(1L, report.get("resumedHandshakes"));
+        assertEquals(0L, report.get("failedHandshakes"));
+    }
+
+    private static String readEhlo(BufferedReader in) throws IOException {
+        StringBuilder reply = new StringBuilder();
+        String line;
+        while ((line = in.readLine()).startsWith("250-")) {
+            reply.append(line).append('\n');
+        }
+        assertTrue(line.startsWith("250 "));
+        return reply.append(line).toString();
+    }
+
+    private SSLSocket startTls(SSLContext client, Socket plain) throws IOException {
+        SSLSocket socket = (SSLSocket) client.getSocketFactory().createSocket(plain, "localhost", port, true);
+        socket.setSoTimeout(5000);
+        socket.startHandshake();
+        return socket;
+    }
+
+    private TlsContext newTlsContext() throws Exception {
+        Path keystore = keyDir.resolve("server.p12");
+        Process keytool = new ProcessBuilder(
+                Path.of(System.getProperty("java.home"), "bin", "keytool").toString(),
+                "-genkeypair", "-alias", "mail", "-keyalg", "EC", "-groupname", "secp256r1",
+                "-dname", "CN=localhost", "-validity", "1", "-storetype", "PKCS12",
+                "-keystore", keystore.toString(), "-storepass", "changeit", "-keypass", "changeit")
+                .redirectErrorStream(true)
+                .start();
+        keytool.getInputStream().transferTo(OutputStream.nullOutputStream());
+        assertEquals(0, keytool.waitFor());
+        return TlsContext.load(keystore, "changeit", "PKCS12", 100, 60);
+    }
+
+    private static SSLContext trustAllClientContext() throws Exception {
+        TrustManager trustAll = new X509TrustManager() {
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        };
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, new TrustManager[] {trustAll}, null);
+        return context;
+    }
+
+    private void runBdatDialogue() throws Exception {
+        // 数据块中的点行、裸LF以及跨越多次读取的大块数据都必须原样保存
+        String head = "Subject: chunked\r\n\r\nline\r\n.\r\n..dot\nbare\r\n";
+        String tail = "y".repeat(200 * 1024) + "\r\n";
+        try (Socket socket = new Socket("localhost", port);
+             OutputStream out = socket.getOutputStream();
+             BufferedReader in = new BufferedReader(
+                     new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+
+            assertTrue(in.readLine().startsWith("220"));
+            send(out, "EHLO client\r\n");
+            String line;
+            boolean chunking = false;
+            boolean binaryMime = false;
+            while ((line = in.readLine()).startsWith("250-")) {
+                chunking |= line.equals("250-CHUNKING");
+                binaryMime |= line.equals("250-BINARYMIME");
+            }
+            assertTrue(chunking);
+            assertTrue(binaryMime);
+
+            // 信封命令和第一个数据块一起流水线发送
+            send(out, "MAIL FROM:<sender@remote.com> BODY=BINARYMIME\r\nRCPT TO:<user1@test.com>\r\n"
+                    + "BDAT " + head.length() + "\r\n" + head);
+            assertTrue(in.readLine().startsWith("250"));
+            assertTrue(in.readLine().startsWith("250"));
+            assertEquals("250 OK 已接收 " + head.length() + " 字节", in.readLine());
+
+            send(out, "BDAT " + tail.length() + " LAST\r\n" + tail + "QUIT\r\n");
+            assertTrue(in.readLine().startsWith("250"));
+            assertTrue(in.readLine().startsWith("221"));
+        }
+
+        ArgumentCaptor<List<MailDeliveryService.Delivery>> captor = deliveryListCaptor();
+        verify(deliveryService, timeout(2000).times(1)).deliverBatch(captor.capture());
+        MailDeliveryService.Delivery delivery = captor.getValue().get(0);
+        assertEquals((head + tail).replace("\r\n", "\n"), delivery.content());
+        Mail mail = delivery.mails().get(0);
+        assertEquals("chunked", mail.getSubject());
+        assertEquals((head.length() + tail.length() + 1023) / 1024, mail.getSize());
+        awaitSpoolEmpty();
+    }
+
+    private static void send(OutputStream out, String data) throws IOException {
+        out.write(data.getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    private void awaitSpoolEmpty() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            try (var files = Files.list(spoolDir)) {
+                if (files.count() == 0) {
+                    return;
+                }
+            }
+            Thread.sleep(20);
+        }
+        throw new AssertionError("暂存文件未被清理");
+    }
+}